@@ -0,0 +1,130 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.zip.CRC32;
+
+// Reads a binary snapshot through a FileChannel; finish() verifies the checksum. The format
+// is described in BinarySnapshotWriter.java.
+class BinarySnapshotReader implements Closeable {
+    private final FileChannel channel;
+    private final long dataEnd;
+    private ByteBuffer buffer;
+    private final CRC32 crc;
+    private long position;
+    private final int version;
+
+    public BinarySnapshotReader(Path file) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.READ);
+        dataEnd = channel.size() - 4;
+        buffer = ByteBuffer.allocateDirect(1 << 20);
+        buffer.limit(0);
+        crc = new CRC32();
+        if (dataEnd < 8 || readInt() != BinarySnapshotWriter.MAGIC) {
+            throw new IOException("Not a patient record system snapshot: " + file);
+        }
+        version = readInt();
+        if (version < 1 || version > BinarySnapshotWriter.VERSION) {
+            throw new IOException("Unsupported snapshot version " + version);
+        }
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public int readInt() throws IOException {
+        require(4);
+        return buffer.getInt();
+    }
+
+    public int readVarint() throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            require(1);
+            byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint in snapshot");
+    }
+
+    public long readSignedVarlong() throws IOException {
+        long zigzag = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            require(1);
+            byte b = buffer.get();
+            zigzag |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return (zigzag >>> 1) ^ -(zigzag & 1);
+            }
+        }
+        throw new IOException("Malformed varint in snapshot");
+    }
+
+    public double readDouble() throws IOException {
+        require(8);
+        return buffer.getDouble();
+    }
+
+    public String readString() throws IOException {
+        byte[] bytes = new byte[readVarint()];
+        int offset = 0;
+        while (offset < bytes.length) {
+            require(1);
+            int length = Math.min(buffer.remaining(), bytes.length - offset);
+            buffer.get(bytes, offset, length);
+            offset += length;
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private void require(int bytes) throws IOException {
+        if (buffer.remaining() >= bytes) {
+            return;
+        }
+        // Checksum the consumed bytes, keep the unread ones and read up to the checksum
+        ByteBuffer done = buffer.duplicate();
+        done.flip();
+        crc.update(done);
+        buffer.compact();
+        long remainingInFile = dataEnd - position;
+        if (buffer.remaining() > remainingInFile) {
+            buffer.limit(buffer.position() + (int) remainingInFile);
+        }
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read <= 0) {
+                break;
+            }
+            position += read;
+        }
+        buffer.flip();
+        if (buffer.remaining() < bytes) {
+            throw new EOFException("Snapshot is truncated");
+        }
+    }
+
+    // Checks that all data was read and matches the stored checksum
+    public void finish() throws IOException {
+        if (buffer.hasRemaining() || position != dataEnd) {
+            throw new IOException("Unexpected data at the end of the snapshot");
+        }
+        ByteBuffer done = buffer.duplicate();
+        done.flip();
+        crc.update(done);
+        ByteBuffer stored = ByteBuffer.allocate(4);
+        channel.read(stored, dataEnd);
+        if (stored.getInt(0) != (int) crc.getValue()) {
+            throw new IOException("Snapshot checksum mismatch");
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
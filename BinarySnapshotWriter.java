@@ -0,0 +1,108 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.zip.CRC32;
+
+// File format of PRS-Snapshot.bin:
+//   magic "PRSB", int version
+//   sections written by PatientRecordSystem using varints, length-prefixed UTF-8 strings
+//   and raw big-endian IEEE-754 doubles
+//   int CRC32 of everything before it
+// Version 2 adds the recorded-at time of measurement observations, stored as the zigzag
+// varint difference from the previous row.
+// Version 3 adds, after the categories of each category observation type, the unlisted
+// categories that loaded rows have, so their ordinals survive a save.
+//
+// Writes a binary snapshot through a FileChannel
+class BinarySnapshotWriter implements Closeable {
+    static final int MAGIC = 0x50525342;
+    static final int VERSION = 3;
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private final CRC32 crc;
+
+    public BinarySnapshotWriter(Path file) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        buffer = ByteBuffer.allocateDirect(1 << 20);
+        crc = new CRC32();
+        writeInt(MAGIC);
+        writeInt(VERSION);
+    }
+
+    public void writeInt(int value) throws IOException {
+        ensure(4);
+        buffer.putInt(value);
+    }
+
+    // Unsigned LEB128: 7 bits per byte, high bit set on all but the last byte
+    public void writeVarint(int value) throws IOException {
+        ensure(5);
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    // Zigzag encoding maps small negative values to small unsigned ones, then LEB128
+    public void writeSignedVarlong(long value) throws IOException {
+        ensure(10);
+        long zigzag = (value << 1) ^ (value >> 63);
+        while ((zigzag & ~0x7FL) != 0) {
+            buffer.put((byte) ((zigzag & 0x7F) | 0x80));
+            zigzag >>>= 7;
+        }
+        buffer.put((byte) zigzag);
+    }
+
+    public void writeDouble(double value) throws IOException {
+        ensure(8);
+        buffer.putDouble(value);
+    }
+
+    public void writeString(String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarint(bytes.length);
+        int offset = 0;
+        while (offset < bytes.length) {
+            ensure(1);
+            int length = Math.min(buffer.remaining(), bytes.length - offset);
+            buffer.put(bytes, offset, length);
+            offset += length;
+        }
+    }
+
+    private void ensure(int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            flush();
+        }
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        crc.update(buffer.duplicate());
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    // Writes the checksum and forces the file to disk
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+            buffer.putInt((int) crc.getValue());
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        } finally {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,38 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+
+// Reads the file through a large heap buffer that is refilled from a FileChannel
+class BufferedRecordFileReader extends ByteRecordFileReader {
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private final FileChannel channel;
+
+    public BufferedRecordFileReader(Path file) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.READ);
+        buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        buffer.limit(0);
+    }
+
+    @Override
+    protected int fill(int keepFrom) throws IOException {
+        buffer.position(keepFrom);
+        buffer.compact();
+        if (!buffer.hasRemaining()) {
+            // A single line is longer than the buffer
+            ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() * 2);
+            buffer.flip();
+            larger.put(buffer);
+            buffer = larger;
+        }
+        channel.read(buffer);
+        buffer.flip();
+        return 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
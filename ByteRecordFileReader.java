@@ -0,0 +1,251 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.*;
+
+// Splits lines directly in a byte buffer. Fields are kept as offsets into the buffer, numbers
+// are parsed from the bytes, and a string field that repeats the previous line's value (such
+// as the patient ID of consecutive observations) reuses the previous String.
+// Subclasses supply the bytes through fill().
+abstract class ByteRecordFileReader implements RecordFileReader {
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    protected ByteBuffer buffer;
+    private final Charset charset;
+    private int position;
+    private int[] fieldStarts;
+    private int[] fieldEnds;
+    private int fieldCount;
+    private byte[][] previousBytes;
+    private int[] previousLengths;
+    private String[] previousStrings;
+
+    protected ByteRecordFileReader() {
+        // PrintWriter and Scanner in saveData and the old loader use the default charset
+        charset = Charset.defaultCharset();
+        fieldStarts = new int[4];
+        fieldEnds = new int[4];
+        previousBytes = new byte[4][];
+        previousLengths = new int[4];
+        previousStrings = new String[4];
+    }
+
+    // Makes more bytes available. The bytes from keepFrom to the buffer limit must be kept;
+    // returns the index they start at afterwards. No new bytes means the end of the file.
+    protected abstract int fill(int keepFrom) throws IOException;
+
+    // Lines end at "\n", "\r\n" or a lone "\r", as with Scanner.nextLine()
+    @Override
+    public boolean nextLine() throws IOException {
+        int scan = position;
+        while (true) {
+            int limit = buffer.limit();
+            int i = scan;
+            for (; i < limit; i++) {
+                byte b = buffer.get(i);
+                if (b == '\n' || b == '\r') {
+                    if (b == '\r' && i + 1 == limit) {
+                        // Need the next byte to tell "\r\n" from a lone "\r"
+                        break;
+                    }
+                    splitLine(position, i);
+                    position = b == '\r' && buffer.get(i + 1) == '\n' ? i + 2 : i + 1;
+                    return true;
+                }
+            }
+            int scanned = i - position;
+            int available = limit - position;
+            position = fill(position);
+            scan = position + scanned;
+            if (position + available == buffer.limit()) {
+                // End of file: the rest is a last line without a line separator
+                if (available == 0) {
+                    return false;
+                }
+                splitLine(position, buffer.limit());
+                position = buffer.limit();
+                return true;
+            }
+        }
+    }
+
+    private void splitLine(int start, int end) {
+        if (end > start && buffer.get(end - 1) == '\r') {
+            end--;
+        }
+        fieldCount = 0;
+        int fieldStart = start;
+        for (int i = start; i <= end; i++) {
+            if (i == end || buffer.get(i) == ';') {
+                if (fieldCount == fieldStarts.length) {
+                    fieldStarts = Arrays.copyOf(fieldStarts, fieldCount * 2);
+                    fieldEnds = Arrays.copyOf(fieldEnds, fieldCount * 2);
+                }
+                fieldStarts[fieldCount] = fieldStart;
+                fieldEnds[fieldCount] = i;
+                fieldCount++;
+                fieldStart = i + 1;
+            }
+        }
+        // Like String.split, drop trailing empty fields unless the line itself is empty
+        if (end > start) {
+            while (fieldCount > 0 && fieldStarts[fieldCount - 1] == fieldEnds[fieldCount - 1]) {
+                fieldCount--;
+            }
+        }
+    }
+
+    @Override
+    public int fieldCount() {
+        return fieldCount;
+    }
+
+    @Override
+    public String field(int index) {
+        checkField(index);
+        int start = fieldStarts[index];
+        int length = fieldEnds[index] - start;
+        if (index >= previousStrings.length) {
+            int capacity = Math.max(index + 1, previousStrings.length * 2);
+            previousBytes = Arrays.copyOf(previousBytes, capacity);
+            previousLengths = Arrays.copyOf(previousLengths, capacity);
+            previousStrings = Arrays.copyOf(previousStrings, capacity);
+        }
+        byte[] previous = previousBytes[index];
+        if (previous != null && previousLengths[index] == length && sameBytes(previous, start, length)) {
+            return previousStrings[index];
+        }
+        if (previous == null || previous.length < length) {
+            previous = new byte[Math.max(length, 16)];
+            previousBytes[index] = previous;
+        }
+        buffer.get(start, previous, 0, length);
+        String value = new String(previous, 0, length, charset);
+        previousLengths[index] = length;
+        previousStrings[index] = value;
+        return value;
+    }
+
+    private boolean sameBytes(byte[] previous, int start, int length) {
+        for (int i = 0; i < length; i++) {
+            if (previous[i] != buffer.get(start + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Parses plain decimal numbers, as written by Double.toString, straight from the buffer.
+    // Anything the fast path cannot parse exactly goes through Double.parseDouble.
+    @Override
+    public double doubleField(int index) {
+        checkField(index);
+        int start = fieldStarts[index];
+        int end = fieldEnds[index];
+        int i = start;
+        boolean negative = false;
+        if (i < end && (buffer.get(i) == '-' || buffer.get(i) == '+')) {
+            negative = buffer.get(i) == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int significantDigits = 0;
+        int exponent = 0;
+        boolean anyDigits = false;
+        boolean fraction = false;
+        for (; i < end; i++) {
+            byte b = buffer.get(i);
+            if (b >= '0' && b <= '9') {
+                anyDigits = true;
+                if (mantissa != 0 || b != '0') {
+                    if (++significantDigits > 15) {
+                        return slowDoubleField(index);
+                    }
+                    mantissa = mantissa * 10 + (b - '0');
+                }
+                if (fraction) {
+                    exponent--;
+                }
+            } else if (b == '.' && !fraction) {
+                fraction = true;
+            } else {
+                break;
+            }
+        }
+        if (!anyDigits) {
+            return slowDoubleField(index);
+        }
+        if (i < end) {
+            byte b = buffer.get(i);
+            if (b != 'E' && b != 'e' || ++i == end) {
+                return slowDoubleField(index);
+            }
+            boolean negativeExponent = false;
+            if (buffer.get(i) == '-' || buffer.get(i) == '+') {
+                negativeExponent = buffer.get(i) == '-';
+                if (++i == end) {
+                    return slowDoubleField(index);
+                }
+            }
+            int written = 0;
+            for (; i < end; i++) {
+                b = buffer.get(i);
+                if (b < '0' || b > '9' || written > 10000) {
+                    return slowDoubleField(index);
+                }
+                written = written * 10 + (b - '0');
+            }
+            exponent += negativeExponent ? -written : written;
+        }
+        double value;
+        if (mantissa == 0) {
+            value = 0.0;
+        } else if (exponent >= 0 && exponent < POWERS_OF_TEN.length) {
+            value = mantissa * POWERS_OF_TEN[exponent];
+        } else if (exponent < 0 && -exponent < POWERS_OF_TEN.length) {
+            value = mantissa / POWERS_OF_TEN[-exponent];
+        } else {
+            return slowDoubleField(index);
+        }
+        return negative ? -value : value;
+    }
+
+    // Parses up to 18 digits straight from the buffer; anything longer or malformed goes
+    // through Long.parseLong
+    @Override
+    public long longField(int index) {
+        checkField(index);
+        int start = fieldStarts[index];
+        int end = fieldEnds[index];
+        int i = start;
+        boolean negative = i < end && buffer.get(i) == '-';
+        if (negative || i < end && buffer.get(i) == '+') {
+            i++;
+        }
+        if (i == end || end - i > 18) {
+            return Long.parseLong(field(index));
+        }
+        long value = 0;
+        for (; i < end; i++) {
+            byte b = buffer.get(i);
+            if (b < '0' || b > '9') {
+                return Long.parseLong(field(index));
+            }
+            value = value * 10 + (b - '0');
+        }
+        return negative ? -value : value;
+    }
+
+    private double slowDoubleField(int index) {
+        return Double.parseDouble(field(index));
+    }
+
+    private void checkField(int index) {
+        if (index < 0 || index >= fieldCount) {
+            throw new IndexOutOfBoundsException("Field: " + index + ", Fields: " + fieldCount);
+        }
+    }
+}
@@ -0,0 +1,280 @@
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.util.stream.*;
+
+// Compressed set of patient ordinals after Roaring bitmaps: ordinals are grouped by their
+// upper 16 bits, and each group is a sorted char array while it holds at most
+// ARRAY_LIMIT ordinals and a 65536-bit bitmap after that. The count is kept up to date, so
+// reading it never walks the set.
+//
+// Adds hold the set lock. Iteration copies one group at a time under the lock, so readers
+// see a consistent group and never hold the lock for the whole set.
+class PatientBitmap {
+    private static final int ARRAY_LIMIT = 4096;
+
+    private char[] keys = new char[4];
+    // char[] (sorted, length may exceed the used size) or long[1024]
+    private Object[] groups = new Object[4];
+    private int[] groupSizes = new int[4];
+    private int groupCount;
+    private volatile int cardinality;
+
+    // Returns false if the ordinal was already in the set
+    public synchronized boolean add(int ordinal) {
+        char key = (char) (ordinal >>> 16);
+        char low = (char) ordinal;
+        int index = indexOfKey(key);
+        if (index < 0) {
+            index = -index - 1;
+            insertGroup(index, key);
+        }
+        Object group = groups[index];
+        int size = groupSizes[index];
+        if (group instanceof long[]) {
+            long[] words = (long[]) group;
+            long bit = 1L << low;
+            if ((words[low >>> 6] & bit) != 0) {
+                return false;
+            }
+            words[low >>> 6] |= bit;
+        } else {
+            char[] values = (char[]) group;
+            int position = Arrays.binarySearch(values, 0, size, low);
+            if (position >= 0) {
+                return false;
+            }
+            position = -position - 1;
+            if (size == ARRAY_LIMIT) {
+                long[] words = new long[1024];
+                for (int i = 0; i < size; i++) {
+                    words[values[i] >>> 6] |= 1L << values[i];
+                }
+                words[low >>> 6] |= 1L << low;
+                groups[index] = words;
+            } else {
+                if (size == values.length) {
+                    values = Arrays.copyOf(values, Math.min(ARRAY_LIMIT, size * 2));
+                    groups[index] = values;
+                }
+                System.arraycopy(values, position, values, position + 1, size - position);
+                values[position] = low;
+            }
+        }
+        groupSizes[index] = size + 1;
+        cardinality++;
+        return true;
+    }
+
+    public synchronized boolean contains(int ordinal) {
+        int index = indexOfKey((char) (ordinal >>> 16));
+        if (index < 0) {
+            return false;
+        }
+        char low = (char) ordinal;
+        Object group = groups[index];
+        if (group instanceof long[]) {
+            return (((long[]) group)[low >>> 6] & (1L << low)) != 0;
+        }
+        return Arrays.binarySearch((char[]) group, 0, groupSizes[index], low) >= 0;
+    }
+
+    public int size() {
+        return cardinality;
+    }
+
+    // Clears every bit of words whose ordinal is not in the set
+    public synchronized void retainIn(long[] words) {
+        int word = 0;
+        for (int i = 0; i < groupCount && word < words.length; i++) {
+            int base = keys[i] << 10;
+            if (base >= words.length) {
+                break;
+            }
+            Arrays.fill(words, word, base, 0);
+            int end = Math.min(words.length, base + 1024);
+            if (groups[i] instanceof long[]) {
+                long[] groupWords = (long[]) groups[i];
+                for (int w = base; w < end; w++) {
+                    words[w] &= groupWords[w - base];
+                }
+            } else {
+                char[] values = (char[]) groups[i];
+                long[] groupWords = new long[1024];
+                for (int j = 0; j < groupSizes[i]; j++) {
+                    groupWords[values[j] >>> 6] |= 1L << values[j];
+                }
+                for (int w = base; w < end; w++) {
+                    words[w] &= groupWords[w - base];
+                }
+            }
+            word = end;
+        }
+        Arrays.fill(words, word, words.length, 0);
+    }
+
+    // Ordinals in ascending order
+    public PrimitiveIterator.OfInt iterator() {
+        return new PrimitiveIterator.OfInt() {
+            private int nextKey;
+            private int[] buffer = new int[0];
+            private int bufferSize;
+            private int position;
+
+            @Override
+            public boolean hasNext() {
+                while (position == bufferSize) {
+                    if (nextKey > 0xFFFF || !fill()) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+
+            @Override
+            public int nextInt() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return buffer[position++];
+            }
+
+            // Copies the first group whose key is at least nextKey; groups are found by key,
+            // so groups inserted in the meantime do not throw the iteration off
+            private boolean fill() {
+                synchronized (PatientBitmap.this) {
+                    int index = indexOfKey((char) nextKey);
+                    if (index < 0) {
+                        index = -index - 1;
+                    }
+                    if (index == groupCount) {
+                        return false;
+                    }
+                    int base = keys[index] << 16;
+                    int size = groupSizes[index];
+                    if (buffer.length < size) {
+                        buffer = new int[Math.max(size, Math.min(65536, buffer.length * 2))];
+                    }
+                    if (groups[index] instanceof long[]) {
+                        long[] words = (long[]) groups[index];
+                        int n = 0;
+                        for (int w = 0; w < words.length; w++) {
+                            for (long word = words[w]; word != 0; word &= word - 1) {
+                                buffer[n++] = base | (w << 6) | Long.numberOfTrailingZeros(word);
+                            }
+                        }
+                    } else {
+                        char[] values = (char[]) groups[index];
+                        for (int i = 0; i < size; i++) {
+                            buffer[i] = base | values[i];
+                        }
+                    }
+                    bufferSize = size;
+                    position = 0;
+                    nextKey = keys[index] + 1;
+                    return true;
+                }
+            }
+        };
+    }
+
+    public IntStream stream() {
+        return StreamSupport.intStream(Spliterators.spliteratorUnknownSize(iterator(),
+                Spliterator.ORDERED | Spliterator.SORTED | Spliterator.DISTINCT | Spliterator.NONNULL), false);
+    }
+
+    private int indexOfKey(char key) {
+        int low = 0;
+        int high = groupCount - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (keys[middle] < key) {
+                low = middle + 1;
+            } else if (keys[middle] > key) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -(low + 1);
+    }
+
+    private void insertGroup(int index, char key) {
+        if (groupCount == keys.length) {
+            keys = Arrays.copyOf(keys, groupCount * 2);
+            groups = Arrays.copyOf(groups, groupCount * 2);
+            groupSizes = Arrays.copyOf(groupSizes, groupCount * 2);
+        }
+        System.arraycopy(keys, index, keys, index + 1, groupCount - index);
+        System.arraycopy(groups, index, groups, index + 1, groupCount - index);
+        System.arraycopy(groupSizes, index, groupSizes, index + 1, groupCount - index);
+        keys[index] = key;
+        groups[index] = new char[4];
+        groupSizes[index] = 0;
+        groupCount++;
+    }
+}
+
+// The patients with at least one observation of each (category type, category), by type
+// ordinal and then category ordinal. Lookups never lock; a missing set is created under the
+// index lock.
+class CategoryIndex {
+    private volatile AtomicReferenceArray<PatientBitmap[]> bitmaps;
+
+    public CategoryIndex() {
+        bitmaps = new AtomicReferenceArray<>(16);
+    }
+
+    public void add(int typeOrdinal, int categoryOrdinal, int patientOrdinal) {
+        PatientBitmap target = get(typeOrdinal, categoryOrdinal);
+        if (target == null) {
+            target = create(typeOrdinal, categoryOrdinal);
+        }
+        target.add(patientOrdinal);
+    }
+
+    // Returns the patients, or null if no patient has that category yet
+    public PatientBitmap get(int typeOrdinal, int categoryOrdinal) {
+        AtomicReferenceArray<PatientBitmap[]> current = bitmaps;
+        if (typeOrdinal >= current.length()) {
+            return null;
+        }
+        PatientBitmap[] byCategory = current.get(typeOrdinal);
+        return byCategory != null && categoryOrdinal < byCategory.length ? byCategory[categoryOrdinal] : null;
+    }
+
+    public synchronized void clear() {
+        bitmaps = new AtomicReferenceArray<>(16);
+    }
+
+    // Replaces every set with the rows of the store
+    public synchronized void load(CategoryObservationStore store) {
+        bitmaps = new AtomicReferenceArray<>(16);
+        for (int row = 0; row < store.size(); row++) {
+            add(store.typeOrdinal(row), store.categoryOrdinal(row), store.patientOrdinal(row));
+        }
+    }
+
+    // The per-type arrays are copied on write, so readers never see one change
+    private synchronized PatientBitmap create(int typeOrdinal, int categoryOrdinal) {
+        AtomicReferenceArray<PatientBitmap[]> current = bitmaps;
+        if (typeOrdinal >= current.length()) {
+            AtomicReferenceArray<PatientBitmap[]> larger = new AtomicReferenceArray<>(Math.max(typeOrdinal + 1, current.length() * 2));
+            for (int i = 0; i < current.length(); i++) {
+                larger.set(i, current.get(i));
+            }
+            current = larger;
+            bitmaps = current;
+        }
+        PatientBitmap[] byCategory = current.get(typeOrdinal);
+        if (byCategory != null && categoryOrdinal < byCategory.length && byCategory[categoryOrdinal] != null) {
+            return byCategory[categoryOrdinal];
+        }
+        PatientBitmap[] newByCategory = byCategory == null
+                ? new PatientBitmap[categoryOrdinal + 1]
+                : Arrays.copyOf(byCategory, Math.max(byCategory.length, categoryOrdinal + 1));
+        PatientBitmap created = new PatientBitmap();
+        newByCategory[categoryOrdinal] = created;
+        current.set(typeOrdinal, newByCategory);
+        return created;
+    }
+}
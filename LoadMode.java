@@ -0,0 +1,7 @@
+// How loadData reads the PRS-*.txt files
+public enum LoadMode {
+    SCANNER,
+    BUFFERED,
+    MAPPED,
+    PARALLEL
+}
@@ -0,0 +1,54 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+
+// Reads the file through FileChannel.map. Files larger than one window (a mapping is limited
+// to 2 GB) are mapped window by window, each new window starting at the first unread line.
+class MappedRecordFileReader extends ByteRecordFileReader {
+    private static final int DEFAULT_WINDOW_SIZE = 1 << 28;
+
+    private final FileChannel channel;
+    private final long end;
+    private int windowSize;
+    private long windowStart;
+
+    public MappedRecordFileReader(Path file) throws IOException {
+        this(file, 0, Long.MAX_VALUE, DEFAULT_WINDOW_SIZE);
+    }
+
+    public MappedRecordFileReader(Path file, int windowSize) throws IOException {
+        this(file, 0, Long.MAX_VALUE, windowSize);
+    }
+
+    // Reads only the bytes from start to end, which should be line boundaries
+    public MappedRecordFileReader(Path file, long start, long end) throws IOException {
+        this(file, start, end, DEFAULT_WINDOW_SIZE);
+    }
+
+    public MappedRecordFileReader(Path file, long start, long end, int windowSize) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.READ);
+        this.end = Math.min(end, channel.size());
+        this.windowSize = windowSize;
+        windowStart = start;
+        buffer = ByteBuffer.allocate(0);
+    }
+
+    @Override
+    protected int fill(int keepFrom) throws IOException {
+        long start = windowStart + keepFrom;
+        if (keepFrom == 0 && buffer.limit() == windowSize && windowSize < Integer.MAX_VALUE) {
+            // A single line is longer than the window
+            windowSize = (int) Math.min(Integer.MAX_VALUE, windowSize * 2L);
+        }
+        long size = Math.min(windowSize, end - start);
+        buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+        windowStart = start;
+        return 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
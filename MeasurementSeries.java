@@ -0,0 +1,235 @@
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+// Measurements of one type for one patient, ordered by recorded-at time in primitive arrays.
+// Range queries binary-search the timestamps and the latest value is the last element.
+//
+// Readers take the current Samples without locking. Appends in time order write past the
+// published size and then publish a new Samples; an out-of-order sample copies the arrays,
+// so the elements a reader can see are never moved.
+class MeasurementSeries {
+    private static final class Samples {
+        final long[] times;
+        final double[] values;
+        final int size;
+
+        Samples(long[] times, double[] values, int size) {
+            this.times = times;
+            this.values = values;
+            this.size = size;
+        }
+    }
+
+    private volatile Samples samples;
+
+    public MeasurementSeries() {
+        samples = new Samples(new long[4], new double[4], 0);
+    }
+
+    // Takes over the arrays, which hold samples in the order they were added
+    public MeasurementSeries(long[] times, double[] values) {
+        for (int i = 1; i < times.length; i++) {
+            if (times[i - 1] > times[i]) {
+                // Stable sort, so samples with equal times keep their order
+                Integer[] order = new Integer[times.length];
+                for (int j = 0; j < order.length; j++) {
+                    order[j] = j;
+                }
+                Arrays.sort(order, Comparator.comparingLong(j -> times[j]));
+                long[] sortedTimes = new long[times.length];
+                double[] sortedValues = new double[times.length];
+                for (int j = 0; j < order.length; j++) {
+                    sortedTimes[j] = times[order[j]];
+                    sortedValues[j] = values[order[j]];
+                }
+                samples = new Samples(sortedTimes, sortedValues, times.length);
+                return;
+            }
+        }
+        samples = new Samples(times, values, times.length);
+    }
+
+    // Samples with equal times keep the order they were added in
+    public synchronized void add(long recordedAt, double value) {
+        Samples current = samples;
+        int size = current.size;
+        long[] times = current.times;
+        double[] values = current.values;
+        if (size == 0 || times[size - 1] <= recordedAt) {
+            if (size == times.length) {
+                times = Arrays.copyOf(times, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+            }
+            times[size] = recordedAt;
+            values[size] = value;
+        } else {
+            int index = upperBound(current, recordedAt);
+            long[] newTimes = new long[Math.max(times.length, size + 1)];
+            double[] newValues = new double[newTimes.length];
+            System.arraycopy(times, 0, newTimes, 0, index);
+            System.arraycopy(values, 0, newValues, 0, index);
+            newTimes[index] = recordedAt;
+            newValues[index] = value;
+            System.arraycopy(times, index, newTimes, index + 1, size - index);
+            System.arraycopy(values, index, newValues, index + 1, size - index);
+            times = newTimes;
+            values = newValues;
+        }
+        samples = new Samples(times, values, size + 1);
+    }
+
+    public int size() {
+        return samples.size;
+    }
+
+    // Returns the latest measurement, or null if there is none
+    public MeasurementObservation latest(Patient patient, MeasurementObservationType type) {
+        Samples current = samples;
+        if (current.size == 0) {
+            return null;
+        }
+        return new MeasurementObservation(patient, type, current.values[current.size - 1], current.times[current.size - 1]);
+    }
+
+    // Returns the measurements recorded at from (inclusive) to to (exclusive), oldest first
+    public List<MeasurementObservation> range(Patient patient, MeasurementObservationType type, long from, long to) {
+        Samples current = samples;
+        int start = lowerBound(current, from);
+        int end = Math.max(start, lowerBound(current, to));
+        List<MeasurementObservation> result = new ArrayList<>(end - start);
+        for (int i = start; i < end; i++) {
+            result.add(new MeasurementObservation(patient, type, current.values[i], current.times[i]));
+        }
+        return result;
+    }
+
+    // First index whose time is at least time
+    private static int lowerBound(Samples samples, long time) {
+        int low = 0;
+        int high = samples.size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (samples.times[middle] < time) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    // First index whose time is greater than time
+    private static int upperBound(Samples samples, long time) {
+        int low = 0;
+        int high = samples.size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (samples.times[middle] <= time) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+}
+
+// The series of every (patient, measurement type) pair, found by patient ordinal and then
+// type ordinal. Lookups never lock; a missing series is created under the index lock.
+class MeasurementSeriesIndex {
+    private volatile AtomicReferenceArray<MeasurementSeries[]> series;
+
+    public MeasurementSeriesIndex() {
+        series = new AtomicReferenceArray<>(16);
+    }
+
+    public void add(int patientOrdinal, int typeOrdinal, long recordedAt, double value) {
+        MeasurementSeries target = get(patientOrdinal, typeOrdinal);
+        if (target == null) {
+            target = create(patientOrdinal, typeOrdinal);
+        }
+        target.add(recordedAt, value);
+    }
+
+    // Returns the series, or null if the patient has no measurements of that type
+    public MeasurementSeries get(int patientOrdinal, int typeOrdinal) {
+        AtomicReferenceArray<MeasurementSeries[]> current = series;
+        if (patientOrdinal >= current.length()) {
+            return null;
+        }
+        MeasurementSeries[] byType = current.get(patientOrdinal);
+        return byType != null && typeOrdinal < byType.length ? byType[typeOrdinal] : null;
+    }
+
+    public synchronized void clear() {
+        series = new AtomicReferenceArray<>(16);
+    }
+
+    // Replaces every series with the rows of the store. Rows are grouped by (patient, type)
+    // with a counting sort, so each series is filled in one go instead of one add per row.
+    // Falls back to adding row by row when there are far more pairs than rows.
+    public synchronized void load(MeasurementObservationStore store, int patientCount, int typeCount) {
+        int rows = store.size();
+        long pairs = (long) patientCount * typeCount;
+        series = new AtomicReferenceArray<>(Math.max(16, patientCount));
+        if (pairs > Math.max(1 << 20, rows * 4L)) {
+            for (int row = 0; row < rows; row++) {
+                add(store.patientOrdinal(row), store.typeOrdinal(row), store.recordedAt(row), store.value(row));
+            }
+            return;
+        }
+        int[] starts = new int[(int) pairs + 1];
+        for (int row = 0; row < rows; row++) {
+            starts[store.patientOrdinal(row) * typeCount + store.typeOrdinal(row) + 1]++;
+        }
+        for (int pair = 0; pair < pairs; pair++) {
+            starts[pair + 1] += starts[pair];
+        }
+        int[] next = Arrays.copyOf(starts, (int) pairs);
+        long[] times = new long[rows];
+        double[] values = new double[rows];
+        for (int row = 0; row < rows; row++) {
+            int position = next[store.patientOrdinal(row) * typeCount + store.typeOrdinal(row)]++;
+            times[position] = store.recordedAt(row);
+            values[position] = store.value(row);
+        }
+        for (int patient = 0; patient < patientCount; patient++) {
+            MeasurementSeries[] byType = null;
+            for (int type = 0; type < typeCount; type++) {
+                int from = starts[patient * typeCount + type];
+                int to = starts[patient * typeCount + type + 1];
+                if (from < to) {
+                    if (byType == null) {
+                        byType = new MeasurementSeries[typeCount];
+                    }
+                    byType[type] = new MeasurementSeries(Arrays.copyOfRange(times, from, to), Arrays.copyOfRange(values, from, to));
+                }
+            }
+            series.set(patient, byType);
+        }
+    }
+
+    // The per-patient arrays are copied on write, so readers never see one change
+    private synchronized MeasurementSeries create(int patientOrdinal, int typeOrdinal) {
+        AtomicReferenceArray<MeasurementSeries[]> current = series;
+        if (patientOrdinal >= current.length()) {
+            AtomicReferenceArray<MeasurementSeries[]> larger = new AtomicReferenceArray<>(Math.max(patientOrdinal + 1, current.length() * 2));
+            for (int i = 0; i < current.length(); i++) {
+                larger.set(i, current.get(i));
+            }
+            current = larger;
+            series = current;
+        }
+        MeasurementSeries[] byType = current.get(patientOrdinal);
+        if (byType != null && typeOrdinal < byType.length && byType[typeOrdinal] != null) {
+            return byType[typeOrdinal];
+        }
+        MeasurementSeries[] newByType = byType == null
+                ? new MeasurementSeries[typeOrdinal + 1]
+                : Arrays.copyOf(byType, Math.max(byType.length, typeOrdinal + 1));
+        MeasurementSeries created = new MeasurementSeries();
+        newByType[typeOrdinal] = created;
+        current.set(patientOrdinal, newByType);
+        return created;
+    }
+}
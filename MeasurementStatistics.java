@@ -0,0 +1,335 @@
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+// Running statistics of one measurement type: count, min, max, mean and variance with
+// Welford's algorithm, and a quantile sketch for the median and p95. Statistics of separate
+// parts of the data can be merged. Non-finite values are not counted.
+class MeasurementStatistics {
+    private long count;
+    private double min = Double.NaN;
+    private double max = Double.NaN;
+    private double mean = Double.NaN;
+    // Sum of squared differences from the mean
+    private double m2;
+    private final QuantileSketch sketch;
+
+    public MeasurementStatistics() {
+        sketch = new QuantileSketch();
+    }
+
+    private MeasurementStatistics(MeasurementStatistics other) {
+        count = other.count;
+        min = other.min;
+        max = other.max;
+        mean = other.mean;
+        m2 = other.m2;
+        sketch = other.sketch.copy();
+    }
+
+    public synchronized void add(double value) {
+        if (!Double.isFinite(value)) {
+            return;
+        }
+        count++;
+        if (count == 1) {
+            min = value;
+            max = value;
+            mean = value;
+        } else {
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+            double delta = value - mean;
+            mean += delta / count;
+            m2 += delta * (value - mean);
+        }
+        sketch.add(value);
+    }
+
+    // Combines the statistics of two disjoint sets of values (Chan et al.)
+    public void merge(MeasurementStatistics other) {
+        MeasurementStatistics source = other.copy();
+        synchronized (this) {
+            if (source.count == 0) {
+                return;
+            }
+            if (count == 0) {
+                min = source.min;
+                max = source.max;
+                mean = source.mean;
+                m2 = source.m2;
+            } else {
+                long total = count + source.count;
+                double delta = source.mean - mean;
+                min = Math.min(min, source.min);
+                max = Math.max(max, source.max);
+                mean += delta * source.count / total;
+                m2 += source.m2 + delta * delta * count / total * source.count;
+            }
+            count += source.count;
+            sketch.merge(source.sketch);
+        }
+    }
+
+    public synchronized MeasurementStatistics copy() {
+        return new MeasurementStatistics(this);
+    }
+
+    // Getters
+    public synchronized long getCount() {
+        return count;
+    }
+
+    public synchronized double getMin() {
+        return min;
+    }
+
+    public synchronized double getMax() {
+        return max;
+    }
+
+    public synchronized double getMean() {
+        return mean;
+    }
+
+    // Sample variance; NaN for fewer than two values
+    public synchronized double getVariance() {
+        return count < 2 ? Double.NaN : m2 / (count - 1);
+    }
+
+    public double getStandardDeviation() {
+        return Math.sqrt(getVariance());
+    }
+
+    // Approximate quantile, within QuantileSketch.RELATIVE_ACCURACY of an actual value
+    public synchronized double getQuantile(double quantile) {
+        if (quantile < 0 || quantile > 1) {
+            throw new IllegalArgumentException("Quantile must be between 0 and 1: " + quantile);
+        }
+        if (count == 0) {
+            return Double.NaN;
+        }
+        return Math.max(min, Math.min(max, sketch.quantile(quantile)));
+    }
+
+    public double getMedian() {
+        return getQuantile(0.5);
+    }
+
+    public double getP95() {
+        return getQuantile(0.95);
+    }
+}
+
+// Mergeable quantile sketch after DDSketch: values are counted in buckets whose bounds grow
+// by a constant factor, so any quantile is estimated within a fixed relative error. Memory is
+// bounded by MAX_BUCKETS per sign; past that the lowest buckets are folded together, which
+// only costs accuracy for the smallest magnitudes.
+class QuantileSketch {
+    static final double RELATIVE_ACCURACY = 0.01;
+    private static final double GAMMA = (1 + RELATIVE_ACCURACY) / (1 - RELATIVE_ACCURACY);
+    private static final double LOG_GAMMA = Math.log(GAMMA);
+    private static final int MAX_BUCKETS = 2048;
+
+    private final Buckets positive;
+    private final Buckets negative;
+    private long zeroCount;
+    private long count;
+
+    public QuantileSketch() {
+        positive = new Buckets();
+        negative = new Buckets();
+    }
+
+    private QuantileSketch(QuantileSketch other) {
+        positive = other.positive.copy();
+        negative = other.negative.copy();
+        zeroCount = other.zeroCount;
+        count = other.count;
+    }
+
+    public void add(double value) {
+        if (value >= Double.MIN_NORMAL) {
+            positive.add(bucketIndex(value), 1);
+        } else if (value <= -Double.MIN_NORMAL) {
+            negative.add(bucketIndex(-value), 1);
+        } else {
+            zeroCount++;
+        }
+        count++;
+    }
+
+    public void merge(QuantileSketch other) {
+        positive.merge(other.positive);
+        negative.merge(other.negative);
+        zeroCount += other.zeroCount;
+        count += other.count;
+    }
+
+    public QuantileSketch copy() {
+        return new QuantileSketch(this);
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    // Walks the buckets in value order: negative values from the largest magnitude down,
+    // zeros, then positive values from the smallest magnitude up
+    public double quantile(double quantile) {
+        if (count == 0) {
+            return Double.NaN;
+        }
+        long rank = (long) (quantile * (count - 1));
+        if (rank < negative.total) {
+            return -bucketValue(negative.indexOfRank(negative.total - 1 - rank));
+        }
+        rank -= negative.total;
+        if (rank < zeroCount) {
+            return 0;
+        }
+        return bucketValue(positive.indexOfRank(rank - zeroCount));
+    }
+
+    private static int bucketIndex(double value) {
+        return (int) Math.ceil(Math.log(value) / LOG_GAMMA);
+    }
+
+    // The value with the same relative error to both bounds of the bucket
+    private static double bucketValue(int index) {
+        return 2 * Math.pow(GAMMA, index) / (GAMMA + 1);
+    }
+
+    // Counts per bucket index, in a dense array starting at offset
+    private static final class Buckets {
+        private long[] counts = new long[0];
+        private int offset;
+        private long total;
+
+        Buckets copy() {
+            Buckets copy = new Buckets();
+            copy.counts = counts.clone();
+            copy.offset = offset;
+            copy.total = total;
+            return copy;
+        }
+
+        void add(int index, long n) {
+            int low = counts.length == 0 ? index : Math.min(offset, index);
+            int high = counts.length == 0 ? index : Math.max(offset + counts.length - 1, index);
+            if (high - low + 1 > MAX_BUCKETS) {
+                low = high - MAX_BUCKETS + 1;
+            }
+            if (counts.length == 0 || low != offset || high - low + 1 > counts.length) {
+                int length = high - low + 1;
+                if (low == offset) {
+                    // Growing upwards: leave room for the next few buckets
+                    length = Math.min(MAX_BUCKETS, Math.max(length, counts.length * 2));
+                }
+                resize(low, length);
+            }
+            counts[Math.max(index, offset) - offset] += n;
+            total += n;
+        }
+
+        void merge(Buckets other) {
+            for (int i = 0; i < other.counts.length; i++) {
+                if (other.counts[i] != 0) {
+                    add(other.offset + i, other.counts[i]);
+                }
+            }
+        }
+
+        // Buckets below the new offset are folded into the first bucket
+        private void resize(int newOffset, int newLength) {
+            long[] resized = new long[newLength];
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] != 0) {
+                    resized[Math.max(offset + i, newOffset) - newOffset] += counts[i];
+                }
+            }
+            counts = resized;
+            offset = newOffset;
+        }
+
+        // Bucket index holding the value of the given rank, counting from the lowest index
+        int indexOfRank(long rank) {
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen > rank) {
+                    return offset + i;
+                }
+            }
+            return offset + counts.length - 1;
+        }
+    }
+}
+
+// Statistics of every measurement type, by type ordinal. Queries return a copy, so callers
+// can read several values that belong together.
+class MeasurementStatisticsIndex {
+    private volatile AtomicReferenceArray<MeasurementStatistics> statistics;
+
+    public MeasurementStatisticsIndex() {
+        statistics = new AtomicReferenceArray<>(16);
+    }
+
+    public void add(int typeOrdinal, double value) {
+        statisticsFor(typeOrdinal).add(value);
+    }
+
+    public void merge(int typeOrdinal, MeasurementStatistics other) {
+        statisticsFor(typeOrdinal).merge(other);
+    }
+
+    public MeasurementStatistics get(int typeOrdinal) {
+        AtomicReferenceArray<MeasurementStatistics> current = statistics;
+        MeasurementStatistics typeStatistics = typeOrdinal < current.length() ? current.get(typeOrdinal) : null;
+        return typeStatistics == null ? new MeasurementStatistics() : typeStatistics.copy();
+    }
+
+    public synchronized void clear() {
+        statistics = new AtomicReferenceArray<>(16);
+    }
+
+    // Replaces the statistics with those of every row of the store, in one pass
+    public synchronized void load(MeasurementObservationStore store, int typeCount) {
+        AtomicReferenceArray<MeasurementStatistics> loaded = new AtomicReferenceArray<>(Math.max(16, typeCount));
+        for (int type = 0; type < typeCount; type++) {
+            loaded.set(type, new MeasurementStatistics());
+        }
+        for (int row = 0; row < store.size(); row++) {
+            loaded.get(store.typeOrdinal(row)).add(store.value(row));
+        }
+        statistics = loaded;
+    }
+
+    private MeasurementStatistics statisticsFor(int typeOrdinal) {
+        AtomicReferenceArray<MeasurementStatistics> current = statistics;
+        if (typeOrdinal < current.length()) {
+            MeasurementStatistics typeStatistics = current.get(typeOrdinal);
+            if (typeStatistics != null) {
+                return typeStatistics;
+            }
+        }
+        return create(typeOrdinal);
+    }
+
+    private synchronized MeasurementStatistics create(int typeOrdinal) {
+        AtomicReferenceArray<MeasurementStatistics> current = statistics;
+        if (typeOrdinal >= current.length()) {
+            AtomicReferenceArray<MeasurementStatistics> larger = new AtomicReferenceArray<>(Math.max(typeOrdinal + 1, current.length() * 2));
+            for (int i = 0; i < current.length(); i++) {
+                larger.set(i, current.get(i));
+            }
+            current = larger;
+            statistics = current;
+        }
+        MeasurementStatistics typeStatistics = current.get(typeOrdinal);
+        if (typeStatistics == null) {
+            typeStatistics = new MeasurementStatistics();
+            current.set(typeOrdinal, typeStatistics);
+        }
+        return typeStatistics;
+    }
+}
@@ -0,0 +1,145 @@
+import java.util.*;
+
+// Observations collected for one call to PatientRecordSystem.addObservations. Rows are kept
+// in parallel arrays; row numbers in the BatchResult refer to the order of the add calls.
+class ObservationBatch {
+    private String[] patientIds;
+    private String[] codes;
+    private double[] values;
+    private long[] recordedAt;
+    // Category of each category row, null for measurement rows
+    private String[] categories;
+    private int size;
+
+    public ObservationBatch() {
+        this(1024);
+    }
+
+    public ObservationBatch(int expectedRows) {
+        int capacity = Math.max(16, expectedRows);
+        patientIds = new String[capacity];
+        codes = new String[capacity];
+        values = new double[capacity];
+        recordedAt = new long[capacity];
+        categories = new String[capacity];
+    }
+
+    // Records the observation as taken now
+    public void addMeasurement(String patientId, String observationTypeCode, double value) {
+        addMeasurement(patientId, observationTypeCode, value, System.currentTimeMillis());
+    }
+
+    public void addMeasurement(String patientId, String observationTypeCode, double value, long recordedAt) {
+        int row = nextRow();
+        patientIds[row] = patientId;
+        codes[row] = observationTypeCode;
+        values[row] = value;
+        this.recordedAt[row] = recordedAt;
+    }
+
+    public void addCategory(String patientId, String observationTypeCode, String category) {
+        int row = nextRow();
+        patientIds[row] = patientId;
+        codes[row] = observationTypeCode;
+        // A missing category still has to mark the row as a category row
+        categories[row] = category != null ? category : "";
+    }
+
+    private int nextRow() {
+        if (size == patientIds.length) {
+            int capacity = size * 2;
+            patientIds = Arrays.copyOf(patientIds, capacity);
+            codes = Arrays.copyOf(codes, capacity);
+            values = Arrays.copyOf(values, capacity);
+            recordedAt = Arrays.copyOf(recordedAt, capacity);
+            categories = Arrays.copyOf(categories, capacity);
+        }
+        return size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // Empties the batch so it can be reused for the next one
+    public void clear() {
+        Arrays.fill(patientIds, 0, size, null);
+        Arrays.fill(codes, 0, size, null);
+        Arrays.fill(categories, 0, size, null);
+        size = 0;
+    }
+
+    // Getters
+    public boolean isCategory(int row) {
+        return categories[row] != null;
+    }
+
+    public String getPatientId(int row) {
+        return patientIds[row];
+    }
+
+    public String getObservationTypeCode(int row) {
+        return codes[row];
+    }
+
+    public double getValue(int row) {
+        return values[row];
+    }
+
+    public long getRecordedAt(int row) {
+        return recordedAt[row];
+    }
+
+    public String getCategory(int row) {
+        return categories[row];
+    }
+}
+
+// A batch row that was rejected, with the message the single-row add method would have thrown
+class BatchError {
+    private final int row;
+    private final String message;
+
+    public BatchError(int row, String message) {
+        this.row = row;
+        this.message = message;
+    }
+
+    // Getters
+    public int getRow() {
+        return row;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    @Override
+    public String toString() {
+        return "Row " + row + ": " + message;
+    }
+}
+
+// Outcome of PatientRecordSystem.addObservations: every row is either added or listed as an error
+class BatchResult {
+    private final int addedCount;
+    private final List<BatchError> errors;
+
+    public BatchResult(int addedCount, List<BatchError> errors) {
+        this.addedCount = addedCount;
+        this.errors = Collections.unmodifiableList(errors);
+    }
+
+    public boolean hasErrors() {
+        return !errors.isEmpty();
+    }
+
+    // Getters
+    public int getAddedCount() {
+        return addedCount;
+    }
+
+    public List<BatchError> getErrors() {
+        return errors;
+    }
+}
@@ -0,0 +1,425 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.util.zip.*;
+
+// File format of PRS-Paged.bin:
+//   header: magic "PRSP", int version, int page size, int page count, long metadata offset
+//   pages of page size bytes, starting at HEADER_SIZE. Each page holds an int record count,
+//   the records, and an int CRC32 of everything before it in its last four bytes.
+//   metadata: types and patients in ordinal order, then the first and last patient ordinal
+//   of every page, then an int CRC32 of the metadata
+// Version 2 adds, after the categories of each category observation type, the unlisted
+// categories that loaded rows have.
+// Records are sorted by patient ordinal, so the records of one patient are on a few
+// neighbouring pages that the page index finds with a binary search. A record is
+//   int patient ordinal, byte kind, int type ordinal, then
+//   double value, long recorded-at time (measurement) or int category ordinal (category)
+class PagedObservations implements Closeable {
+    static final int MAGIC = 0x50525350;
+    static final int VERSION = 2;
+    static final int HEADER_SIZE = 24;
+    static final int DEFAULT_PAGE_SIZE = 16 << 10;
+    private static final byte MEASUREMENT = 0;
+    private static final byte CATEGORY = 1;
+    private static final int MEASUREMENT_RECORD_SIZE = 25;
+    private static final int CATEGORY_RECORD_SIZE = 13;
+
+    // Receives the records of a page read or a scan
+    interface RecordVisitor {
+        void measurement(int patientOrdinal, int typeOrdinal, double value, long recordedAt) throws IOException;
+
+        void category(int patientOrdinal, int typeOrdinal, int categoryOrdinal) throws IOException;
+    }
+
+    // Receives the metadata while a file is opened
+    interface MetadataVisitor {
+        void measurementObservationType(String code, String name, String unit) throws Exception;
+
+        void categoryObservationType(String code, String name, List<String> categories, List<String> unlistedCategories) throws Exception;
+
+        void patient(String id, String name) throws Exception;
+    }
+
+    private final Path file;
+    private final FileChannel channel;
+    private final int pageSize;
+    private final int[] firstPatients;
+    private final int[] lastPatients;
+    private final PageCache pageCache;
+
+    private PagedObservations(Path file, FileChannel channel, int pageSize, int[] firstPatients, int[] lastPatients, int cachedPages) {
+        this.file = file;
+        this.channel = channel;
+        this.pageSize = pageSize;
+        this.firstPatients = firstPatients;
+        this.lastPatients = lastPatients;
+        this.pageCache = new PageCache(cachedPages);
+    }
+
+    // Reads the header and metadata; pages are read on demand and kept in a page cache of
+    // cachedPages pages
+    public static PagedObservations open(Path file, int cachedPages, MetadataVisitor metadata) throws Exception {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            readFully(channel, header, 0);
+            header.flip();
+            if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC) {
+                throw new IOException("Not a paged patient record system file: " + file);
+            }
+            int version = header.getInt();
+            if (version < 1 || version > VERSION) {
+                throw new IOException("Unsupported paged file version " + version);
+            }
+            int pageSize = header.getInt();
+            int pageCount = header.getInt();
+            long metadataOffset = header.getLong();
+            if (pageSize < 64 || pageCount < 0 || metadataOffset != HEADER_SIZE + (long) pageSize * pageCount) {
+                throw new IOException("Corrupt paged file header: " + file);
+            }
+            CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(Channels.newInputStream(channel.position(metadataOffset)), 1 << 16), new CRC32());
+            DataInputStream in = new DataInputStream(checked);
+            for (int i = in.readInt(); i > 0; i--) {
+                metadata.measurementObservationType(in.readUTF(), in.readUTF(), in.readUTF());
+            }
+            for (int i = in.readInt(); i > 0; i--) {
+                String code = in.readUTF();
+                String name = in.readUTF();
+                List<String> categories = new ArrayList<>();
+                for (int j = in.readInt(); j > 0; j--) {
+                    categories.add(in.readUTF());
+                }
+                List<String> unlistedCategories = new ArrayList<>();
+                // Version 1 files have no unlisted categories
+                for (int j = version >= 2 ? in.readInt() : 0; j > 0; j--) {
+                    unlistedCategories.add(in.readUTF());
+                }
+                metadata.categoryObservationType(code, name, categories, unlistedCategories);
+            }
+            for (int i = in.readInt(); i > 0; i--) {
+                metadata.patient(in.readUTF(), in.readUTF());
+            }
+            int[] firstPatients = new int[pageCount];
+            int[] lastPatients = new int[pageCount];
+            for (int page = 0; page < pageCount; page++) {
+                firstPatients[page] = in.readInt();
+                lastPatients[page] = in.readInt();
+            }
+            int expected = (int) checked.getChecksum().getValue();
+            if (in.readInt() != expected) {
+                throw new IOException("Paged file metadata checksum mismatch");
+            }
+            return new PagedObservations(file, channel, pageSize, firstPatients, lastPatients, cachedPages);
+        } catch (Exception e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    public int getPageCount() {
+        return firstPatients.length;
+    }
+
+    public PageCache getPageCache() {
+        return pageCache;
+    }
+
+    // Visits the records of one patient through the page cache
+    public void readPatient(int patientOrdinal, RecordVisitor visitor) throws IOException {
+        // First page whose last patient is not below the patient
+        int low = 0;
+        int high = lastPatients.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (lastPatients[middle] < patientOrdinal) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        for (int page = low; page < firstPatients.length && firstPatients[page] <= patientOrdinal; page++) {
+            decode(pageCache.get(page, this::readPage), patientOrdinal, visitor);
+        }
+    }
+
+    // Visits every record in file order. Reads the pages directly, so a scan does not push
+    // the pages of recently viewed patients out of the page cache.
+    public void scan(RecordVisitor visitor) throws IOException {
+        scan(0, firstPatients.length, visitor);
+    }
+
+    // Visits the records of pages fromPage to toPage - 1 like scan. Reads are positional, so
+    // several threads can scan ranges of one file at once.
+    public void scan(int fromPage, int toPage, RecordVisitor visitor) throws IOException {
+        for (int page = fromPage; page < toPage; page++) {
+            decode(readPage(page), -1, visitor);
+        }
+    }
+
+    private ByteBuffer readPage(int page) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(pageSize);
+        readFully(channel, buffer, HEADER_SIZE + (long) page * pageSize);
+        if (buffer.hasRemaining()) {
+            throw new EOFException("Paged file is truncated at page " + page);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, pageSize - 4);
+        if (buffer.getInt(pageSize - 4) != (int) crc.getValue()) {
+            throw new IOException("Checksum mismatch in page " + page);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    // Visits the records of the page, or only those of one patient if patientOrdinal >= 0
+    private static void decode(ByteBuffer page, int patientOrdinal, RecordVisitor visitor) throws IOException {
+        // Pages are shared through the cache, so each reader decodes from its own view
+        ByteBuffer records = page.duplicate();
+        int count = records.getInt(0);
+        records.position(4);
+        for (int i = 0; i < count; i++) {
+            int patient = records.getInt();
+            byte kind = records.get();
+            int type = records.getInt();
+            if (kind == MEASUREMENT) {
+                double value = records.getDouble();
+                long recordedAt = records.getLong();
+                if (patientOrdinal < 0 || patient == patientOrdinal) {
+                    visitor.measurement(patient, type, value, recordedAt);
+                }
+            } else if (kind == CATEGORY) {
+                int category = records.getInt();
+                if (patientOrdinal < 0 || patient == patientOrdinal) {
+                    visitor.category(patient, type, category);
+                }
+            } else {
+                throw new IOException("Unknown record kind " + kind + " in paged file");
+            }
+            if (patient > patientOrdinal && patientOrdinal >= 0) {
+                return;
+            }
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                break;
+            }
+            position += read;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    // Writes a paged file. Records must be added in patient order; the metadata follows once
+    // all records are written.
+    static class Writer implements Closeable {
+        private final FileChannel channel;
+        private final ByteBuffer page;
+        private int recordCount;
+        private long totalRecords;
+        private int firstPatient;
+        private int lastPatient;
+        private int[] firstPatients = new int[64];
+        private int[] lastPatients = new int[64];
+        private int pageCount;
+        private DataOutputStream metadata;
+        private CheckedOutputStream checkedMetadata;
+
+        Writer(Path file, int pageSize) throws IOException {
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            page = ByteBuffer.allocate(pageSize);
+            page.position(4);
+        }
+
+        void addMeasurement(int patientOrdinal, int typeOrdinal, double value, long recordedAt) throws IOException {
+            startRecord(patientOrdinal, MEASUREMENT_RECORD_SIZE);
+            page.putInt(patientOrdinal).put(MEASUREMENT).putInt(typeOrdinal).putDouble(value).putLong(recordedAt);
+        }
+
+        void addCategory(int patientOrdinal, int typeOrdinal, int categoryOrdinal) throws IOException {
+            startRecord(patientOrdinal, CATEGORY_RECORD_SIZE);
+            page.putInt(patientOrdinal).put(CATEGORY).putInt(typeOrdinal).putInt(categoryOrdinal);
+        }
+
+        private void startRecord(int patientOrdinal, int size) throws IOException {
+            if (recordCount > 0 && patientOrdinal < lastPatient) {
+                throw new IllegalStateException("Records must be added in patient order");
+            }
+            if (page.position() + size > page.capacity() - 4) {
+                writePage();
+            }
+            if (recordCount == 0) {
+                firstPatient = patientOrdinal;
+            }
+            lastPatient = patientOrdinal;
+            recordCount++;
+            totalRecords++;
+        }
+
+        long getRecordCount() {
+            return totalRecords;
+        }
+
+        private void writePage() throws IOException {
+            page.putInt(0, recordCount);
+            CRC32 crc = new CRC32();
+            crc.update(page.array(), 0, page.capacity() - 4);
+            page.putInt(page.capacity() - 4, (int) crc.getValue());
+            page.clear();
+            long position = HEADER_SIZE + (long) pageCount * page.capacity();
+            while (page.hasRemaining()) {
+                position += channel.write(page, position);
+            }
+            if (pageCount == firstPatients.length) {
+                firstPatients = Arrays.copyOf(firstPatients, pageCount * 2);
+                lastPatients = Arrays.copyOf(lastPatients, pageCount * 2);
+            }
+            firstPatients[pageCount] = firstPatient;
+            lastPatients[pageCount] = lastPatient;
+            pageCount++;
+            Arrays.fill(page.array(), (byte) 0);
+            page.clear();
+            page.position(4);
+            recordCount = 0;
+        }
+
+        // Ends the records; the metadata is written through the returned stream, starting
+        // with the type and patient sections, and completed by close()
+        DataOutputStream startMetadata() throws IOException {
+            if (recordCount > 0) {
+                writePage();
+            }
+            channel.position(HEADER_SIZE + (long) pageCount * page.capacity());
+            checkedMetadata = new CheckedOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16), new CRC32());
+            metadata = new DataOutputStream(checkedMetadata);
+            return metadata;
+        }
+
+        // Writes the page index, checksum and header and forces the file to disk
+        @Override
+        public void close() throws IOException {
+            try {
+                if (metadata != null) {
+                    for (int i = 0; i < pageCount; i++) {
+                        metadata.writeInt(firstPatients[i]);
+                        metadata.writeInt(lastPatients[i]);
+                    }
+                    metadata.writeInt((int) checkedMetadata.getChecksum().getValue());
+                    metadata.flush();
+                    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                    header.putInt(MAGIC).putInt(VERSION).putInt(page.capacity()).putInt(pageCount)
+                            .putLong(HEADER_SIZE + (long) pageCount * page.capacity());
+                    header.flip();
+                    long position = 0;
+                    while (header.hasRemaining()) {
+                        position += channel.write(header, position);
+                    }
+                    channel.force(false);
+                }
+            } finally {
+                channel.close();
+            }
+        }
+    }
+}
+
+// Bounded pool of recently read pages, evicting the least recently used page once more than
+// maximumPages are held. Pages are read outside the pool lock, so a slow read never blocks
+// hits on other pages; two threads missing the same page may both read it.
+class PageCache {
+    interface PageReader {
+        ByteBuffer read(int page) throws IOException;
+    }
+
+    private final LinkedHashMap<Integer, ByteBuffer> pages;
+    private int maximumPages;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public PageCache(int maximumPages) {
+        checkMaximumPages(maximumPages);
+        this.maximumPages = maximumPages;
+        pages = new LinkedHashMap<Integer, ByteBuffer>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, ByteBuffer> eldest) {
+                if (size() > PageCache.this.maximumPages) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    public ByteBuffer get(int page, PageReader reader) throws IOException {
+        synchronized (this) {
+            ByteBuffer cached = pages.get(page);
+            if (cached != null) {
+                hits.incrementAndGet();
+                return cached;
+            }
+        }
+        misses.incrementAndGet();
+        ByteBuffer read = reader.read(page);
+        synchronized (this) {
+            if (maximumPages > 0) {
+                pages.put(page, read);
+            }
+        }
+        return read;
+    }
+
+    public synchronized void setMaximumPages(int maximumPages) {
+        checkMaximumPages(maximumPages);
+        this.maximumPages = maximumPages;
+        Iterator<Integer> eldest = pages.keySet().iterator();
+        while (pages.size() > maximumPages) {
+            eldest.next();
+            eldest.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    private static void checkMaximumPages(int maximumPages) {
+        if (maximumPages < 0) {
+            throw new IllegalArgumentException("Page cache size must not be negative: " + maximumPages);
+        }
+    }
+
+    // Getters
+    public synchronized int getMaximumPages() {
+        return maximumPages;
+    }
+
+    public synchronized int size() {
+        return pages.size();
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+}
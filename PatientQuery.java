@@ -0,0 +1,62 @@
+import java.util.*;
+
+// Ad-hoc patient filter for PatientRecordSystem.findPatients. A patient matches when, for
+// every condition, it has at least one observation meeting that condition, e.g.
+//   new PatientQuery().measurementAbove("BP", 140).category("T200", "Group A")
+class PatientQuery {
+    static final class MeasurementCondition {
+        final String code;
+        final double min;
+        final double max;
+
+        MeasurementCondition(String code, double min, double max) {
+            this.code = code;
+            this.min = min;
+            this.max = max;
+        }
+    }
+
+    static final class CategoryCondition {
+        final String code;
+        final String category;
+
+        CategoryCondition(String code, String category) {
+            this.code = code;
+            this.category = category;
+        }
+    }
+
+    private final List<MeasurementCondition> measurementConditions = new ArrayList<>();
+    private final List<CategoryCondition> categoryConditions = new ArrayList<>();
+
+    // A measurement of the type with min <= value <= max
+    public PatientQuery measurementBetween(String observationTypeCode, double min, double max) {
+        measurementConditions.add(new MeasurementCondition(observationTypeCode, min, max));
+        return this;
+    }
+
+    // A measurement of the type with a value greater than the given one
+    public PatientQuery measurementAbove(String observationTypeCode, double value) {
+        return measurementBetween(observationTypeCode, Math.nextUp(value), Double.POSITIVE_INFINITY);
+    }
+
+    // A measurement of the type with a value less than the given one
+    public PatientQuery measurementBelow(String observationTypeCode, double value) {
+        return measurementBetween(observationTypeCode, Double.NEGATIVE_INFINITY, Math.nextDown(value));
+    }
+
+    // A category observation of the type with the given category
+    public PatientQuery category(String observationTypeCode, String category) {
+        categoryConditions.add(new CategoryCondition(observationTypeCode, category));
+        return this;
+    }
+
+    // Getters
+    List<MeasurementCondition> getMeasurementConditions() {
+        return measurementConditions;
+    }
+
+    List<CategoryCondition> getCategoryConditions() {
+        return categoryConditions;
+    }
+}
@@ -0,0 +1,109 @@
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+// Rendered patient records by patient ordinal, evicting the least recently viewed record once
+// more than maximumSize are kept. PatientRecordSystem invalidates a patient on every add for
+// that patient and everything on a load.
+//
+// Records are rendered outside the cache lock. A miss first leaves a placeholder, and the
+// rendered text only replaces the placeholder if no invalidation removed it meanwhile, so a
+// record rendered from data that changed during rendering is never kept.
+class PatientRecordCache {
+    private final LinkedHashMap<Integer, Object> entries;
+    private int maximumSize;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public PatientRecordCache(int maximumSize) {
+        checkMaximumSize(maximumSize);
+        this.maximumSize = maximumSize;
+        entries = new LinkedHashMap<Integer, Object>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Object> eldest) {
+                if (size() > PatientRecordCache.this.maximumSize) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    public String get(int patientOrdinal, IntFunction<String> render) {
+        Object placeholder;
+        synchronized (this) {
+            Object entry = entries.get(patientOrdinal);
+            if (entry instanceof String) {
+                hits.incrementAndGet();
+                return (String) entry;
+            }
+            misses.incrementAndGet();
+            if (maximumSize == 0) {
+                placeholder = null;
+            } else {
+                // A new placeholder per miss, so a render that lost a race cannot replace a
+                // later one
+                placeholder = new Object();
+                entries.put(patientOrdinal, placeholder);
+            }
+        }
+        String rendered = render.apply(patientOrdinal);
+        if (rendered != null && placeholder != null) {
+            synchronized (this) {
+                if (entries.get(patientOrdinal) == placeholder) {
+                    entries.put(patientOrdinal, rendered);
+                }
+            }
+        }
+        return rendered;
+    }
+
+    public synchronized void invalidate(int patientOrdinal) {
+        entries.remove(patientOrdinal);
+    }
+
+    public synchronized void invalidateAll() {
+        entries.clear();
+    }
+
+    // Evicts least recently viewed records at once if the new bound is lower
+    public synchronized void setMaximumSize(int maximumSize) {
+        checkMaximumSize(maximumSize);
+        this.maximumSize = maximumSize;
+        Iterator<Integer> eldest = entries.keySet().iterator();
+        while (entries.size() > maximumSize) {
+            eldest.next();
+            eldest.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    private static void checkMaximumSize(int maximumSize) {
+        if (maximumSize < 0) {
+            throw new IllegalArgumentException("Cache size must not be negative: " + maximumSize);
+        }
+    }
+
+    // Getters
+    public synchronized int getMaximumSize() {
+        return maximumSize;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+}
@@ -0,0 +1,550 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+// Keeps a standby PatientRecordSystem up to date with a primary behind a PatientRecordServer,
+// for failover and to take read-only queries off the primary.
+//
+// Every table of a PatientRecordSystem only grows, so the row numbers of the five tables are
+// the offsets of the change stream: the follower asks the primary for the rows past its own
+// table sizes, applies them, and asks again. The rows come back in batches with the primary's
+// table sizes at the time, from which the lag follows. After a disconnect the follower
+// reconnects and resumes from its table sizes, also after a restart from its own saved files.
+// The follower must be the only writer of its system, which its read-only server ensures.
+// Offsets stay valid while the primary keeps its rows, which its generation tells: the primary
+// gets a new one whenever it loads or clears its data, and when the generation in an answer
+// differs from the one the replica was built from, the follower clears the replica and fetches
+// everything again. A follower restarted from saved files does not know their generation and
+// trusts its offsets; if the primary then has fewer rows, the follower stops and the replica
+// has to be rebuilt.
+//
+// Usage: PatientRecordFollower --primary 127.0.0.1:7070 [--dir replica] [--port 7071]
+//                              [--bind 127.0.0.1] [--poll 20] [--batch 10000]
+// Serves the replica read-only on --port; --poll is in milliseconds.
+public class PatientRecordFollower implements Closeable {
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+    // A primary that answers nothing for this long is treated as gone
+    private static final int READ_TIMEOUT_MILLIS = 30_000;
+    private static final long MIN_RECONNECT_DELAY_MILLIS = 100;
+    private static final long MAX_RECONNECT_DELAY_MILLIS = 5000;
+
+    private final PatientRecordSystem replica;
+    private final InetSocketAddress primary;
+    private long pollIntervalMillis = 20;
+    private int batchRows = 10_000;
+    private Thread follower;
+    private volatile Socket socket;
+    private volatile boolean closed;
+    private volatile boolean connected;
+    private volatile long reconnects;
+    private volatile long receivedRows;
+    private volatile String lastError;
+    // Set when the follower stops for good, e.g. because the primary lost rows it had
+    private volatile String failure;
+    // Table sizes of the primary in its latest answer
+    private volatile int[] primarySizes;
+    // Generation of the primary that the replica's rows came from, or 0 if unknown
+    private volatile long generation;
+    private volatile long resyncs;
+    // Time at which the primary was last known to have nothing the replica lacks: when the
+    // follower sent the latest request that left it caught up
+    private long caughtUpAtNanos;
+    private final long startNanos = System.nanoTime();
+
+    public PatientRecordFollower(PatientRecordSystem replica, InetSocketAddress primary) {
+        this.replica = replica;
+        this.primary = primary;
+        caughtUpAtNanos = startNanos;
+    }
+
+    public static void main(String[] args) throws Exception {
+        InetSocketAddress primary = null;
+        Path dataDirectory = Paths.get("replica");
+        int port = 7071;
+        InetAddress address = InetAddress.getLoopbackAddress();
+        long pollIntervalMillis = 20;
+        int batchRows = 10_000;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--primary": {
+                    int colon = args[i + 1].lastIndexOf(':');
+                    primary = new InetSocketAddress(args[i + 1].substring(0, colon), Integer.parseInt(args[i + 1].substring(colon + 1)));
+                    break;
+                }
+                case "--dir":
+                    dataDirectory = Paths.get(args[i + 1]);
+                    break;
+                case "--port":
+                    port = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--bind":
+                    address = InetAddress.getByName(args[i + 1]);
+                    break;
+                case "--poll":
+                    pollIntervalMillis = Long.parseLong(args[i + 1]);
+                    break;
+                case "--batch":
+                    batchRows = Integer.parseInt(args[i + 1]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        if (primary == null) {
+            throw new IllegalArgumentException("--primary host:port is required");
+        }
+        Files.createDirectories(dataDirectory);
+        PatientRecordSystem replica = new PatientRecordSystem(dataDirectory);
+        if (Files.exists(dataDirectory.resolve("PRS-Patients.txt"))) {
+            replica.loadData(LoadMode.PARALLEL);
+        }
+        PatientRecordFollower follower = new PatientRecordFollower(replica, primary);
+        follower.setPollInterval(pollIntervalMillis);
+        follower.setBatchRows(batchRows);
+        follower.start();
+        PatientRecordServer server = new PatientRecordServer(replica, address, port);
+        server.setReadOnly(true);
+        server.start();
+        System.out.println("Following " + primary + ", serving " + dataDirectory + " read-only on "
+                + address.getHostAddress() + ":" + server.getPort());
+        while (follower.getFailure() == null) {
+            Thread.sleep(10_000);
+            System.out.printf("lag %d rows, %d ms%s%n", follower.getLagRows(), follower.getLagMillis(),
+                    follower.isConnected() ? "" : ", disconnected: " + follower.getLastError());
+        }
+        System.out.println("Stopped following: " + follower.getFailure());
+        server.close();
+    }
+
+    // Milliseconds to wait before asking again once the replica has caught up
+    public void setPollInterval(long pollIntervalMillis) {
+        this.pollIntervalMillis = pollIntervalMillis;
+    }
+
+    // Most rows the primary sends per answer
+    public void setBatchRows(int batchRows) {
+        this.batchRows = batchRows;
+    }
+
+    public void start() {
+        follower = new Thread(this::follow, "prs-follower");
+        follower.setDaemon(true);
+        follower.start();
+    }
+
+    // Connects, follows until the connection fails, and reconnects with a growing delay
+    private void follow() {
+        long reconnectDelay = MIN_RECONNECT_DELAY_MILLIS;
+        while (!closed && failure == null) {
+            try (Socket connection = new Socket()) {
+                socket = connection;
+                if (closed) {
+                    return;
+                }
+                connection.connect(primary, CONNECT_TIMEOUT_MILLIS);
+                connection.setTcpNoDelay(true);
+                connection.setSoTimeout(READ_TIMEOUT_MILLIS);
+                connected = true;
+                reconnectDelay = MIN_RECONNECT_DELAY_MILLIS;
+                BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8));
+                Writer out = new BufferedWriter(new OutputStreamWriter(connection.getOutputStream(), StandardCharsets.UTF_8));
+                while (!closed) {
+                    if (fetch(in, out)) {
+                        Thread.sleep(pollIntervalMillis);
+                    }
+                }
+            } catch (IOException e) {
+                lastError = e.getMessage();
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                failure = e.getMessage();
+                lastError = failure;
+            } finally {
+                if (connected) {
+                    connected = false;
+                    reconnects++;
+                }
+            }
+            if (!closed && failure == null) {
+                try {
+                    Thread.sleep(reconnectDelay);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                reconnectDelay = Math.min(reconnectDelay * 2, MAX_RECONNECT_DELAY_MILLIS);
+            }
+        }
+    }
+
+    // Requests and applies one batch; returns true if the replica has caught up
+    private boolean fetch(BufferedReader in, Writer out) throws Exception {
+        int[] offsets = ChangeStream.tableSizes(replica);
+        long requestedAt = System.nanoTime();
+        StringBuilder request = new StringBuilder("REPLICATE;").append(generation);
+        for (int offset : offsets) {
+            request.append(';').append(offset);
+        }
+        out.write(request.append(';').append(batchRows).append('\n').toString());
+        out.flush();
+        String status = in.readLine();
+        if (status == null) {
+            throw new EOFException("The primary closed the connection");
+        }
+        if (status.startsWith("ERROR ")) {
+            // The primary answered but cannot serve this replica; retrying would not help
+            throw new Exception("The primary refused to replicate: " + status.substring(6));
+        }
+        if (!status.startsWith("OK ")) {
+            throw new IOException("Unexpected response " + status);
+        }
+        int lines = Integer.parseInt(status.substring(3));
+        List<String> changes = new ArrayList<>(lines);
+        for (int line = 0; line < lines; line++) {
+            String change = in.readLine();
+            if (change == null) {
+                throw new EOFException("The primary closed the connection");
+            }
+            changes.add(change);
+        }
+        long[] position = ChangeStream.position(changes);
+        int[] sizes = new int[ChangeStream.TABLES];
+        for (int table = 0; table < ChangeStream.TABLES; table++) {
+            sizes[table] = (int) position[table + 1];
+        }
+        primarySizes = sizes;
+        if (generation != position[0]) {
+            if (generation != 0) {
+                // The primary replaced its rows, so the replica's offsets mean nothing there
+                replica.clearData();
+                resyncs++;
+                generation = position[0];
+                return false;
+            }
+            generation = position[0];
+        }
+        ChangeStream.apply(changes, replica);
+        receivedRows += lines - 1;
+        boolean caughtUp = Arrays.equals(sizes, ChangeStream.tableSizes(replica));
+        if (caughtUp) {
+            synchronized (this) {
+                caughtUpAtNanos = requestedAt;
+                notifyAll();
+            }
+        }
+        return caughtUp;
+    }
+
+    // Waits until the replica holds every row the primary had when this was called. Returns
+    // false on timeout or if the follower stopped.
+    public boolean awaitCaughtUp(long timeoutMillis) throws InterruptedException {
+        long calledAt = System.nanoTime();
+        long deadline = calledAt + timeoutMillis * 1_000_000;
+        synchronized (this) {
+            while (caughtUpAtNanos - calledAt < 0) {
+                long remaining = (deadline - System.nanoTime()) / 1_000_000;
+                if (remaining <= 0 || failure != null || closed) {
+                    return false;
+                }
+                wait(Math.min(remaining, 100));
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        Socket connection = socket;
+        if (connection != null) {
+            connection.close();
+        }
+        if (follower != null) {
+            follower.interrupt();
+            try {
+                follower.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // Getters
+    public PatientRecordSystem getReplica() {
+        return replica;
+    }
+
+    public boolean isConnected() {
+        return connected;
+    }
+
+    public long getReconnectCount() {
+        return reconnects;
+    }
+
+    // Times the replica was cleared and fetched again because the primary's generation changed
+    public long getResyncCount() {
+        return resyncs;
+    }
+
+    // Rows received from the primary since start
+    public long getReceivedRowCount() {
+        return receivedRows;
+    }
+
+    // Rows the primary had in its latest answer that the replica has not applied yet, or -1
+    // before the first answer
+    public long getLagRows() {
+        int[] sizes = primarySizes;
+        if (sizes == null) {
+            return -1;
+        }
+        int[] applied = ChangeStream.tableSizes(replica);
+        long lag = 0;
+        for (int table = 0; table < sizes.length; table++) {
+            lag += Math.max(0, sizes[table] - applied[table]);
+        }
+        return lag;
+    }
+
+    // How far the replica may be behind the primary: the time since the primary was last
+    // known to hold nothing the replica lacks. Measured on the follower's clock only.
+    public synchronized long getLagMillis() {
+        return (System.nanoTime() - caughtUpAtNanos) / 1_000_000;
+    }
+
+    public String getLastError() {
+        return lastError;
+    }
+
+    // Why the follower stopped for good, or null while it follows
+    public String getFailure() {
+        return failure;
+    }
+}
+
+// The change stream between primary and follower. An answer to
+//   REPLICATE;generation;measurementTypes;categoryTypes;patients;measurements;categories;maxRows
+// is a line POSITION;<the primary's generation>;<its five table sizes> followed by the rows past
+// the given offsets, in table order, as the server requests that add them. Types and patients
+// come before the observations, so every observation refers to rows sent before it. Text fields
+// are escaped, so names may hold ';', ',' and line breaks. If the generation in the request is
+// not 0 and not the primary's, the offsets are meaningless and the answer holds no rows.
+class ChangeStream {
+    static final int TABLES = 5;
+
+    // Row counts of the five tables, in the order of the request fields
+    static int[] tableSizes(PatientRecordSystem prs) {
+        return new int[]{prs.getMeasurementObservationTypes().size(), prs.getCategoryObservationTypes().size(),
+                prs.getPatients().size(), prs.getMeasurementObservations().size(), prs.getCategoryObservations().size()};
+    }
+
+    // Answers a REPLICATE request from one snapshot, so the rows are consistent with each other
+    static String read(long generation, PatientRecordSnapshot snapshot, long replicaGeneration, int[] offsets, int maxRows) throws Exception {
+        int[] sizes = {snapshot.measurementObservationTypes.size(), snapshot.categoryObservationTypes.size(),
+                snapshot.patients.size(), snapshot.measurementObservations.size(), snapshot.categoryObservations.size()};
+        StringBuilder text = new StringBuilder("POSITION;").append(generation);
+        for (int size : sizes) {
+            text.append(';').append(size);
+        }
+        text.append('\n');
+        if (replicaGeneration != 0 && replicaGeneration != generation) {
+            return text.toString();
+        }
+        for (int table = 0; table < TABLES; table++) {
+            if (offsets[table] < 0 || offsets[table] > sizes[table]) {
+                throw new Exception("Replica offsets do not match the primary");
+            }
+        }
+        int rows = 0;
+        for (int i = offsets[0]; i < sizes[0] && rows < maxRows; i++, rows++) {
+            MeasurementObservationType type = snapshot.measurementObservationTypes.get(i);
+            text.append("ADD_MEASUREMENT_TYPE;").append(escape(type.getCode())).append(';').append(escape(type.getName()))
+                    .append(';').append(escape(type.getUnit())).append('\n');
+        }
+        for (int i = offsets[1]; i < sizes[1] && rows < maxRows; i++, rows++) {
+            CategoryObservationType type = snapshot.categoryObservationTypes.get(i);
+            text.append("ADD_CATEGORY_TYPE;").append(escape(type.getCode())).append(';').append(escape(type.getName()))
+                    .append(';').append(escapeList(type.getCategories())).append('\n');
+        }
+        for (int i = offsets[2]; i < sizes[2] && rows < maxRows; i++, rows++) {
+            Patient patient = snapshot.patients.get(i);
+            text.append("ADD_PATIENT;").append(escape(patient.getId())).append(';').append(escape(patient.getName())).append('\n');
+        }
+        // Every loop stops at maxRows, so observations follow only once all types and patients
+        // are sent
+        for (int row = offsets[3]; row < sizes[3] && rows < maxRows; row++, rows++) {
+            MeasurementObservation observation = snapshot.measurementObservations.get(row);
+            text.append("ADD_MEASUREMENT;").append(escape(observation.getPatient().getId())).append(';').append(escape(observation.getObservationType().getCode()))
+                    .append(';').append(observation.getValue()).append(';').append(observation.getRecordedAt()).append('\n');
+        }
+        for (int row = offsets[4]; row < sizes[4] && rows < maxRows; row++, rows++) {
+            CategoryObservation observation = snapshot.categoryObservations.get(row);
+            text.append("ADD_CATEGORY;").append(escape(observation.getPatient().getId())).append(';').append(escape(observation.getObservationType().getCode()))
+                    .append(';').append(escape(observation.getCategory())).append('\n');
+        }
+        return text.toString();
+    }
+
+    // Parses the first line of an answer: the primary's generation and table sizes
+    static long[] position(List<String> changes) throws IOException {
+        if (changes.isEmpty() || !changes.get(0).startsWith("POSITION;")) {
+            throw new IOException("Answer without a position");
+        }
+        String[] fields = changes.get(0).split(";", -1);
+        if (fields.length != TABLES + 2) {
+            throw new IOException("Invalid position " + changes.get(0));
+        }
+        long[] position = new long[TABLES + 1];
+        try {
+            for (int i = 0; i < position.length; i++) {
+                position[i] = Long.parseLong(fields[i + 1]);
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid position " + changes.get(0));
+        }
+        return position;
+    }
+
+    // Applies the rows of an answer in order. The observations are added as one batch after the
+    // types and patients.
+    static void apply(List<String> changes, PatientRecordSystem prs) throws Exception {
+        ObservationBatch batch = new ObservationBatch(changes.size());
+        for (int i = 1; i < changes.size(); i++) {
+            String change = changes.get(i);
+            // Keep trailing empty fields, such as an empty unit
+            String[] fields = change.split(";", -1);
+            switch (fields[0]) {
+                case "ADD_MEASUREMENT_TYPE":
+                    checkFields(change, fields, 4);
+                    prs.addMeasurementObservationType(unescape(fields[1]), unescape(fields[2]), unescape(fields[3]));
+                    break;
+                case "ADD_CATEGORY_TYPE":
+                    checkFields(change, fields, 4);
+                    prs.addCategoryObservationType(unescape(fields[1]), unescape(fields[2]), unescapeList(fields[3]));
+                    break;
+                case "ADD_PATIENT":
+                    checkFields(change, fields, 3);
+                    prs.addPatient(unescape(fields[1]), unescape(fields[2]));
+                    break;
+                case "ADD_MEASUREMENT":
+                    checkFields(change, fields, 5);
+                    batch.addMeasurement(unescape(fields[1]), unescape(fields[2]), Double.parseDouble(fields[3]), Long.parseLong(fields[4]));
+                    break;
+                case "ADD_CATEGORY":
+                    checkFields(change, fields, 4);
+                    batch.addCategory(unescape(fields[1]), unescape(fields[2]), unescape(fields[3]));
+                    break;
+                default:
+                    throw new IOException("Unknown change " + fields[0]);
+            }
+        }
+        if (batch.size() > 0) {
+            // Rows the primary loaded may have categories their type does not allow
+            BatchResult result = prs.addObservations(batch, true);
+            if (result.hasErrors()) {
+                // A skipped row would shift every later offset
+                throw new Exception("Replica rejected a replicated row: " + result.getErrors().get(0));
+            }
+        }
+    }
+
+    private static void checkFields(String change, String[] fields, int count) throws IOException {
+        if (fields.length != count) {
+            throw new IOException("Invalid change " + change);
+        }
+    }
+
+    // Replaces the separators and line breaks by escapes, so the text fits in one field
+    static String escape(String text) {
+        StringBuilder escaped = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '\\':
+                    escaped.append("\\\\");
+                    break;
+                case ';':
+                    escaped.append("\\s");
+                    break;
+                case ',':
+                    escaped.append("\\c");
+                    break;
+                case '\n':
+                    escaped.append("\\n");
+                    break;
+                case '\r':
+                    escaped.append("\\r");
+                    break;
+                default:
+                    escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+
+    static String unescape(String field) throws IOException {
+        if (field.indexOf('\\') < 0) {
+            return field;
+        }
+        StringBuilder text = new StringBuilder(field.length());
+        for (int i = 0; i < field.length(); i++) {
+            char c = field.charAt(i);
+            if (c != '\\') {
+                text.append(c);
+                continue;
+            }
+            if (++i == field.length()) {
+                throw new IOException("Invalid escape in " + field);
+            }
+            switch (field.charAt(i)) {
+                case '\\':
+                    text.append('\\');
+                    break;
+                case 's':
+                    text.append(';');
+                    break;
+                case 'c':
+                    text.append(',');
+                    break;
+                case 'n':
+                    text.append('\n');
+                    break;
+                case 'r':
+                    text.append('\r');
+                    break;
+                case '0':
+                    // An empty list item
+                    break;
+                default:
+                    throw new IOException("Invalid escape in " + field);
+            }
+        }
+        return text.toString();
+    }
+
+    // An empty list is an empty field, and an empty item is \0 so the two differ
+    static String escapeList(List<String> items) {
+        StringBuilder field = new StringBuilder();
+        for (String item : items) {
+            if (field.length() > 0) {
+                field.append(',');
+            }
+            field.append(item.isEmpty() ? "\\0" : escape(item));
+        }
+        return field.toString();
+    }
+
+    static List<String> unescapeList(String field) throws IOException {
+        List<String> items = new ArrayList<>();
+        if (field.isEmpty()) {
+            return items;
+        }
+        for (String item : field.split(",", -1)) {
+            items.add(unescape(item));
+        }
+        return items;
+    }
+}
@@ -0,0 +1,330 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+// Loopback test of PatientRecordFollower: a primary behind a PatientRecordServer takes adds
+// from several writer threads while a follower replicates them into a second system. Midway
+// the primary's server is restarted, dropping the connection, and then the follower is
+// restarted from its own saved files. Last the primary gets names with separators and line
+// breaks, and then clears its data, which the follower must answer by fetching it all again.
+// Last a new primary loads files with a row whose category its type does not allow, and a
+// journaled follower must keep that row, also after a restart.
+// Checks that the replica matches the primary row for row after each part and that its
+// read-only server rejects adds, and reports the replication lag.
+//
+// Usage: PatientRecordReplicationTest [--writers 4] [--adds 20000] [--patients 2000]
+// --adds is per writer and part. Prints PASS or FAIL.
+public class PatientRecordReplicationTest {
+    private static final String[] MEASUREMENT_TYPES = {"T100", "T101", "T102"};
+    private static final List<String> BLOOD_TYPES = Arrays.asList("A", "B", "AB", "O");
+
+    private static boolean passed = true;
+
+    public static void main(String[] args) throws Exception {
+        int writers = 4;
+        int adds = 20_000;
+        int patients = 2000;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--writers":
+                    writers = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--adds":
+                    adds = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--patients":
+                    patients = Integer.parseInt(args[i + 1]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        Path primaryDirectory = Files.createTempDirectory("prs-primary");
+        Path replicaDirectory = Files.createTempDirectory("prs-replica");
+        try {
+            run(primaryDirectory, replicaDirectory, writers, adds, patients);
+            System.out.println(passed ? "PASS" : "FAIL");
+            if (!passed) {
+                System.exit(1);
+            }
+        } finally {
+            PatientRecordSystemBenchmark.deleteDirectory(primaryDirectory);
+            PatientRecordSystemBenchmark.deleteDirectory(replicaDirectory);
+        }
+    }
+
+    private static void run(Path primaryDirectory, Path replicaDirectory, int writers, int adds, int patients) throws Exception {
+        PatientRecordSystem primary = new PatientRecordSystem(primaryDirectory);
+        for (String code : MEASUREMENT_TYPES) {
+            primary.addMeasurementObservationType(code, "Measurement " + code, "unit");
+        }
+        primary.addCategoryObservationType("T200", "blood type", BLOOD_TYPES);
+        PatientRecordServer server = new PatientRecordServer(primary, InetAddress.getLoopbackAddress(), 0);
+        server.start();
+        int port = server.getPort();
+        InetSocketAddress primaryAddress = new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+
+        PatientRecordSystem replica = new PatientRecordSystem(replicaDirectory);
+        PatientRecordFollower follower = new PatientRecordFollower(replica, primaryAddress);
+        follower.setBatchRows(5000);
+        follower.start();
+        AtomicInteger nextPatient = new AtomicInteger();
+
+        // Part 1: concurrent adds with a server restart in the middle
+        LagMonitor lag = new LagMonitor(follower);
+        long start = System.nanoTime();
+        Future<?> writing = write(primary, writers, adds, patients, nextPatient);
+        Thread.sleep(200);
+        server.close();
+        Thread.sleep(300);
+        server = new PatientRecordServer(primary, InetAddress.getLoopbackAddress(), port);
+        server.start();
+        writing.get();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        check("caught up after a server restart", follower.awaitCaughtUp(30_000));
+        lag.close();
+        System.out.printf("%d rows written in %.2f s, replica lag max %d rows %d ms, %d reconnects%n",
+                rows(primary), seconds, lag.maxRows, lag.maxMillis, follower.getReconnectCount());
+        check("follower reconnected", follower.getReconnectCount() >= 1);
+        checkSame(primary, replica);
+        check("no lag once caught up", follower.getLagRows() == 0);
+
+        // The replica's own server takes reads but no adds
+        try (PatientRecordServer replicaServer = new PatientRecordServer(replica, InetAddress.getLoopbackAddress(), 0)) {
+            replicaServer.setReadOnly(true);
+            replicaServer.start();
+            List<String> answers = request(replicaServer.getPort(), "GET_RECORD;P0", "ADD_PATIENT;X1;Someone");
+            check("replica serves records", answers.get(0).startsWith("OK ") && answers.contains("ID: P0"));
+            check("replica rejects adds", answers.get(answers.size() - 1).equals("ERROR Read-only replica"));
+        }
+
+        // Part 2: the follower stops and restarts from its saved files, missing adds meanwhile
+        follower.close();
+        replica.saveData();
+        write(primary, writers, adds, patients, nextPatient).get();
+        PatientRecordSystem restarted = new PatientRecordSystem(replicaDirectory);
+        restarted.loadData();
+        int rowsBefore = rows(restarted);
+        PatientRecordFollower resumed = new PatientRecordFollower(restarted, primaryAddress);
+        resumed.start();
+        check("caught up after a follower restart", resumed.awaitCaughtUp(30_000));
+        check("resumed from the saved offsets", resumed.getReceivedRowCount() == rows(primary) - rowsBefore);
+        System.out.printf("restarted follower fetched %d of %d rows%n", resumed.getReceivedRowCount(), rows(primary));
+        checkSame(primary, restarted);
+
+        // Part 3: fields the change stream has to escape, then a new generation on the primary
+        primary.addMeasurementObservationType("T300", "semi;colon, comma\nnewline \\s", "");
+        primary.addCategoryObservationType("T301", "no categories", Collections.emptyList());
+        primary.addCategoryObservationType("T302", "odd categories", Arrays.asList("a,b", "", "c;d", "\\0"));
+        primary.addPatient("Q;1", "Name, with;separators\n");
+        primary.addMeasurementObservation("Q;1", "T300", 1.5);
+        primary.addCategoryObservation("Q;1", "T302", "");
+        primary.addCategoryObservation("Q;1", "T302", "c;d");
+        check("caught up on escaped fields", resumed.awaitCaughtUp(30_000));
+        checkSame(primary, restarted);
+        primary.clearData();
+        for (String code : MEASUREMENT_TYPES) {
+            primary.addMeasurementObservationType(code, "Measurement " + code, "unit");
+        }
+        primary.addCategoryObservationType("T200", "blood type", BLOOD_TYPES);
+        write(primary, writers, adds / 10, patients, new AtomicInteger()).get();
+        check("caught up after the primary cleared its data", resumed.awaitCaughtUp(30_000));
+        check("follower fetched the new generation again", resumed.getResyncCount() == 1 && resumed.getFailure() == null);
+        checkSame(primary, restarted);
+        resumed.close();
+        server.close();
+
+        replicateLoadedFiles(primaryDirectory, replicaDirectory);
+    }
+
+    // Part 4: the primary loads files with a row whose category is not allowed
+    private static void replicateLoadedFiles(Path primaryDirectory, Path replicaDirectory) throws Exception {
+        PatientRecordSystemBenchmark.deleteDirectory(primaryDirectory);
+        PatientRecordSystemBenchmark.deleteDirectory(replicaDirectory);
+        Files.createDirectories(primaryDirectory);
+        Files.createDirectories(replicaDirectory);
+        Files.write(primaryDirectory.resolve("PRS-MeasurementObservationTypes.txt"), Collections.emptyList());
+        Files.write(primaryDirectory.resolve("PRS-CategoryObservationTypes.txt"), Arrays.asList("T200;blood type;A,B,AB,O"));
+        Files.write(primaryDirectory.resolve("PRS-Patients.txt"), Arrays.asList("P0;Patient 0"));
+        Files.write(primaryDirectory.resolve("PRS-MeasurementObservations.txt"), Collections.emptyList());
+        Files.write(primaryDirectory.resolve("PRS-CategoryObservations.txt"), Arrays.asList("P0;T200;A", "P0;T200;Unknown"));
+        PatientRecordSystem primary = new PatientRecordSystem(primaryDirectory);
+        primary.loadData();
+        try (PatientRecordServer server = new PatientRecordServer(primary, InetAddress.getLoopbackAddress(), 0)) {
+            server.start();
+            PatientRecordSystem replica = new PatientRecordSystem(replicaDirectory);
+            replica.enableJournal();
+            PatientRecordFollower follower = new PatientRecordFollower(replica, new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getPort()));
+            follower.start();
+            check("caught up on a row whose category is not allowed", follower.awaitCaughtUp(30_000) && follower.getFailure() == null);
+            follower.close();
+            replica.disableJournal();
+            checkSame(primary, replica);
+
+            PatientRecordSystem replayed = new PatientRecordSystem(replicaDirectory);
+            replayed.enableJournal();
+            replayed.loadData();
+            replayed.disableJournal();
+            checkSame(primary, replayed);
+        }
+    }
+
+    // Adds patients and observations from several threads, singly and in batches
+    private static Future<?> write(PatientRecordSystem prs, int writers, int adds, int patients, AtomicInteger nextPatient) {
+        ExecutorService executor = Executors.newFixedThreadPool(writers);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int w = 0; w < writers; w++) {
+            int writer = w;
+            futures.add(executor.submit(() -> {
+                Random random = new Random(writer + nextPatient.get());
+                for (int i = 0; i < adds; i++) {
+                    if (i % 10 == 0 && nextPatient.get() < patients) {
+                        int patient = nextPatient.getAndIncrement();
+                        prs.addPatient("P" + patient, "Patient " + patient);
+                    }
+                    int known = Math.max(1, Math.min(nextPatient.get(), patients));
+                    String patientId = "P" + random.nextInt(known);
+                    if (prs.getPatient(patientId) == null) {
+                        continue;
+                    }
+                    if (i % 100 == 99) {
+                        ObservationBatch batch = new ObservationBatch();
+                        for (int j = 0; j < 50; j++) {
+                            batch.addMeasurement(patientId, MEASUREMENT_TYPES[random.nextInt(MEASUREMENT_TYPES.length)], random.nextGaussian() * 40, System.currentTimeMillis());
+                        }
+                        prs.addObservations(batch);
+                    } else if (i % 7 == 0) {
+                        prs.addCategoryObservation(patientId, "T200", BLOOD_TYPES.get(random.nextInt(BLOOD_TYPES.size())));
+                    } else {
+                        prs.addMeasurementObservation(patientId, MEASUREMENT_TYPES[random.nextInt(MEASUREMENT_TYPES.length)], random.nextInt(2000) / 10.0);
+                    }
+                }
+                return null;
+            }));
+        }
+        executor.shutdown();
+        return CompletableFuture.runAsync(() -> {
+            try {
+                for (Future<?> future : futures) {
+                    future.get();
+                }
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+
+    // Compares every table row by row
+    private static void checkSame(PatientRecordSystem primary, PatientRecordSystem replica) {
+        boolean same = Arrays.equals(ChangeStream.tableSizes(primary), ChangeStream.tableSizes(replica));
+        for (int i = 0; same && i < primary.getMeasurementObservationTypes().size(); i++) {
+            MeasurementObservationType expected = primary.getMeasurementObservationTypes().get(i);
+            MeasurementObservationType actual = replica.getMeasurementObservationTypes().get(i);
+            same = expected.getCode().equals(actual.getCode()) && expected.getName().equals(actual.getName()) && expected.getUnit().equals(actual.getUnit());
+        }
+        for (int i = 0; same && i < primary.getCategoryObservationTypes().size(); i++) {
+            CategoryObservationType expected = primary.getCategoryObservationTypes().get(i);
+            CategoryObservationType actual = replica.getCategoryObservationTypes().get(i);
+            same = expected.getCode().equals(actual.getCode()) && expected.getName().equals(actual.getName()) && expected.getCategories().equals(actual.getCategories());
+        }
+        for (int i = 0; same && i < primary.getPatients().size(); i++) {
+            Patient expected = primary.getPatients().get(i);
+            Patient actual = replica.getPatients().get(i);
+            same = expected.getId().equals(actual.getId()) && expected.getName().equals(actual.getName());
+        }
+        for (int row = 0; same && row < primary.getMeasurementObservations().size(); row++) {
+            MeasurementObservation expected = primary.getMeasurementObservations().get(row);
+            MeasurementObservation actual = replica.getMeasurementObservations().get(row);
+            same = expected.getPatient().getId().equals(actual.getPatient().getId())
+                    && expected.getObservationType().getCode().equals(actual.getObservationType().getCode())
+                    && Double.compare(expected.getValue(), actual.getValue()) == 0 && expected.getRecordedAt() == actual.getRecordedAt();
+        }
+        for (int row = 0; same && row < primary.getCategoryObservations().size(); row++) {
+            CategoryObservation expected = primary.getCategoryObservations().get(row);
+            CategoryObservation actual = replica.getCategoryObservations().get(row);
+            same = expected.getPatient().getId().equals(actual.getPatient().getId())
+                    && expected.getObservationType().getCode().equals(actual.getObservationType().getCode())
+                    && expected.getCategory().equals(actual.getCategory());
+        }
+        // Concurrent adds for one patient may reach the primary's per-patient index out of row
+        // order, so records are compared as sets of lines
+        for (int i = 0; same && i < primary.getPatients().size(); i += 97) {
+            String id = primary.getPatients().get(i).getId();
+            same = sortedLines(primary.getRenderedPatientRecord(id)).equals(sortedLines(replica.getRenderedPatientRecord(id)));
+        }
+        check("replica matches the primary (" + rows(primary) + " rows)", same);
+    }
+
+    private static List<String> sortedLines(String text) {
+        List<String> lines = new ArrayList<>(Arrays.asList(text.split("\n")));
+        Collections.sort(lines);
+        return lines;
+    }
+
+    private static int rows(PatientRecordSystem prs) {
+        return Arrays.stream(ChangeStream.tableSizes(prs)).sum();
+    }
+
+    // Sends the requests on one connection and returns every line of the answers
+    private static List<String> request(int port, String... requests) throws IOException {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+            out.write(String.join("\n", requests) + "\n");
+            out.flush();
+            List<String> lines = new ArrayList<>();
+            for (int i = 0; i < requests.length; i++) {
+                String status = in.readLine();
+                lines.add(status);
+                int count = status.startsWith("OK ") ? Integer.parseInt(status.substring(3)) : 0;
+                for (int line = 0; line < count; line++) {
+                    lines.add(in.readLine());
+                }
+            }
+            return lines;
+        }
+    }
+
+    private static void check(String name, boolean condition) {
+        System.out.println((condition ? "ok     " : "FAILED ") + name);
+        passed &= condition;
+    }
+
+    // Samples the follower's lag every few milliseconds and keeps the largest
+    private static class LagMonitor implements Closeable {
+        private final Thread thread;
+        private volatile boolean closed;
+        long maxRows;
+        long maxMillis;
+
+        LagMonitor(PatientRecordFollower follower) {
+            thread = new Thread(() -> {
+                while (!closed) {
+                    maxRows = Math.max(maxRows, follower.getLagRows());
+                    maxMillis = Math.max(maxMillis, follower.getLagMillis());
+                    try {
+                        Thread.sleep(5);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            });
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,401 @@
+import java.io.*;
+import java.lang.reflect.Method;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+// Line protocol server in front of a PatientRecordSystem, so many clinician terminals can use
+// one system at once. Every request is one line of ';'-separated fields, as in the PRS-*.txt
+// files, and every response starts with a status line:
+//   OK <n>          followed by n lines of result
+//   ERROR <message>
+// Requests:
+//   ADD_MEASUREMENT_TYPE;code;name;unit       ADD_CATEGORY_TYPE;code;name;category1,category2
+//   ADD_PATIENT;id;name                       ADD_MEASUREMENT;patientId;typeCode;value[;recordedAt]
+//   ADD_CATEGORY;patientId;typeCode;category  GET_RECORD;patientId
+//   GET_TYPE;code                             METRICS
+//   SAVE                                      PING
+//   REPLICATE;generation;offset1;...;offset5;maxRows
+//   QUIT
+// REPLICATE serves the change stream of PatientRecordFollower; see ChangeStream.
+//
+// Each connection is served by its own thread, a virtual thread where the JVM has them (Java 21
+// and later), so thousands of mostly idle clients cost little. Requests may be pipelined: a
+// client can send many requests before reading any response, and the answers come back in
+// order, written together once no more requests are waiting. GET_RECORD reads the rendered
+// record cache and the observation stores, which readers never lock, so lookups do not wait
+// for concurrent adds.
+//
+// Usage: PatientRecordServer [--dir .] [--port 7070] [--bind 127.0.0.1]
+public class PatientRecordServer implements Closeable {
+    private static final int ACCEPT_BACKLOG = 4096;
+    private static final int BUFFER_SIZE = 8192;
+    // Stack size of connection threads when there are no virtual threads
+    private static final long PLATFORM_THREAD_STACK_SIZE = 256 * 1024;
+    // Pause after a failed accept, doubled on every failure in a row up to the maximum, so an
+    // accept that keeps failing (out of file descriptors, say) does not spin
+    private static final long MIN_ACCEPT_BACKOFF_MILLIS = 10;
+    private static final long MAX_ACCEPT_BACKOFF_MILLIS = 1000;
+    // Failed accepts are reported at most once per interval, with the number left unreported
+    private static final long ACCEPT_ERROR_REPORT_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final PatientRecordSystem prs;
+    private final ServerSocket serverSocket;
+    private final ThreadFactory connectionThreads = connectionThreadFactory();
+    private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+    private final AtomicLong acceptedConnections = new AtomicLong();
+    private Thread acceptor;
+    private volatile boolean closed;
+    // Rejects adds, as on a replica that only PatientRecordFollower may write
+    private volatile boolean readOnly;
+
+    public PatientRecordServer(PatientRecordSystem prs, InetAddress address, int port) throws IOException {
+        this.prs = prs;
+        serverSocket = new ServerSocket(port, ACCEPT_BACKLOG, address);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Path dataDirectory = Paths.get(".");
+        int port = 7070;
+        InetAddress address = InetAddress.getLoopbackAddress();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--dir":
+                    dataDirectory = Paths.get(args[i + 1]);
+                    break;
+                case "--port":
+                    port = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--bind":
+                    address = InetAddress.getByName(args[i + 1]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        PatientRecordSystem prs = new PatientRecordSystem(dataDirectory);
+        if (Files.exists(dataDirectory.resolve("PRS-Patients.txt"))) {
+            prs.loadData(LoadMode.PARALLEL);
+        }
+        PatientRecordServer server = new PatientRecordServer(prs, address, port);
+        server.start();
+        System.out.println("Serving " + dataDirectory + " on " + address.getHostAddress() + ":" + server.getPort()
+                + (isVirtual(server.connectionThreads) ? " with virtual threads" : " with platform threads"));
+    }
+
+    public void start() {
+        acceptor = new Thread(this::acceptConnections, "prs-server-acceptor");
+        acceptor.start();
+    }
+
+    private void acceptConnections() {
+        long backoffMillis = 0;
+        long lastReportNanos = System.nanoTime() - ACCEPT_ERROR_REPORT_NANOS;
+        long unreportedErrors = 0;
+        while (!closed) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                if (closed) {
+                    return;
+                }
+                long now = System.nanoTime();
+                if (now - lastReportNanos >= ACCEPT_ERROR_REPORT_NANOS) {
+                    System.err.println("Error accepting connection: " + e.getMessage()
+                            + (unreportedErrors > 0 ? " (" + unreportedErrors + " more since the last report)" : ""));
+                    lastReportNanos = now;
+                    unreportedErrors = 0;
+                } else {
+                    unreportedErrors++;
+                }
+                backoffMillis = Math.min(Math.max(backoffMillis * 2, MIN_ACCEPT_BACKOFF_MILLIS), MAX_ACCEPT_BACKOFF_MILLIS);
+                try {
+                    Thread.sleep(backoffMillis);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+                continue;
+            }
+            backoffMillis = 0;
+            acceptedConnections.incrementAndGet();
+            connections.add(socket);
+            // Checked after adding, so close() either sees the socket or the socket sees closed
+            if (closed) {
+                closeQuietly(socket);
+                return;
+            }
+            connectionThreads.newThread(() -> serve(socket)).start();
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (Socket connection = socket) {
+            connection.setTcpNoDelay(true);
+            BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8), BUFFER_SIZE);
+            Writer out = new BufferedWriter(new OutputStreamWriter(connection.getOutputStream(), StandardCharsets.UTF_8), BUFFER_SIZE);
+            String request;
+            while ((request = in.readLine()) != null) {
+                boolean quit = request.equals("QUIT");
+                respond(request, out);
+                // Responses to pipelined requests are written together, one flush per batch
+                if (quit || !in.ready()) {
+                    out.flush();
+                }
+                if (quit) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            // The client went away; nothing to answer
+        } finally {
+            connections.remove(socket);
+        }
+    }
+
+    private void respond(String request, Writer out) throws IOException {
+        // Keeps trailing empty fields, such as an empty unit or category list
+        String[] fields = request.split(";", -1);
+        if (readOnly && fields[0].startsWith("ADD_")) {
+            error(out, "Read-only replica");
+            return;
+        }
+        try {
+            switch (fields[0]) {
+                case "ADD_MEASUREMENT_TYPE":
+                    checkFields(fields, 4);
+                    prs.addMeasurementObservationType(fields[1], fields[2], fields[3]);
+                    ok(out);
+                    break;
+                case "ADD_CATEGORY_TYPE":
+                    checkFields(fields, 4);
+                    prs.addCategoryObservationType(fields[1], fields[2], parseCategories(fields[3]));
+                    ok(out);
+                    break;
+                case "ADD_PATIENT":
+                    checkFields(fields, 3);
+                    prs.addPatient(fields[1], fields[2]);
+                    ok(out);
+                    break;
+                case "ADD_MEASUREMENT":
+                    if (fields.length == 5) {
+                        prs.addMeasurementObservation(fields[1], fields[2], parseValue(fields[3]), parseTimestamp(fields[4]));
+                    } else {
+                        checkFields(fields, 4);
+                        prs.addMeasurementObservation(fields[1], fields[2], parseValue(fields[3]));
+                    }
+                    ok(out);
+                    break;
+                case "ADD_CATEGORY":
+                    checkFields(fields, 4);
+                    prs.addCategoryObservation(fields[1], fields[2], fields[3]);
+                    ok(out);
+                    break;
+                case "GET_RECORD": {
+                    checkFields(fields, 2);
+                    String record = prs.getRenderedPatientRecord(fields[1]);
+                    if (record == null) {
+                        error(out, "Patient not found");
+                    } else {
+                        ok(out, record);
+                    }
+                    break;
+                }
+                case "GET_TYPE":
+                    checkFields(fields, 2);
+                    getType(fields[1], out);
+                    break;
+                case "METRICS":
+                    ok(out, prs.getMetrics().dump());
+                    break;
+                case "SAVE":
+                    prs.saveData();
+                    ok(out);
+                    break;
+                case "REPLICATE": {
+                    checkFields(fields, ChangeStream.TABLES + 3);
+                    long replicaGeneration = parseGeneration(fields[1]);
+                    int[] offsets = new int[ChangeStream.TABLES];
+                    for (int table = 0; table < ChangeStream.TABLES; table++) {
+                        offsets[table] = parseCount(fields[table + 2]);
+                    }
+                    // Retried until no clearData came between, so the rows belong to the generation
+                    long generation;
+                    PatientRecordSnapshot snapshot;
+                    do {
+                        generation = prs.getGeneration();
+                        snapshot = prs.snapshot();
+                    } while (generation != prs.getGeneration());
+                    ok(out, ChangeStream.read(generation, snapshot, replicaGeneration, offsets, Math.max(1, parseCount(fields[ChangeStream.TABLES + 2]))));
+                    break;
+                }
+                case "PING":
+                case "QUIT":
+                    ok(out);
+                    break;
+                default:
+                    error(out, "Unknown request " + fields[0]);
+            }
+        } catch (Exception e) {
+            error(out, e.getMessage());
+        }
+    }
+
+    private void getType(String code, Writer out) throws IOException {
+        MeasurementObservationType measurementType = prs.getMeasurementObservationType(code);
+        if (measurementType != null) {
+            ok(out, "MEASUREMENT;" + measurementType.getCode() + ";" + measurementType.getName() + ";" + measurementType.getUnit() + "\n");
+            return;
+        }
+        CategoryObservationType categoryType = prs.getCategoryObservationType(code);
+        if (categoryType != null) {
+            ok(out, "CATEGORY;" + categoryType.getCode() + ";" + categoryType.getName() + ";" + String.join(",", categoryType.getCategories()) + "\n");
+            return;
+        }
+        error(out, "Observation type not found");
+    }
+
+    // A ','-separated category list without its empty entries, so an empty field is no categories
+    private static List<String> parseCategories(String field) {
+        List<String> categories = new ArrayList<>();
+        for (String category : field.split(",")) {
+            if (!category.isEmpty()) {
+                categories.add(category);
+            }
+        }
+        return categories;
+    }
+
+    private static void checkFields(String[] fields, int count) throws Exception {
+        if (fields.length != count) {
+            throw new Exception(fields[0] + " needs " + (count - 1) + " fields");
+        }
+    }
+
+    private static double parseValue(String field) throws Exception {
+        try {
+            return Double.parseDouble(field);
+        } catch (NumberFormatException e) {
+            throw new Exception("Invalid value " + field);
+        }
+    }
+
+    private static long parseTimestamp(String field) throws Exception {
+        try {
+            return Long.parseLong(field);
+        } catch (NumberFormatException e) {
+            throw new Exception("Invalid timestamp " + field);
+        }
+    }
+
+    private static long parseGeneration(String field) throws Exception {
+        try {
+            return Long.parseLong(field);
+        } catch (NumberFormatException e) {
+            throw new Exception("Invalid generation " + field);
+        }
+    }
+
+    private static int parseCount(String field) throws Exception {
+        try {
+            return Integer.parseInt(field);
+        } catch (NumberFormatException e) {
+            throw new Exception("Invalid count " + field);
+        }
+    }
+
+    private static void ok(Writer out) throws IOException {
+        out.write("OK 0\n");
+    }
+
+    // text is a sequence of '\n'-terminated lines
+    private static void ok(Writer out, String text) throws IOException {
+        int lines = 0;
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) == '\n') {
+                lines++;
+            }
+        }
+        out.write("OK " + lines + "\n");
+        out.write(text);
+    }
+
+    private static void error(Writer out, String message) throws IOException {
+        out.write("ERROR " + String.valueOf(message).replace('\n', ' ') + "\n");
+    }
+
+    // Stops accepting, closes every open connection and waits for the acceptor to finish
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        serverSocket.close();
+        for (Socket socket : connections) {
+            closeQuietly(socket);
+        }
+        if (acceptor != null) {
+            // Wakes the acceptor if it is backing off after a failed accept
+            acceptor.interrupt();
+            try {
+                acceptor.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+
+    // Virtual threads are looked up by reflection, so the server also builds and runs on
+    // Java versions without them and falls back to small-stack platform threads
+    static ThreadFactory connectionThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "prs-connection-", 0L);
+            Method factory = builderClass.getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            AtomicLong threadNumber = new AtomicLong();
+            return runnable -> {
+                Thread thread = new Thread(null, runnable, "prs-connection-" + threadNumber.getAndIncrement(), PLATFORM_THREAD_STACK_SIZE);
+                thread.setDaemon(true);
+                return thread;
+            };
+        }
+    }
+
+    static boolean isVirtual(ThreadFactory factory) {
+        Thread thread = factory.newThread(() -> { });
+        try {
+            return (Boolean) Thread.class.getMethod("isVirtual").invoke(thread);
+        } catch (ReflectiveOperationException e) {
+            return false;
+        }
+    }
+
+    public void setReadOnly(boolean readOnly) {
+        this.readOnly = readOnly;
+    }
+
+    // Getters
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public int getOpenConnectionCount() {
+        return connections.size();
+    }
+
+    public long getAcceptedConnectionCount() {
+        return acceptedConnections.get();
+    }
+}
@@ -0,0 +1,201 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+// Loopback load test of PatientRecordServer: starts a server on a generated data set, connects
+// many clients at once, and has each send pipelined batches of record lookups, type lookups
+// and adds. Checks every response and that every add arrived, then reports throughput and the
+// latency of requests from sending their batch to reading their response.
+//
+// Usage: PatientRecordServerLoadTest [--clients 2000] [--requests 100] [--pipeline 16]
+//                                    [--patients 10000]
+// --requests is per client. Prints PASS or FAIL.
+public class PatientRecordServerLoadTest {
+    private static final String[] MEASUREMENT_TYPES = {"T100", "T101", "T102"};
+
+    public static void main(String[] args) throws Exception {
+        int clients = 2000;
+        int requestsPerClient = 100;
+        int pipeline = 16;
+        int patients = 10_000;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--clients":
+                    clients = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--requests":
+                    requestsPerClient = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--pipeline":
+                    pipeline = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--patients":
+                    patients = Integer.parseInt(args[i + 1]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        Path dataDirectory = Files.createTempDirectory("prs-server-test");
+        try {
+            boolean passed = run(dataDirectory, clients, requestsPerClient, pipeline, patients);
+            System.out.println(passed ? "PASS" : "FAIL");
+            if (!passed) {
+                System.exit(1);
+            }
+        } finally {
+            PatientRecordSystemBenchmark.deleteDirectory(dataDirectory);
+        }
+    }
+
+    private static boolean run(Path dataDirectory, int clients, int requestsPerClient, int pipeline, int patients) throws Exception {
+        PatientRecordSystem prs = new PatientRecordSystem(dataDirectory);
+        for (String code : MEASUREMENT_TYPES) {
+            prs.addMeasurementObservationType(code, "Measurement " + code, "unit");
+        }
+        prs.addCategoryObservationType("T200", "blood type", Arrays.asList("A", "B", "AB", "O"));
+        Random setup = new Random(42);
+        for (int i = 0; i < patients; i++) {
+            prs.addPatient("P" + i, "Patient " + i);
+            for (int j = 0; j < 5; j++) {
+                prs.addMeasurementObservation("P" + i, MEASUREMENT_TYPES[setup.nextInt(MEASUREMENT_TYPES.length)], setup.nextInt(2000) / 10.0);
+            }
+        }
+        int measurementsBefore = prs.getMeasurementObservations().size();
+
+        LatencyHistogram latencies = new LatencyHistogram();
+        AtomicLong adds = new AtomicLong();
+        AtomicLong failures = new AtomicLong();
+        AtomicReference<String> firstFailure = new AtomicReference<>();
+        try (PatientRecordServer server = new PatientRecordServer(prs, InetAddress.getLoopbackAddress(), 0)) {
+            server.start();
+            ThreadFactory clientThreads = PatientRecordServer.connectionThreadFactory();
+            System.out.printf("%d clients, %d pipelined requests per batch, %s threads%n", clients, pipeline,
+                    PatientRecordServer.isVirtual(clientThreads) ? "virtual" : "platform");
+            // Every client connects first, so all of them are open at the same time
+            CountDownLatch connected = new CountDownLatch(clients);
+            CountDownLatch go = new CountDownLatch(1);
+            List<Thread> threads = new ArrayList<>();
+            for (int c = 0; c < clients; c++) {
+                int client = c;
+                Thread thread = clientThreads.newThread(() -> {
+                    try {
+                        runClient(server.getPort(), client, requestsPerClient, pipeline, patients, connected, go, latencies, adds);
+                    } catch (Exception e) {
+                        failures.incrementAndGet();
+                        firstFailure.compareAndSet(null, "client " + client + ": " + e);
+                        connected.countDown();
+                    }
+                });
+                thread.start();
+                threads.add(thread);
+            }
+            connected.await();
+            // Connected clients may still wait in the accept backlog
+            long deadline = System.nanoTime() + 10_000_000_000L;
+            while (server.getAcceptedConnectionCount() < clients - failures.get() && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            System.out.printf("%d connections open on the server%n", server.getOpenConnectionCount());
+            long start = System.nanoTime();
+            go.countDown();
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            long requests = latencies.getCount();
+            System.out.printf("%d requests in %.2f s: %.0f requests/s%n", requests, seconds, requests / seconds);
+            System.out.printf("latency in us: mean %.1f p50 %.1f p90 %.1f p99 %.1f p99.9 %.1f max %.1f%n",
+                    latencies.getMean() / 1e3, latencies.getPercentile(0.5) / 1e3, latencies.getPercentile(0.9) / 1e3,
+                    latencies.getPercentile(0.99) / 1e3, latencies.getPercentile(0.999) / 1e3, latencies.getMax() / 1e3);
+        }
+        boolean passed = true;
+        if (failures.get() > 0) {
+            System.out.println(failures.get() + " clients failed, first: " + firstFailure.get());
+            passed = false;
+        }
+        long expected = measurementsBefore + adds.get();
+        if (prs.getMeasurementObservations().size() != expected) {
+            System.out.println("Expected " + expected + " measurements, found " + prs.getMeasurementObservations().size());
+            passed = false;
+        }
+        return passed;
+    }
+
+    private static void runClient(int port, int client, int requestsPerClient, int pipeline, int patients,
+                                  CountDownLatch connected, CountDownLatch go, LatencyHistogram latencies, AtomicLong adds) throws Exception {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            socket.setTcpNoDelay(true);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+            connected.countDown();
+            go.await();
+            Random random = new Random(client);
+            String[] patientIds = new String[pipeline];
+            char[] kinds = new char[pipeline];
+            for (int sent = 0; sent < requestsPerClient; sent += pipeline) {
+                int batch = Math.min(pipeline, requestsPerClient - sent);
+                for (int i = 0; i < batch; i++) {
+                    patientIds[i] = "P" + random.nextInt(patients);
+                    int kind = random.nextInt(100);
+                    if (kind < 75) {
+                        kinds[i] = 'R';
+                        out.write("GET_RECORD;" + patientIds[i] + "\n");
+                    } else if (kind < 95) {
+                        kinds[i] = 'M';
+                        out.write("ADD_MEASUREMENT;" + patientIds[i] + ";" + MEASUREMENT_TYPES[random.nextInt(MEASUREMENT_TYPES.length)] + ";" + random.nextInt(2000) / 10.0 + "\n");
+                    } else {
+                        kinds[i] = 'T';
+                        out.write("GET_TYPE;T200\n");
+                    }
+                }
+                long batchStart = System.nanoTime();
+                out.flush();
+                for (int i = 0; i < batch; i++) {
+                    String status = in.readLine();
+                    if (status == null || !status.startsWith("OK ")) {
+                        throw new IOException("Unexpected response " + status);
+                    }
+                    int lines = Integer.parseInt(status.substring(3));
+                    List<String> body = new ArrayList<>(lines);
+                    for (int line = 0; line < lines; line++) {
+                        body.add(in.readLine());
+                    }
+                    latencies.record(System.nanoTime() - batchStart);
+                    check(kinds[i], patientIds[i], body);
+                    if (kinds[i] == 'M') {
+                        adds.incrementAndGet();
+                    }
+                }
+            }
+            out.write("QUIT\n");
+            out.flush();
+            if (!"OK 0".equals(in.readLine())) {
+                throw new IOException("QUIT was not acknowledged");
+            }
+        }
+    }
+
+    private static void check(char kind, String patientId, List<String> body) throws IOException {
+        switch (kind) {
+            case 'R':
+                if (body.size() < 5 || !body.get(1).equals("ID: " + patientId)) {
+                    throw new IOException("Wrong record for " + patientId + ": " + body);
+                }
+                break;
+            case 'T':
+                if (body.size() != 1 || !body.get(0).equals("CATEGORY;T200;blood type;A,B,AB,O")) {
+                    throw new IOException("Wrong type: " + body);
+                }
+                break;
+            default:
+                if (!body.isEmpty()) {
+                    throw new IOException("Unexpected body for an add: " + body);
+                }
+        }
+    }
+}
@@ -0,0 +1,114 @@
+import java.util.*;
+
+// Read-only view of a PatientRecordSystem at one point in time, from
+// PatientRecordSystem.snapshot(). It shares the append-only columns and index arrays of the
+// system up to their sizes when it was taken, so taking one copies nothing, and reading one
+// never locks and never sees the adds, loads and clears that happen after it.
+class PatientRecordSnapshot {
+    final PrimaryKeyIndex<MeasurementObservationType> measurementObservationTypes;
+    final PrimaryKeyIndex<CategoryObservationType> categoryObservationTypes;
+    final PrimaryKeyIndex<Patient> patients;
+    final MeasurementObservationStore measurementObservations;
+    final CategoryObservationStore categoryObservations;
+    // Row numbers grouped by patient: the rows of patient p are rows[starts[p]] to
+    // rows[starts[p + 1] - 1]. Built by the first getPatientRecord.
+    private int[] measurementStarts;
+    private int[] measurementRows;
+    private int[] categoryStarts;
+    private int[] categoryRows;
+
+    PatientRecordSnapshot(PrimaryKeyIndex<MeasurementObservationType> measurementObservationTypes,
+                          PrimaryKeyIndex<CategoryObservationType> categoryObservationTypes,
+                          PrimaryKeyIndex<Patient> patients,
+                          MeasurementObservationStore measurementObservations,
+                          CategoryObservationStore categoryObservations) {
+        this.measurementObservationTypes = measurementObservationTypes;
+        this.categoryObservationTypes = categoryObservationTypes;
+        this.patients = patients;
+        this.measurementObservations = measurementObservations;
+        this.categoryObservations = categoryObservations;
+    }
+
+    // Returns the record of a patient, or null if the patient does not exist. The first call
+    // groups all rows by patient in one pass; later calls cost time proportional to the number
+    // of observations of that patient.
+    public PatientRecord getPatientRecord(String patientId) {
+        int patientOrdinal = patients.ordinalOf(patientId);
+        if (patientOrdinal < 0) {
+            return null;
+        }
+        groupRowsByPatient();
+        List<MeasurementObservation> patientMeasurements = new ArrayList<>(measurementStarts[patientOrdinal + 1] - measurementStarts[patientOrdinal]);
+        for (int i = measurementStarts[patientOrdinal]; i < measurementStarts[patientOrdinal + 1]; i++) {
+            patientMeasurements.add(measurementObservations.get(measurementRows[i]));
+        }
+        List<CategoryObservation> patientCategories = new ArrayList<>(categoryStarts[patientOrdinal + 1] - categoryStarts[patientOrdinal]);
+        for (int i = categoryStarts[patientOrdinal]; i < categoryStarts[patientOrdinal + 1]; i++) {
+            patientCategories.add(categoryObservations.get(categoryRows[i]));
+        }
+        return new PatientRecord(patients.get(patientOrdinal), patientMeasurements, patientCategories);
+    }
+
+    private synchronized void groupRowsByPatient() {
+        if (measurementStarts != null) {
+            return;
+        }
+        int[] starts = new int[patients.size() + 1];
+        categoryRows = groupByPatient(categoryObservations, starts);
+        categoryStarts = starts;
+        starts = new int[patients.size() + 1];
+        measurementRows = groupByPatient(measurementObservations, starts);
+        measurementStarts = starts;
+    }
+
+    // Counting sort of the row numbers by patient ordinal, keeping row order within a patient
+    private static int[] groupByPatient(ObservationStore<?> store, int[] starts) {
+        int rows = store.size();
+        for (int row = 0; row < rows; row++) {
+            starts[store.patientOrdinal(row) + 1]++;
+        }
+        for (int patient = 1; patient < starts.length; patient++) {
+            starts[patient] += starts[patient - 1];
+        }
+        int[] next = Arrays.copyOf(starts, starts.length - 1);
+        int[] grouped = new int[rows];
+        for (int row = 0; row < rows; row++) {
+            grouped[next[store.patientOrdinal(row)]++] = row;
+        }
+        return grouped;
+    }
+
+    // Indexed lookups by primary key; return null when not found
+    public Patient getPatient(String id) {
+        return patients.get(id);
+    }
+
+    public MeasurementObservationType getMeasurementObservationType(String code) {
+        return measurementObservationTypes.get(code);
+    }
+
+    public CategoryObservationType getCategoryObservationType(String code) {
+        return categoryObservationTypes.get(code);
+    }
+
+    // Getters; every list is read-only and never changes
+    public List<MeasurementObservationType> getMeasurementObservationTypes() {
+        return measurementObservationTypes.values();
+    }
+
+    public List<CategoryObservationType> getCategoryObservationTypes() {
+        return categoryObservationTypes.values();
+    }
+
+    public List<Patient> getPatients() {
+        return patients.values();
+    }
+
+    public List<MeasurementObservation> getMeasurementObservations() {
+        return measurementObservations;
+    }
+
+    public List<CategoryObservation> getCategoryObservations() {
+        return categoryObservations;
+    }
+}
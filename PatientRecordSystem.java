@@ -1,5 +1,10 @@
 import java.io.*;
+import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+import java.util.stream.*;
 
 class MeasurementObservationType {
     private String code;
@@ -30,11 +35,21 @@ class CategoryObservationType {
     private String code;
     private String name;
     private List<String> categories;
+    // Dictionary of the categories; observations store the ordinal instead of the string. The
+    // allowed categories come first. Rows read from files may have categories that are not
+    // allowed, which follow them, so those rows are kept and saved as they were.
+    private volatile String[] dictionary;
+    private Map<String, Integer> categoryOrdinals;
 
     public CategoryObservationType(String code, String name, List<String> categories) {
         this.code = code;
         this.name = name;
         this.categories = categories;
+        this.dictionary = categories.toArray(new String[0]);
+        this.categoryOrdinals = new ConcurrentHashMap<>();
+        for (int i = 0; i < categories.size(); i++) {
+            categoryOrdinals.putIfAbsent(categories.get(i), i);
+        }
     }
 
     // Getters
@@ -49,6 +64,54 @@ class CategoryObservationType {
     public List<String> getCategories() {
         return categories;
     }
+
+    // Returns the ordinal of a category, or -1 if it is not allowed for this type
+    public int getCategoryOrdinal(String category) {
+        Integer ordinal = category == null ? null : categoryOrdinals.get(category);
+        return ordinal == null || ordinal >= categories.size() ? -1 : ordinal;
+    }
+
+    // Returns the ordinal of a category, allowed or not, or -1 if no row has had it
+    public int getKnownCategoryOrdinal(String category) {
+        Integer ordinal = category == null ? null : categoryOrdinals.get(category);
+        return ordinal == null ? -1 : ordinal;
+    }
+
+    // Returns the ordinal of a category read from a file, adding it after the others if it
+    // is not allowed and not yet known
+    public int getLoadedCategoryOrdinal(String category) {
+        Integer ordinal = categoryOrdinals.get(category);
+        return ordinal != null ? ordinal : addUnlistedCategory(category);
+    }
+
+    private synchronized int addUnlistedCategory(String category) {
+        Integer ordinal = categoryOrdinals.get(category);
+        if (ordinal != null) {
+            return ordinal;
+        }
+        String[] current = dictionary;
+        String[] larger = Arrays.copyOf(current, current.length + 1);
+        larger[current.length] = category;
+        // The dictionary is published before the ordinal, so every ordinal handed out has its name
+        dictionary = larger;
+        categoryOrdinals.put(category, current.length);
+        return current.length;
+    }
+
+    public String getCategory(int ordinal) {
+        return dictionary[ordinal];
+    }
+
+    // The number of categories in the dictionary, allowed or not
+    public int getCategoryCount() {
+        return dictionary.length;
+    }
+
+    // The categories of loaded rows that are not allowed, in ordinal order
+    public List<String> getUnlistedCategories() {
+        String[] current = dictionary;
+        return Collections.unmodifiableList(Arrays.asList(current).subList(categories.size(), current.length));
+    }
 }
 
 class Patient {
@@ -74,11 +137,14 @@ class MeasurementObservation {
     private Patient patient;
     private MeasurementObservationType observationType;
     private double value;
+    // Milliseconds since the epoch, 0 for observations saved before timestamps were kept
+    private long recordedAt;
 
-    public MeasurementObservation(Patient patient, MeasurementObservationType observationType, double value) {
+    public MeasurementObservation(Patient patient, MeasurementObservationType observationType, double value, long recordedAt) {
         this.patient = patient;
         this.observationType = observationType;
         this.value = value;
+        this.recordedAt = recordedAt;
     }
 
     // Getters
@@ -93,6 +159,10 @@ class MeasurementObservation {
     public double getValue() {
         return value;
     }
+
+    public long getRecordedAt() {
+        return recordedAt;
+    }
 }
 
 class CategoryObservation {
@@ -120,249 +190,2956 @@ class CategoryObservation {
     }
 }
 
-public class PatientRecordSystem {
-    private List<MeasurementObservationType> measurementObservationTypes;
-    private List<CategoryObservationType> categoryObservationTypes;
-    private List<Patient> patients;
-    private List<MeasurementObservation> measurementObservations;
-    private List<CategoryObservation> categoryObservations;
+// Primary-key index: keeps entries in insertion order and maps each key to its ordinal.
+// Adds are serialized, so the duplicate check is atomic; lookups and the list view never lock.
+// Entries are never overwritten and clear() replaces the map and array rather than emptying
+// them, so a snapshot can share both.
+class PrimaryKeyIndex<T> {
+    private volatile ConcurrentHashMap<String, Integer> ordinals;
+    private volatile Object[] values;
+    private volatile int size;
+    private final boolean readOnly;
+    private final List<T> view = new AbstractList<T>() {
+        @Override
+        public T get(int index) {
+            return PrimaryKeyIndex.this.get(index);
+        }
 
-    public PatientRecordSystem() {
-        measurementObservationTypes = new ArrayList<>();
-        categoryObservationTypes = new ArrayList<>();
-        patients = new ArrayList<>();
-        measurementObservations = new ArrayList<>();
-        categoryObservations = new ArrayList<>();
+        @Override
+        public int size() {
+            return size;
+        }
+    };
+
+    public PrimaryKeyIndex() {
+        ordinals = new ConcurrentHashMap<>();
+        values = new Object[16];
+        readOnly = false;
     }
 
-    // Methods to add observation types, patients, and observations
-    public void addMeasurementObservationType(String code, String name, String unit) throws Exception {
-        for (MeasurementObservationType type : measurementObservationTypes) {
-            if (type.getCode().equals(code)) {
-                throw new Exception("Observation type code already exists");
-            }
+    private PrimaryKeyIndex(ConcurrentHashMap<String, Integer> ordinals, Object[] values, int size) {
+        this.ordinals = ordinals;
+        this.values = values;
+        this.size = size;
+        readOnly = true;
+    }
+
+    // Returns the ordinal of the new entry, or -1 if the key already exists
+    public synchronized int add(String key, T value) {
+        checkWritable();
+        if (ordinals.containsKey(key)) {
+            return -1;
+        }
+        int ordinal = size;
+        Object[] current = values;
+        if (ordinal == current.length) {
+            current = Arrays.copyOf(current, ordinal * 2);
+            values = current;
         }
-        measurementObservationTypes.add(new MeasurementObservationType(code, name, unit));
+        current[ordinal] = value;
+        // Publish the value before the key so a reader that finds the key also finds the value
+        size = ordinal + 1;
+        ordinals.put(key, ordinal);
+        return ordinal;
     }
 
-    public void addCategoryObservationType(String code, String name, List<String> categories) throws Exception {
-        for (CategoryObservationType type : categoryObservationTypes) {
-            if (type.getCode().equals(code)) {
-                throw new Exception("Observation type code already exists");
-            }
+    // A snapshot shares the map with the index it was taken from, which may have added keys
+    // since; those have ordinals past the snapshot's size
+    public int ordinalOf(String key) {
+        Integer ordinal = ordinals.get(key);
+        return ordinal == null || ordinal >= size ? -1 : ordinal;
+    }
+
+    public T get(String key) {
+        int ordinal = ordinalOf(key);
+        return ordinal < 0 ? null : get(ordinal);
+    }
+
+    @SuppressWarnings("unchecked")
+    public T get(int ordinal) {
+        if (ordinal < 0 || ordinal >= size) {
+            throw new IndexOutOfBoundsException("Index: " + ordinal + ", Size: " + size);
         }
-        categoryObservationTypes.add(new CategoryObservationType(code, name, categories));
+        return (T) values[ordinal];
     }
 
-    public void addPatient(String id, String name) throws Exception {
-        for (Patient patient : patients) {
-            if (patient.getId().equals(id)) {
-                throw new Exception("Patient ID already exists");
-            }
+    public int size() {
+        return size;
+    }
+
+    public synchronized void clear() {
+        checkWritable();
+        ordinals = new ConcurrentHashMap<>();
+        values = new Object[16];
+        size = 0;
+    }
+
+    // Read-only index of the entries added so far, unaffected by later adds and clears
+    public synchronized PrimaryKeyIndex<T> snapshot() {
+        return new PrimaryKeyIndex<>(ordinals, values, size);
+    }
+
+    private void checkWritable() {
+        if (readOnly) {
+            throw new UnsupportedOperationException("Snapshot indexes are read-only");
         }
-        patients.add(new Patient(id, name));
     }
 
-    public void addMeasurementObservation(String patientId, String observationTypeCode, double value) throws Exception {
-        Patient patient = findPatientById(patientId);
-        MeasurementObservationType observationType = findMeasurementObservationTypeByCode(observationTypeCode);
-        if (patient == null || observationType == null) {
-            throw new Exception("Invalid patient ID or observation type code");
+    // Read-only list view in insertion order
+    public List<T> values() {
+        return view;
+    }
+}
+
+// Growable list of primitive ints. Appends are synchronized; reads never lock and see
+// every element added before the size they read.
+class IntList {
+    private volatile int[] elements;
+    private volatile int size;
+
+    public IntList() {
+        elements = new int[4];
+    }
+
+    public synchronized void add(int value) {
+        int[] current = elements;
+        if (size == current.length) {
+            current = Arrays.copyOf(current, size * 2);
+            elements = current;
         }
-        measurementObservations.add(new MeasurementObservation(patient, observationType, value));
+        current[size] = value;
+        size = size + 1;
     }
 
-    public void addCategoryObservation(String patientId, String observationTypeCode, String category) throws Exception {
-        Patient patient = findPatientById(patientId);
-        CategoryObservationType observationType = findCategoryObservationTypeByCode(observationTypeCode);
-        if (patient == null || observationType == null) {
-            throw new Exception("Invalid patient ID or observation type code");
+    // Appends the consecutive values first to first + count - 1
+    public synchronized void addRange(int first, int count) {
+        int[] current = elements;
+        if (size + count > current.length) {
+            current = Arrays.copyOf(current, Math.max(size * 2, size + count));
+            elements = current;
         }
-        if (!observationType.getCategories().contains(category)) {
-            throw new Exception("Invalid category for observation type");
+        for (int i = 0; i < count; i++) {
+            current[size + i] = first + i;
         }
-        categoryObservations.add(new CategoryObservation(patient, observationType, category));
+        size = size + count;
     }
 
-    // Helper methods to find objects
-    private Patient findPatientById(String id) {
-        for (Patient patient : patients) {
-            if (patient.getId().equals(id)) {
-                return patient;
-            }
+    public int get(int index) {
+        if (index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
         }
-        return null;
+        return elements[index];
     }
 
-    private MeasurementObservationType findMeasurementObservationTypeByCode(String code) {
-        for (MeasurementObservationType type : measurementObservationTypes) {
-            if (type.getCode().equals(code)) {
-                return type;
-            }
+    public int size() {
+        return size;
+    }
+
+    public synchronized void clear() {
+        size = 0;
+    }
+}
+
+// Append-only columnar storage of observations. Rows are kept in fixed-size chunks of
+// primitive arrays (patient ordinal, type ordinal and subclass columns), so growing never
+// copies existing data. Observation objects are only created when a row is read through get().
+//
+// Single-row adds use group append, as the journal uses group commit: each add queues its
+// row, and the first thread to find no append in progress takes the store lock and writes
+// every queued row, so under contention one lock acquisition serves many writers and the
+// others wait without blocking on the lock. size is published after the columns, so readers
+// never lock and never see a partly written row. Published rows are never written again and
+// clear() replaces the chunks, so a snapshot can share them.
+abstract class ObservationStore<T> extends AbstractList<T> {
+    protected static final int CHUNK_SHIFT = 14;
+    protected static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    protected static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    private static final int MAX_APPEND_BATCH = 1024;
+    // Times a queued writer checks for its row before parking. With one processor the thread
+    // appending cannot run while a waiter spins, so waiters park at once.
+    private static final int APPEND_SPINS = Runtime.getRuntime().availableProcessors() > 1 ? 100 : 0;
+
+    // Called under the store lock just before a row becomes visible, e.g. to journal it
+    interface RowListener {
+        void published(int row);
+    }
+
+    // A queued single-row add. row is set once the row is visible, and waiter is unparked.
+    protected abstract static class PendingRow {
+        final int patientOrdinal;
+        final int typeOrdinal;
+        final RowListener listener;
+        final Thread waiter = Thread.currentThread();
+        volatile int row = -1;
+        volatile RuntimeException failure;
+
+        PendingRow(int patientOrdinal, int typeOrdinal, RowListener listener) {
+            this.patientOrdinal = patientOrdinal;
+            this.typeOrdinal = typeOrdinal;
+            this.listener = listener;
         }
-        return null;
+
+        // Writes the subclass columns of the row
+        abstract void writeColumns(int row);
     }
 
-    private CategoryObservationType findCategoryObservationTypeByCode(String code) {
-        for (CategoryObservationType type : categoryObservationTypes) {
-            if (type.getCode().equals(code)) {
-                return type;
+    private final ConcurrentLinkedQueue<PendingRow> pendingRows = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean appending = new AtomicBoolean();
+    protected final PrimaryKeyIndex<Patient> patients;
+    private volatile int[][] patientChunks;
+    private volatile int[][] typeChunks;
+    private int chunkCount;
+    private volatile int size;
+    private final boolean readOnly;
+
+    protected ObservationStore(PrimaryKeyIndex<Patient> patients) {
+        this.patients = patients;
+        patientChunks = new int[4][];
+        typeChunks = new int[4][];
+        readOnly = false;
+    }
+
+    // Read-only store of the first rows of source, sharing its chunks. Callers hold the lock
+    // of source.
+    protected ObservationStore(ObservationStore<T> source, int rows, PrimaryKeyIndex<Patient> patients) {
+        if (rows < 0 || rows > source.size) {
+            throw new IllegalStateException("Observation store has " + source.size + " rows, not " + rows);
+        }
+        this.patients = patients;
+        patientChunks = source.patientChunks;
+        typeChunks = source.typeChunks;
+        chunkCount = source.chunkCount;
+        size = rows;
+        readOnly = true;
+    }
+
+    // Allocates chunks until the store can hold the given number of rows. Callers hold the
+    // store lock.
+    protected void ensureCapacity(int rows) {
+        checkWritable();
+        if (rows < 0) {
+            throw new IllegalStateException("Observation store is full");
+        }
+        while ((long) chunkCount << CHUNK_SHIFT < rows) {
+            int chunk = chunkCount;
+            if (chunk == patientChunks.length) {
+                patientChunks = Arrays.copyOf(patientChunks, chunk * 2);
+                typeChunks = Arrays.copyOf(typeChunks, chunk * 2);
             }
+            patientChunks[chunk] = new int[CHUNK_SIZE];
+            typeChunks[chunk] = new int[CHUNK_SIZE];
+            addChunk(chunk);
+            chunkCount = chunk + 1;
         }
-        return null;
     }
 
-    // Method to save data to files
-    public void saveData() throws Exception {
-        saveMeasurementObservationTypes();
-        saveCategoryObservationTypes();
-        savePatients();
-        saveMeasurementObservations();
-        saveCategoryObservations();
+    // Writes the shared columns of a row; subclasses also fill their own columns and then
+    // call publishRows
+    protected void writeRow(int row, int patientOrdinal, int typeOrdinal) {
+        patientChunks[row >>> CHUNK_SHIFT][row & CHUNK_MASK] = patientOrdinal;
+        typeChunks[row >>> CHUNK_SHIFT][row & CHUNK_MASK] = typeOrdinal;
     }
 
-    private void saveMeasurementObservationTypes() throws Exception {
-        try (PrintWriter writer = new PrintWriter("PRS-MeasurementObservationTypes.txt")) {
-            for (MeasurementObservationType type : measurementObservationTypes) {
-                writer.println(type.getCode() + ";" + type.getName() + ";" + type.getUnit());
-            }
+    // Takes the append role if no other thread holds it. The caller then writes the queued
+    // rows and its own under the store lock, and calls endAppend.
+    protected boolean beginAppend() {
+        return !appending.get() && appending.compareAndSet(false, true);
+    }
+
+    // Gives up the append role. A row queued meanwhile that was not written is appended by its
+    // own thread, which may be parked, so the first one in the queue is woken.
+    protected void endAppend() {
+        appending.set(false);
+        PendingRow next = pendingRows.peek();
+        if (next != null) {
+            LockSupport.unpark(next.waiter);
         }
     }
 
-    private void saveCategoryObservationTypes() throws Exception {
-        try (PrintWriter writer = new PrintWriter("PRS-CategoryObservationTypes.txt")) {
-            for (CategoryObservationType type : categoryObservationTypes) {
-                writer.print(type.getCode() + ";" + type.getName() + ";");
-                for (String category : type.getCategories()) {
-                    writer.print(category + ",");
+    // Queues the row and returns its row number once it is visible, written either by this
+    // thread or by the one appending when it was queued. Waiting writers spin briefly, then
+    // park until the thread appending has written their row or has given up the role.
+    protected int append(PendingRow pending) {
+        pendingRows.add(pending);
+        int spins = 0;
+        while (true) {
+            int row = pending.row;
+            if (row >= 0) {
+                return row;
+            }
+            RuntimeException failure = pending.failure;
+            if (failure != null) {
+                throw failure;
+            }
+            if (beginAppend()) {
+                try {
+                    synchronized (this) {
+                        appendPendingRows();
+                    }
+                } finally {
+                    endAppend();
                 }
-                writer.println();
+            } else if (spins < APPEND_SPINS) {
+                spins++;
+                Thread.onSpinWait();
+            } else {
+                LockSupport.park(this);
             }
         }
     }
 
-    private void savePatients() throws Exception {
-        try (PrintWriter writer = new PrintWriter("PRS-Patients.txt")) {
-            for (Patient patient : patients) {
-                writer.println(patient.getId() + ";" + patient.getName());
-            }
+    // Writes queued rows in queue order. Callers hold the store lock and the append role.
+    // Writers served here queue their next row at once, so the batch is capped to let this
+    // thread return.
+    protected void appendPendingRows() {
+        PendingRow pending;
+        for (int i = 0; i < MAX_APPEND_BATCH && (pending = pendingRows.poll()) != null; i++) {
+            appendRow(pending);
         }
     }
 
-    private void saveMeasurementObservations() throws Exception {
-        try (PrintWriter writer = new PrintWriter("PRS-MeasurementObservations.txt")) {
-            for (MeasurementObservation observation : measurementObservations) {
-                writer.println(observation.getPatient().getId() + ";" + observation.getObservationType().getCode() + ";" + observation.getValue());
+    private void appendRow(PendingRow pending) {
+        int row = size;
+        try {
+            ensureCapacity(row + 1);
+            writeRow(row, pending.patientOrdinal, pending.typeOrdinal);
+            pending.writeColumns(row);
+            if (pending.listener != null) {
+                pending.listener.published(row);
             }
+        } catch (RuntimeException e) {
+            pending.failure = e;
+            wake(pending);
+            return;
         }
+        size = row + 1;
+        pending.row = row;
+        wake(pending);
     }
 
-    private void saveCategoryObservations() throws Exception {
-        try (PrintWriter writer = new PrintWriter("PRS-CategoryObservations.txt")) {
-            for (CategoryObservation observation : categoryObservations) {
-                writer.println(observation.getPatient().getId() + ";" + observation.getObservationType().getCode() + ";" + observation.getCategory());
+    private static void wake(PendingRow pending) {
+        if (pending.waiter != Thread.currentThread()) {
+            LockSupport.unpark(pending.waiter);
+        }
+    }
+
+    // Makes rows first to end - 1 visible to readers
+    protected void publishRows(int first, int end, RowListener listener) {
+        if (listener != null) {
+            for (int row = first; row < end; row++) {
+                listener.published(row);
             }
         }
+        size = end;
     }
 
-    // Method to load data from files
-    public void loadData() throws Exception {
-        loadMeasurementObservationTypes();
-        loadCategoryObservationTypes();
-        loadPatients();
-        loadMeasurementObservations();
-        loadCategoryObservations();
+    // Appends every row of source under a single lock acquisition, copying the columns in runs
+    // that lie within one chunk of both stores. Returns the row number of the first one.
+    protected synchronized int addAllRows(ObservationStore<T> source) {
+        int first = size;
+        int rows = source.size;
+        ensureCapacity(first + rows);
+        for (int from = 0; from < rows; ) {
+            int to = first + from;
+            int count = Math.min(rows - from, CHUNK_SIZE - Math.max(from & CHUNK_MASK, to & CHUNK_MASK));
+            copyColumns(source, from >>> CHUNK_SHIFT, from & CHUNK_MASK, to >>> CHUNK_SHIFT, to & CHUNK_MASK, count);
+            from += count;
+        }
+        publishRows(first, first + rows, null);
+        return first;
     }
 
-    private void loadMeasurementObservationTypes() throws Exception {
-        measurementObservationTypes.clear();
-        try (Scanner scanner = new Scanner(new File("PRS-MeasurementObservationTypes.txt"))) {
-            while (scanner.hasNextLine()) {
-                String[] parts = scanner.nextLine().split(";");
-                if (parts.length == 3) {
-                    measurementObservationTypes.add(new MeasurementObservationType(parts[0], parts[1], parts[2]));
-                }
+    // Copies count rows from a chunk of source to a chunk of this store; subclasses also copy
+    // their own columns
+    protected void copyColumns(ObservationStore<T> source, int sourceChunk, int sourceIndex, int chunk, int index, int count) {
+        System.arraycopy(source.patientChunks[sourceChunk], sourceIndex, patientChunks[chunk], index, count);
+        System.arraycopy(source.typeChunks[sourceChunk], sourceIndex, typeChunks[chunk], index, count);
+    }
+
+    // Allocates chunk number index of every subclass column
+    protected abstract void addChunk(int index);
+
+    protected abstract void clearChunks();
+
+    // Column chunks for scans; only rows below a size read before the call are complete
+    protected int[] patientChunk(int chunk) {
+        return patientChunks[chunk];
+    }
+
+    protected int[] typeChunk(int chunk) {
+        return typeChunks[chunk];
+    }
+
+    public int patientOrdinal(int row) {
+        return patientChunks[checkRow(row) >>> CHUNK_SHIFT][row & CHUNK_MASK];
+    }
+
+    public int typeOrdinal(int row) {
+        return typeChunks[checkRow(row) >>> CHUNK_SHIFT][row & CHUNK_MASK];
+    }
+
+    protected int checkRow(int row) {
+        if (row < 0 || row >= size) {
+            throw new IndexOutOfBoundsException("Index: " + row + ", Size: " + size);
+        }
+        return row;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    private void checkWritable() {
+        if (readOnly) {
+            throw new UnsupportedOperationException("Snapshot stores are read-only");
+        }
+    }
+
+    // Not safe to call while other threads are adding
+    @Override
+    public synchronized void clear() {
+        checkWritable();
+        patientChunks = new int[4][];
+        typeChunks = new int[4][];
+        clearChunks();
+        chunkCount = 0;
+        size = 0;
+    }
+}
+
+// Measurement observations stored as patient ordinal, type ordinal, a double value and the
+// recorded-at time per row
+class MeasurementObservationStore extends ObservationStore<MeasurementObservation> {
+    private final PrimaryKeyIndex<MeasurementObservationType> types;
+    private volatile double[][] valueChunks;
+    private volatile long[][] timeChunks;
+
+    public MeasurementObservationStore(PrimaryKeyIndex<Patient> patients, PrimaryKeyIndex<MeasurementObservationType> types) {
+        super(patients);
+        this.types = types;
+        valueChunks = new double[4][];
+        timeChunks = new long[4][];
+    }
+
+    private MeasurementObservationStore(MeasurementObservationStore source, int rows, PrimaryKeyIndex<Patient> patients, PrimaryKeyIndex<MeasurementObservationType> types) {
+        super(source, rows, patients);
+        this.types = types;
+        valueChunks = source.valueChunks;
+        timeChunks = source.timeChunks;
+    }
+
+    // Read-only store of the first rows, unaffected by later adds and clears, that resolves
+    // ordinals against the given index snapshots
+    public synchronized MeasurementObservationStore snapshot(int rows, PrimaryKeyIndex<Patient> patients, PrimaryKeyIndex<MeasurementObservationType> types) {
+        return new MeasurementObservationStore(this, rows, patients, types);
+    }
+
+    public int add(int patientOrdinal, int typeOrdinal, double value, long recordedAt) {
+        return add(patientOrdinal, typeOrdinal, value, recordedAt, null);
+    }
+
+    public int add(int patientOrdinal, int typeOrdinal, double value, long recordedAt, RowListener listener) {
+        if (!beginAppend()) {
+            return append(new PendingMeasurement(patientOrdinal, typeOrdinal, value, recordedAt, listener));
+        }
+        try {
+            synchronized (this) {
+                appendPendingRows();
+                int row = size();
+                ensureCapacity(row + 1);
+                writeRow(row, patientOrdinal, typeOrdinal);
+                writeColumns(row, value, recordedAt);
+                publishRows(row, row + 1, listener);
+                return row;
             }
+        } finally {
+            endAppend();
         }
     }
 
-    private void loadCategoryObservationTypes() throws Exception {
-        categoryObservationTypes.clear();
-        try (Scanner scanner = new Scanner(new File("PRS-CategoryObservationTypes.txt"))) {
-            while (scanner.hasNextLine()) {
-                String[] parts = scanner.nextLine().split(";");
-                if (parts.length >= 2) {
-                    String code = parts[0];
-                    String name = parts[1];
-                    List<String> categories = new ArrayList<>();
-                    if (parts.length > 2 && !parts[2].isEmpty()) {
-                        categories.addAll(Arrays.asList(parts[2].split(",")));
+    private void writeColumns(int row, double value, long recordedAt) {
+        valueChunks[row >>> CHUNK_SHIFT][row & CHUNK_MASK] = value;
+        timeChunks[row >>> CHUNK_SHIFT][row & CHUNK_MASK] = recordedAt;
+    }
+
+    private class PendingMeasurement extends PendingRow {
+        final double value;
+        final long recordedAt;
+
+        PendingMeasurement(int patientOrdinal, int typeOrdinal, double value, long recordedAt, RowListener listener) {
+            super(patientOrdinal, typeOrdinal, listener);
+            this.value = value;
+            this.recordedAt = recordedAt;
+        }
+
+        @Override
+        void writeColumns(int row) {
+            MeasurementObservationStore.this.writeColumns(row, value, recordedAt);
+        }
+    }
+
+    // Appends the rows at offset to offset + count - 1 of the arrays under a single lock
+    // acquisition and publishes them together. Returns the row number of the first one.
+    public synchronized int addAll(int[] patientOrdinals, int[] typeOrdinals, double[] values, long[] recordedAt, int offset, int count, RowListener listener) {
+        int first = size();
+        ensureCapacity(first + count);
+        double[][] chunks = valueChunks;
+        long[][] times = timeChunks;
+        for (int i = 0; i < count; i++) {
+            int row = first + i;
+            writeRow(row, patientOrdinals[offset + i], typeOrdinals[offset + i]);
+            chunks[row >>> CHUNK_SHIFT][row & CHUNK_MASK] = values[offset + i];
+            times[row >>> CHUNK_SHIFT][row & CHUNK_MASK] = recordedAt[offset + i];
+        }
+        publishRows(first, first + count, listener);
+        return first;
+    }
+
+    // Appends every row of source, e.g. one parsed separately
+    public int addAll(MeasurementObservationStore source) {
+        return addAllRows(source);
+    }
+
+    @Override
+    protected void copyColumns(ObservationStore<MeasurementObservation> source, int sourceChunk, int sourceIndex, int chunk, int index, int count) {
+        super.copyColumns(source, sourceChunk, sourceIndex, chunk, index, count);
+        MeasurementObservationStore measurements = (MeasurementObservationStore) source;
+        System.arraycopy(measurements.valueChunks[sourceChunk], sourceIndex, valueChunks[chunk], index, count);
+        System.arraycopy(measurements.timeChunks[sourceChunk], sourceIndex, timeChunks[chunk], index, count);
+    }
+
+    // Sets bit p of matches[c] for every patient p with a row from from to to - 1 of type
+    // typeOrdinals[c] and a value between mins[c] and maxs[c] inclusive
+    public void scan(int from, int to, int[] typeOrdinals, double[] mins, double[] maxs, long[][] matches) {
+        int conditions = typeOrdinals.length;
+        for (int row = from; row < to; ) {
+            int chunk = row >>> CHUNK_SHIFT;
+            int start = row & CHUNK_MASK;
+            int end = Math.min(CHUNK_SIZE, start + to - row);
+            int[] patientColumn = patientChunk(chunk);
+            int[] typeColumn = typeChunk(chunk);
+            double[] valueColumn = valueChunks[chunk];
+            for (int i = start; i < end; i++) {
+                int type = typeColumn[i];
+                for (int c = 0; c < conditions; c++) {
+                    if (type == typeOrdinals[c] && valueColumn[i] >= mins[c] && valueColumn[i] <= maxs[c]) {
+                        int patient = patientColumn[i];
+                        matches[c][patient >>> 6] |= 1L << patient;
                     }
-                    categoryObservationTypes.add(new CategoryObservationType(code, name, categories));
                 }
             }
+            row += end - start;
         }
     }
 
-    private void loadPatients() throws Exception {
-        patients.clear();
-        try (Scanner scanner = new Scanner(new File("PRS-Patients.txt"))) {
-            while (scanner.hasNextLine()) {
-                String[] parts = scanner.nextLine().split(";");
-                if (parts.length == 2) {
-                    patients.add(new Patient(parts[0], parts[1]));
-                }
-            }
+    public double value(int row) {
+        return valueChunks[checkRow(row) >>> CHUNK_SHIFT][row & CHUNK_MASK];
+    }
+
+    public long recordedAt(int row) {
+        return timeChunks[checkRow(row) >>> CHUNK_SHIFT][row & CHUNK_MASK];
+    }
+
+    @Override
+    public MeasurementObservation get(int row) {
+        return new MeasurementObservation(patients.get(patientOrdinal(row)), types.get(typeOrdinal(row)), value(row), recordedAt(row));
+    }
+
+    @Override
+    protected void addChunk(int index) {
+        if (index == valueChunks.length) {
+            valueChunks = Arrays.copyOf(valueChunks, index * 2);
+            timeChunks = Arrays.copyOf(timeChunks, index * 2);
         }
+        valueChunks[index] = new double[CHUNK_SIZE];
+        timeChunks[index] = new long[CHUNK_SIZE];
     }
 
-    private void loadMeasurementObservations() throws Exception {
-        measurementObservations.clear();
-        try (Scanner scanner = new Scanner(new File("PRS-MeasurementObservations.txt"))) {
-            while (scanner.hasNextLine()) {
-                String[] parts = scanner.nextLine().split(";");
-                if (parts.length == 3) {
-                    Patient patient = findPatientById(parts[0]);
-                    MeasurementObservationType observationType = findMeasurementObservationTypeByCode(parts[1]);
-                    double value = Double.parseDouble(parts[2]);
-                    if (patient != null && observationType != null) {
-                        measurementObservations.add(new MeasurementObservation(patient, observationType, value));
-                    }
-                }
+    @Override
+    protected void clearChunks() {
+        valueChunks = new double[4][];
+        timeChunks = new long[4][];
+    }
+}
+
+// Category observations stored as patient ordinal, type ordinal and category ordinal per row
+class CategoryObservationStore extends ObservationStore<CategoryObservation> {
+    private final PrimaryKeyIndex<CategoryObservationType> types;
+    private volatile int[][] categoryChunks;
+
+    public CategoryObservationStore(PrimaryKeyIndex<Patient> patients, PrimaryKeyIndex<CategoryObservationType> types) {
+        super(patients);
+        this.types = types;
+        categoryChunks = new int[4][];
+    }
+
+    private CategoryObservationStore(CategoryObservationStore source, int rows, PrimaryKeyIndex<Patient> patients, PrimaryKeyIndex<CategoryObservationType> types) {
+        super(source, rows, patients);
+        this.types = types;
+        categoryChunks = source.categoryChunks;
+    }
+
+    public synchronized CategoryObservationStore snapshot(int rows, PrimaryKeyIndex<Patient> patients, PrimaryKeyIndex<CategoryObservationType> types) {
+        return new CategoryObservationStore(this, rows, patients, types);
+    }
+
+    public int add(int patientOrdinal, int typeOrdinal, int categoryOrdinal) {
+        return add(patientOrdinal, typeOrdinal, categoryOrdinal, null);
+    }
+
+    public int add(int patientOrdinal, int typeOrdinal, int categoryOrdinal, RowListener listener) {
+        if (!beginAppend()) {
+            return append(new PendingCategory(patientOrdinal, typeOrdinal, categoryOrdinal, listener));
+        }
+        try {
+            synchronized (this) {
+                appendPendingRows();
+                int row = size();
+                ensureCapacity(row + 1);
+                writeRow(row, patientOrdinal, typeOrdinal);
+                categoryChunks[row >>> CHUNK_SHIFT][row & CHUNK_MASK] = categoryOrdinal;
+                publishRows(row, row + 1, listener);
+                return row;
             }
+        } finally {
+            endAppend();
         }
     }
 
-    private void loadCategoryObservations() throws Exception {
-        categoryObservations.clear();
-        try (Scanner scanner = new Scanner(new File("PRS-CategoryObservations.txt"))) {
-            while (scanner.hasNextLine()) {
-                String[] parts = scanner.nextLine().split(";");
-                if (parts.length == 3) {
-                    Patient patient = findPatientById(parts[0]);
-                    CategoryObservationType observationType = findCategoryObservationTypeByCode(parts[1]);
-                    String category = parts[2];
-                    if (patient != null && observationType != null) {
-                        categoryObservations.add(new CategoryObservation(patient, observationType, category));
-                    }
-                }
+    private class PendingCategory extends PendingRow {
+        final int categoryOrdinal;
+
+        PendingCategory(int patientOrdinal, int typeOrdinal, int categoryOrdinal, RowListener listener) {
+            super(patientOrdinal, typeOrdinal, listener);
+            this.categoryOrdinal = categoryOrdinal;
+        }
+
+        @Override
+        void writeColumns(int row) {
+            categoryChunks[row >>> CHUNK_SHIFT][row & CHUNK_MASK] = categoryOrdinal;
+        }
+    }
+
+    // Appends the rows at offset to offset + count - 1 of the arrays under a single lock
+    // acquisition and publishes them together. Returns the row number of the first one.
+    public synchronized int addAll(int[] patientOrdinals, int[] typeOrdinals, int[] categoryOrdinals, int offset, int count, RowListener listener) {
+        int first = size();
+        ensureCapacity(first + count);
+        int[][] chunks = categoryChunks;
+        for (int i = 0; i < count; i++) {
+            int row = first + i;
+            writeRow(row, patientOrdinals[offset + i], typeOrdinals[offset + i]);
+            chunks[row >>> CHUNK_SHIFT][row & CHUNK_MASK] = categoryOrdinals[offset + i];
+        }
+        publishRows(first, first + count, listener);
+        return first;
+    }
+
+    // Appends every row of source, e.g. one parsed separately
+    public int addAll(CategoryObservationStore source) {
+        return addAllRows(source);
+    }
+
+    @Override
+    protected void copyColumns(ObservationStore<CategoryObservation> source, int sourceChunk, int sourceIndex, int chunk, int index, int count) {
+        super.copyColumns(source, sourceChunk, sourceIndex, chunk, index, count);
+        System.arraycopy(((CategoryObservationStore) source).categoryChunks[sourceChunk], sourceIndex, categoryChunks[chunk], index, count);
+    }
+
+    public int categoryOrdinal(int row) {
+        return categoryChunks[checkRow(row) >>> CHUNK_SHIFT][row & CHUNK_MASK];
+    }
+
+    // Decodes the category string of a row
+    public String category(int row) {
+        return types.get(typeOrdinal(row)).getCategory(categoryOrdinal(row));
+    }
+
+    @Override
+    public CategoryObservation get(int row) {
+        return new CategoryObservation(patients.get(patientOrdinal(row)), types.get(typeOrdinal(row)), category(row));
+    }
+
+    @Override
+    protected void addChunk(int index) {
+        if (index == categoryChunks.length) {
+            categoryChunks = Arrays.copyOf(categoryChunks, index * 2);
+        }
+        categoryChunks[index] = new int[CHUNK_SIZE];
+    }
+
+    @Override
+    protected void clearChunks() {
+        categoryChunks = new int[4][];
+    }
+}
+
+// Secondary index from patient ordinal to the rows of that patient's observations.
+// Appends lock only the patient's own row list; reads never lock, and a patient's list is
+// only created by the first add of a row for that patient.
+class PatientObservationIndex {
+    // Returned for patients without rows; never added to
+    private static final IntList NO_ROWS = new IntList();
+
+    private volatile AtomicReferenceArray<IntList> measurementRows;
+    private volatile AtomicReferenceArray<IntList> categoryRows;
+
+    public PatientObservationIndex() {
+        measurementRows = new AtomicReferenceArray<>(16);
+        categoryRows = new AtomicReferenceArray<>(16);
+    }
+
+    public void addMeasurement(int patientOrdinal, int row) {
+        rowsForAdd(true, patientOrdinal).add(row);
+    }
+
+    public void addCategory(int patientOrdinal, int row) {
+        rowsForAdd(false, patientOrdinal).add(row);
+    }
+
+    // Indexes rows first to first + count - 1, whose patients are given in row order from
+    // patientOrdinals[offset]. Runs of rows of the same patient are added with one call.
+    public void addMeasurements(int[] patientOrdinals, int offset, int first, int count) {
+        for (int i = 0; i < count; ) {
+            int end = runEnd(patientOrdinals, offset, i, count);
+            rowsForAdd(true, patientOrdinals[offset + i]).addRange(first + i, end - i);
+            i = end;
+        }
+    }
+
+    public void addCategories(int[] patientOrdinals, int offset, int first, int count) {
+        for (int i = 0; i < count; ) {
+            int end = runEnd(patientOrdinals, offset, i, count);
+            rowsForAdd(false, patientOrdinals[offset + i]).addRange(first + i, end - i);
+            i = end;
+        }
+    }
+
+    private static int runEnd(int[] patientOrdinals, int offset, int start, int count) {
+        int end = start + 1;
+        while (end < count && patientOrdinals[offset + end] == patientOrdinals[offset + start]) {
+            end++;
+        }
+        return end;
+    }
+
+    public IntList measurementRows(int patientOrdinal) {
+        IntList rows = find(measurementRows, patientOrdinal);
+        return rows != null ? rows : NO_ROWS;
+    }
+
+    public IntList categoryRows(int patientOrdinal) {
+        IntList rows = find(categoryRows, patientOrdinal);
+        return rows != null ? rows : NO_ROWS;
+    }
+
+    public synchronized void clearMeasurements() {
+        measurementRows = new AtomicReferenceArray<>(16);
+    }
+
+    public synchronized void clearCategories() {
+        categoryRows = new AtomicReferenceArray<>(16);
+    }
+
+    private static IntList find(AtomicReferenceArray<IntList> rows, int patientOrdinal) {
+        return patientOrdinal < rows.length() ? rows.get(patientOrdinal) : null;
+    }
+
+    private IntList rowsForAdd(boolean measurements, int patientOrdinal) {
+        IntList rows = find(measurements ? measurementRows : categoryRows, patientOrdinal);
+        return rows != null ? rows : createRows(measurements, patientOrdinal);
+    }
+
+    private synchronized IntList createRows(boolean measurements, int patientOrdinal) {
+        AtomicReferenceArray<IntList> rows = measurements ? measurementRows : categoryRows;
+        if (patientOrdinal >= rows.length()) {
+            AtomicReferenceArray<IntList> larger = new AtomicReferenceArray<>(Math.max(patientOrdinal + 1, rows.length() * 2));
+            for (int i = 0; i < rows.length(); i++) {
+                larger.set(i, rows.get(i));
+            }
+            rows = larger;
+            if (measurements) {
+                measurementRows = rows;
+            } else {
+                categoryRows = rows;
             }
         }
+        IntList patientRows = rows.get(patientOrdinal);
+        if (patientRows == null) {
+            patientRows = new IntList();
+            rows.set(patientOrdinal, patientRows);
+        }
+        return patientRows;
     }
+}
 
-    // Other getter methods for inspection
-    public List<MeasurementObservationType> getMeasurementObservationTypes() {
-        return measurementObservationTypes;
+// All observations of a single patient
+class PatientRecord {
+    private Patient patient;
+    private List<MeasurementObservation> measurementObservations;
+    private List<CategoryObservation> categoryObservations;
+
+    public PatientRecord(Patient patient, List<MeasurementObservation> measurementObservations, List<CategoryObservation> categoryObservations) {
+        this.patient = patient;
+        this.measurementObservations = measurementObservations;
+        this.categoryObservations = categoryObservations;
     }
 
-    public List<CategoryObservationType> getCategoryObservationTypes() {
-        return categoryObservationTypes;
+    // Getters
+    public Patient getPatient() {
+        return patient;
     }
 
-    public List<Patient> getPatients() {
-        return patients;
+    public List<MeasurementObservation> getMeasurementObservations() {
+        return measurementObservations;
+    }
+
+    public List<CategoryObservation> getCategoryObservations() {
+        return categoryObservations;
+    }
+}
+
+public class PatientRecordSystem {
+    // Journal record types
+    private static final byte JOURNAL_MEASUREMENT_OBSERVATION_TYPE = 1;
+    private static final byte JOURNAL_CATEGORY_OBSERVATION_TYPE = 2;
+    private static final byte JOURNAL_PATIENT = 3;
+    private static final byte JOURNAL_MEASUREMENT_OBSERVATION = 4;
+    private static final byte JOURNAL_CATEGORY_OBSERVATION = 5;
+    // Measurement observation with its recorded-at time; type 4 records come from journals
+    // written before timestamps were kept
+    private static final byte JOURNAL_TIMED_MEASUREMENT_OBSERVATION = 6;
+    private static final long JOURNAL_COMPACTION_SIZE = 64L << 20;
+    private static final int BATCH_SLICE_SIZE = 1 << 16;
+    private static final int DEFAULT_RECORD_CACHE_SIZE = 1000;
+    private static final int DEFAULT_PAGE_CACHE_SIZE = 1024;
+    // Observation rows held in memory at a time by convertTextToPaged
+    private static final int PAGED_IMPORT_RUN_ROWS = 1 << 20;
+    // Runs merged at once, each with a file open and a read buffer
+    private static final int MAX_MERGED_RUNS = 64;
+    // The text files in the order they are written, one per table
+    private static final String[] DATA_FILES = {"PRS-MeasurementObservationTypes.txt", "PRS-CategoryObservationTypes.txt",
+            "PRS-Patients.txt", "PRS-MeasurementObservations.txt", "PRS-CategoryObservations.txt"};
+
+    private PrimaryKeyIndex<MeasurementObservationType> measurementObservationTypes;
+    private PrimaryKeyIndex<CategoryObservationType> categoryObservationTypes;
+    private PrimaryKeyIndex<Patient> patients;
+    private MeasurementObservationStore measurementObservations;
+    private CategoryObservationStore categoryObservations;
+    private PatientObservationIndex patientObservations;
+    private MeasurementSeriesIndex measurementSeries;
+    private MeasurementStatisticsIndex measurementStatistics;
+    private CategoryIndex categoryIndex;
+    private PatientRecordCache recordCache;
+    private PatientRecordSystemMetrics metrics;
+    // Observations on disk after loadData(SnapshotFormat.PAGED), or null
+    private volatile PagedObservations pagedObservations;
+    private int pageCacheSize = DEFAULT_PAGE_CACHE_SIZE;
+    private Path dataDirectory;
+    private volatile WriteAheadLog journal;
+    // Held while the text files are written or any data is loaded, so checkpoints never
+    // overlap each other, saveData or loadData
+    private final ReentrantLock checkpointLock = new ReentrantLock();
+    // With paged observations adds and reads hold the read lock, so savePagedSnapshot can move
+    // the rows in memory to disk without losing rows added meanwhile or showing a reader rows
+    // twice or a closed file
+    private final ReentrantReadWriteLock pagedSaveLock = new ReentrantReadWriteLock();
+    // Random non-zero id of the contents, new for every system and whenever loadData or
+    // clearData replaces them. Within a generation rows are only appended, so replicas use it
+    // to tell whether their row offsets still hold.
+    private volatile long generation = newGeneration();
+    // Rows of each table as last written to or loaded from its text file, or -1 if unknown.
+    // Tables only grow, so a table whose row count is unchanged needs no rewrite.
+    private final long[] checkpointedRows = {-1, -1, -1, -1, -1};
+    // Checkpoint waiting to start, which new requests join, and the latest one requested
+    private final AtomicReference<CompletableFuture<Void>> queuedCheckpoint = new AtomicReference<>();
+    private volatile CompletableFuture<Void> latestCheckpoint = CompletableFuture.completedFuture(null);
+    private final ThreadPoolExecutor checkpointer;
+
+    public PatientRecordSystem() {
+        this(Paths.get(""));
+    }
+
+    // Keeps the PRS-*.txt files in the given directory instead of the working directory
+    public PatientRecordSystem(Path dataDirectory) {
+        this.dataDirectory = dataDirectory;
+        measurementObservationTypes = new PrimaryKeyIndex<>();
+        categoryObservationTypes = new PrimaryKeyIndex<>();
+        patients = new PrimaryKeyIndex<>();
+        measurementObservations = new MeasurementObservationStore(patients, measurementObservationTypes);
+        categoryObservations = new CategoryObservationStore(patients, categoryObservationTypes);
+        patientObservations = new PatientObservationIndex();
+        measurementSeries = new MeasurementSeriesIndex();
+        measurementStatistics = new MeasurementStatisticsIndex();
+        categoryIndex = new CategoryIndex();
+        recordCache = new PatientRecordCache(DEFAULT_RECORD_CACHE_SIZE);
+        metrics = new PatientRecordSystemMetrics();
+        // One daemon thread, started by the first checkpoint and stopped after a minute idle
+        checkpointer = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "prs-checkpointer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        checkpointer.allowCoreThreadTimeOut(true);
+    }
+
+    // Methods to add observation types, patients, and observations. All of them may be called
+    // from several threads at once, and concurrent readers never block them.
+    public void addMeasurementObservationType(String code, String name, String unit) throws Exception {
+        long start = System.nanoTime();
+        try {
+            MeasurementObservationType type = new MeasurementObservationType(code, name, unit);
+            JournalRecord record = null;
+            if (journal != null) {
+                record = new JournalRecord(JOURNAL_MEASUREMENT_OBSERVATION_TYPE);
+                record.out.writeUTF(code);
+                record.out.writeUTF(name);
+                record.out.writeUTF(unit);
+            }
+            addJournaled(measurementObservationTypes, code, type, record, "Observation type code already exists");
+        } finally {
+            metrics.recordOperation(PatientRecordSystemMetrics.Operation.ADD_MEASUREMENT_OBSERVATION_TYPE, start);
+        }
+    }
+
+    public void addCategoryObservationType(String code, String name, List<String> categories) throws Exception {
+        long start = System.nanoTime();
+        try {
+            CategoryObservationType type = new CategoryObservationType(code, name, categories);
+            JournalRecord record = null;
+            if (journal != null) {
+                record = new JournalRecord(JOURNAL_CATEGORY_OBSERVATION_TYPE);
+                record.out.writeUTF(code);
+                record.out.writeUTF(name);
+                record.out.writeInt(categories.size());
+                for (String category : categories) {
+                    record.out.writeUTF(category);
+                }
+            }
+            addJournaled(categoryObservationTypes, code, type, record, "Observation type code already exists");
+        } finally {
+            metrics.recordOperation(PatientRecordSystemMetrics.Operation.ADD_CATEGORY_OBSERVATION_TYPE, start);
+        }
+    }
+
+    public void addPatient(String id, String name) throws Exception {
+        long start = System.nanoTime();
+        try {
+            Patient patient = new Patient(id, name);
+            JournalRecord record = null;
+            if (journal != null) {
+                record = new JournalRecord(JOURNAL_PATIENT);
+                record.out.writeUTF(id);
+                record.out.writeUTF(name);
+            }
+            addJournaled(patients, id, patient, record, "Patient ID already exists");
+        } finally {
+            metrics.recordOperation(PatientRecordSystemMetrics.Operation.ADD_PATIENT, start);
+        }
+    }
+
+    // Adds an entry and appends its journal record under the index lock, so the journal holds
+    // entries in the same order as the index; only the fsync happens outside the lock
+    private <T> void addJournaled(PrimaryKeyIndex<T> index, String key, T value, JournalRecord record, String duplicateMessage) throws Exception {
+        WriteAheadLog log = journal;
+        long sequence = 0;
+        synchronized (index) {
+            if (index.ordinalOf(key) >= 0) {
+                metrics.recordError(PatientRecordSystemMetrics.ErrorType.DUPLICATE_KEY);
+                throw new Exception(duplicateMessage);
+            }
+            if (log != null && record != null) {
+                sequence = log.append(record.bytes.toByteArray());
+            }
+            index.add(key, value);
+        }
+        if (sequence > 0) {
+            log.sync(sequence);
+        }
+    }
+
+    // Records the observation as taken now
+    public void addMeasurementObservation(String patientId, String observationTypeCode, double value) throws Exception {
+        addMeasurementObservation(patientId, observationTypeCode, value, System.currentTimeMillis());
+    }
+
+    // recordedAt is in milliseconds since the epoch
+    public void addMeasurementObservation(String patientId, String observationTypeCode, double value, long recordedAt) throws Exception {
+        long start = System.nanoTime();
+        try {
+            int patientOrdinal = patients.ordinalOf(patientId);
+            int typeOrdinal = measurementObservationTypes.ordinalOf(observationTypeCode);
+            if (patientOrdinal < 0 || typeOrdinal < 0) {
+                metrics.recordError(PatientRecordSystemMetrics.ErrorType.INVALID_PATIENT_OR_TYPE);
+                throw new Exception("Invalid patient ID or observation type code");
+            }
+            WriteAheadLog log = journal;
+            if (log == null) {
+                Lock pagedLock = lockIfPaged();
+                try {
+                    appendMeasurementObservation(patientOrdinal, typeOrdinal, value, recordedAt);
+                } finally {
+                    unlockIfPaged(pagedLock);
+                }
+                return;
+            }
+            // Journal inside the publish callback, so records reach the journal in row order
+            long[] sequence = new long[1];
+            int row = measurementObservations.add(patientOrdinal, typeOrdinal, value, recordedAt,
+                    published -> sequence[0] = log.append(measurementObservationRecord(published, patientId, observationTypeCode, value, recordedAt)));
+            indexMeasurementObservation(patientOrdinal, typeOrdinal, row, value, recordedAt);
+            log.sync(sequence[0]);
+        } finally {
+            metrics.recordOperation(PatientRecordSystemMetrics.Operation.ADD_MEASUREMENT_OBSERVATION, start);
+        }
+    }
+
+    public void addCategoryObservation(String patientId, String observationTypeCode, String category) throws Exception {
+        long start = System.nanoTime();
+        try {
+            int patientOrdinal = patients.ordinalOf(patientId);
+            int typeOrdinal = categoryObservationTypes.ordinalOf(observationTypeCode);
+            if (patientOrdinal < 0 || typeOrdinal < 0) {
+                metrics.recordError(PatientRecordSystemMetrics.ErrorType.INVALID_PATIENT_OR_TYPE);
+                throw new Exception("Invalid patient ID or observation type code");
+            }
+            int categoryOrdinal = categoryObservationTypes.get(typeOrdinal).getCategoryOrdinal(category);
+            if (categoryOrdinal < 0) {
+                metrics.recordError(PatientRecordSystemMetrics.ErrorType.INVALID_CATEGORY);
+                throw new Exception("Invalid category for observation type");
+            }
+            WriteAheadLog log = journal;
+            if (log == null) {
+                Lock pagedLock = lockIfPaged();
+                try {
+                    appendCategoryObservation(patientOrdinal, typeOrdinal, categoryOrdinal);
+                } finally {
+                    unlockIfPaged(pagedLock);
+                }
+                return;
+            }
+            long[] sequence = new long[1];
+            int row = categoryObservations.add(patientOrdinal, typeOrdinal, categoryOrdinal,
+                    published -> sequence[0] = log.append(categoryObservationRecord(published, patientId, observationTypeCode, category)));
+            indexCategoryObservation(patientOrdinal, typeOrdinal, categoryOrdinal, row);
+            log.sync(sequence[0]);
+        } finally {
+            metrics.recordOperation(PatientRecordSystemMetrics.Operation.ADD_CATEGORY_OBSERVATION, start);
+        }
+    }
+
+    // Adds every valid row of the batch and lists the invalid ones in the result instead of
+    // throwing. Rows are validated and appended in slices of BATCH_SLICE_SIZE rows, so the
+    // scratch arrays stay small however large the batch is. In journal mode the whole batch
+    // costs a single sync.
+    public BatchResult addObservations(ObservationBatch batch) throws IOException {
+        return addObservations(batch, false);
+    }
+
+    // keepUnlistedCategories accepts category rows the type does not allow, as a load does.
+    // Followers apply the primary's rows with it, since loaded rows may have such categories.
+    BatchResult addObservations(ObservationBatch batch, boolean keepUnlistedCategories) throws IOException {
+        long start = System.nanoTime();
+        try {
+            BatchSlice slice = new BatchSlice(Math.min(batch.size(), BATCH_SLICE_SIZE));
+            List<BatchError> errors = new ArrayList<>();
+            WriteAheadLog log = journal;
+            long sequence = 0;
+            int added = 0;
+            for (int from = 0; from < batch.size(); from += BATCH_SLICE_SIZE) {
+                int to = Math.min(batch.size(), from + BATCH_SLICE_SIZE);
+                validateSlice(batch, from, to, slice, errors, keepUnlistedCategories);
+                Lock pagedLock = lockIfPaged();
+                try {
+                    sequence = Math.max(sequence, appendSlice(batch, slice, log));
+                } finally {
+                    unlockIfPaged(pagedLock);
+                }
+                added += slice.measurementCount + slice.categoryCount;
+            }
+            if (sequence > 0) {
+                log.sync(sequence);
+            }
+            return new BatchResult(added, errors);
+        } finally {
+            metrics.recordOperation(PatientRecordSystemMetrics.Operation.ADD_OBSERVATIONS, start);
+        }
+    }
+
+    // Scratch arrays of one batch slice. Measurement rows fill them from the front and
+    // category rows from the back.
+    private static class BatchSlice {
+        final int[] batchRows;
+        final int[] patientOrdinals;
+        final int[] typeOrdinals;
+        final double[] values;
+        final long[] recordedAt;
+        final int[] categoryOrdinals;
+        int length;
+        int measurementCount;
+        int categoryCount;
+
+        BatchSlice(int capacity) {
+            batchRows = new int[capacity];
+            patientOrdinals = new int[capacity];
+            typeOrdinals = new int[capacity];
+            values = new double[capacity];
+            recordedAt = new long[capacity];
+            categoryOrdinals = new int[capacity];
+        }
+    }
+
+    // Resolves the keys of rows from to to - 1, reusing the previous lookup while consecutive
+    // rows repeat a patient or type
+    private void validateSlice(ObservationBatch batch, int from, int to, BatchSlice slice, List<BatchError> errors, boolean keepUnlistedCategories) {
+        int end = to - from;
+        slice.length = end;
+        slice.measurementCount = 0;
+        slice.categoryCount = 0;
+        String lastPatientId = null;
+        int lastPatientOrdinal = -1;
+        String lastCode = null;
+        boolean lastCodeWasCategory = false;
+        int lastTypeOrdinal = -1;
+        for (int row = from; row < to; row++) {
+            String patientId = batch.getPatientId(row);
+            String code = batch.getObservationTypeCode(row);
+            boolean category = batch.isCategory(row);
+            if (patientId == null || code == null) {
+                metrics.recordError(PatientRecordSystemMetrics.ErrorType.INVALID_PATIENT_OR_TYPE);
+                errors.add(new BatchError(row, "Invalid patient ID or observation type code"));
+                continue;
+            }
+            if (!patientId.equals(lastPatientId)) {
+                lastPatientId = patientId;
+                lastPatientOrdinal = patients.ordinalOf(patientId);
+            }
+            if (!code.equals(lastCode) || category != lastCodeWasCategory) {
+                lastCode = code;
+                lastCodeWasCategory = category;
+                lastTypeOrdinal = category ? categoryObservationTypes.ordinalOf(code) : measurementObservationTypes.ordinalOf(code);
+            }
+            if (lastPatientOrdinal < 0 || lastTypeOrdinal < 0) {
+                metrics.recordError(PatientRecordSystemMetrics.ErrorType.INVALID_PATIENT_OR_TYPE);
+                errors.add(new BatchError(row, "Invalid patient ID or observation type code"));
+                continue;
+            }
+            int index;
+            if (category) {
+                CategoryObservationType type = categoryObservationTypes.get(lastTypeOrdinal);
+                String value = batch.getCategory(row);
+                int categoryOrdinal = keepUnlistedCategories && value != null ? type.getLoadedCategoryOrdinal(value) : type.getCategoryOrdinal(value);
+                if (categoryOrdinal < 0) {
+                    metrics.recordError(PatientRecordSystemMetrics.ErrorType.INVALID_CATEGORY);
+                    errors.add(new BatchError(row, "Invalid category for observation type"));
+                    continue;
+                }
+                index = end - 1 - slice.categoryCount++;
+                slice.categoryOrdinals[index] = categoryOrdinal;
+            } else {
+                index = slice.measurementCount++;
+                slice.values[index] = batch.getValue(row);
+                slice.recordedAt[index] = batch.getRecordedAt(row);
+            }
+            slice.batchRows[index] = row;
+            slice.patientOrdinals[index] = lastPatientOrdinal;
+            slice.typeOrdinals[index] = lastTypeOrdinal;
+        }
+        // Move the category rows to the front of their own arrays, in batch order
+        int categoryStart = end - slice.categoryCount;
+        reverse(slice.batchRows, categoryStart, end);
+        reverse(slice.patientOrdinals, categoryStart, end);
+        reverse(slice.typeOrdinals, categoryStart, end);
+        reverse(slice.categoryOrdinals, categoryStart, end);
+    }
+
+    private static void reverse(int[] values, int from, int to) {
+        for (int i = from, j = to - 1; i < j; i++, j--) {
+            int value = values[i];
+            values[i] = values[j];
+            values[j] = value;
+        }
+    }
+
+    // Appends the validated rows of a slice and returns the journal sequence to sync, or 0
+    private long appendSlice(ObservationBatch batch, BatchSlice slice, WriteAheadLog log) {
+        long[] sequence = new long[1];
+        // The listeners see the appended rows in order, so a counter maps them to batch rows
+        int[] journaled = new int[1];
+        if (slice.measurementCount > 0) {
+            int first = measurementObservations.addAll(slice.patientOrdinals, slice.typeOrdinals, slice.values, slice.recordedAt, 0, slice.measurementCount, log == null ? null : published -> {
+                int row = slice.batchRows[journaled[0]++];
+                sequence[0] = log.append(measurementObservationRecord(published, batch.getPatientId(row), batch.getObservationTypeCode(row), batch.getValue(row), batch.getRecordedAt(row)));
+            });
+            patientObservations.addMeasurements(slice.patientOrdinals, 0, first, slice.measurementCount);
+            // Statistics are gathered per type for the slice and merged in once per type
+            Map<Integer, MeasurementStatistics> sliceStatistics = new HashMap<>();
+            for (int i = 0; i < slice.measurementCount; i++) {
+                measurementSeries.add(slice.patientOrdinals[i], slice.typeOrdinals[i], slice.recordedAt[i], slice.values[i]);
+                sliceStatistics.computeIfAbsent(slice.typeOrdinals[i], type -> new MeasurementStatistics()).add(slice.values[i]);
+            }
+            for (Map.Entry<Integer, MeasurementStatistics> entry : sliceStatistics.entrySet()) {
+                measurementStatistics.merge(entry.getKey(), entry.getValue());
+            }
+        }
+        if (slice.categoryCount > 0) {
+            int categoryStart = slice.length - slice.categoryCount;
+            journaled[0] = categoryStart;
+            int first = categoryObservations.addAll(slice.patientOrdinals, slice.typeOrdinals, slice.categoryOrdinals, categoryStart, slice.categoryCount, log == null ? null : published -> {
+                int row = slice.batchRows[journaled[0]++];
+                sequence[0] = log.append(categoryObservationRecord(published, batch.getPatientId(row), batch.getObservationTypeCode(row), batch.getCategory(row)));
+            });
+            patientObservations.addCategories(slice.patientOrdinals, categoryStart, first, slice.categoryCount);
+            for (int i = categoryStart; i < slice.length; i++) {
+                categoryIndex.add(slice.typeOrdinals[i], slice.categoryOrdinals[i], slice.patientOrdinals[i]);
+            }
+        }
+        for (int i = 0; i < slice.length; i++) {
+            if (i == 0 || slice.patientOrdinals[i] != slice.patientOrdinals[i - 1]) {
+                recordCache.invalidate(slice.patientOrdinals[i]);
+            }
+        }
+        return sequence[0];
+    }
+
+    // Takes the read lock of pagedSaveLock if observations are paged. The journal is never
+    // enabled with paged observations, so journaled adds need no lock.
+    private Lock lockIfPaged() {
+        if (pagedObservations == null) {
+            return null;
+        }
+        Lock lock = pagedSaveLock.readLock();
+        lock.lock();
+        return lock;
+    }
+
+    private static void unlockIfPaged(Lock lock) {
+        if (lock != null) {
+            lock.unlock();
+        }
+    }
+
+    // Appends an observation and records its row in the per-patient index
+    private int appendMeasurementObservation(int patientOrdinal, int typeOrdinal, double value, long recordedAt) {
+        int row = measurementObservations.add(patientOrdinal, typeOrdinal, value, recordedAt);
+        indexMeasurementObservation(patientOrdinal, typeOrdinal, row, value, recordedAt);
+        return row;
+    }
+
+    // Updates the per-patient rows, the time series and the type statistics for a new row
+    private void indexMeasurementObservation(int patientOrdinal, int typeOrdinal, int row, double value, long recordedAt) {
+        patientObservations.addMeasurement(patientOrdinal, row);
+        measurementSeries.add(patientOrdinal, typeOrdinal, recordedAt, value);
+        measurementStatistics.add(typeOrdinal, value);
+        recordCache.invalidate(patientOrdinal);
+    }
+
+    private int appendCategoryObservation(int patientOrdinal, int typeOrdinal, int categoryOrdinal) {
+        int row = categoryObservations.add(patientOrdinal, typeOrdinal, categoryOrdinal);
+        indexCategoryObservation(patientOrdinal, typeOrdinal, categoryOrdinal, row);
+        return row;
+    }
+
+    private void indexCategoryObservation(int patientOrdinal, int typeOrdinal, int categoryOrdinal, int row) {
+        patientObservations.addCategory(patientOrdinal, row);
+        categoryIndex.add(typeOrdinal, categoryOrdinal, patientOrdinal);
+        recordCache.invalidate(patientOrdinal);
+    }
+
+    // Returns the record of a patient, or null if the patient does not exist.
+    // Costs time proportional to the number of observations of that patient.
+    public PatientRecord getPatientRecord(String patientId) {
+        long start = System.nanoTime();
+        try {
+            int patientOrdinal = patients.ordinalOf(patientId);
+            if (patientOrdinal < 0) {
+                return null;
+            }
+            List<MeasurementObservation> patientMeasurements = new ArrayList<>();
+            List<CategoryObservation> patientCategories = new ArrayList<>();
+            Lock pagedLock = lockIfPaged();
+            try {
+                // Observations on disk come first, as they were added before those in memory
+                PagedObservations paged = pagedObservations;
+                if (paged != null) {
+                    readPagedObservations(paged, patientOrdinal, patientMeasurements, patientCategories);
+                }
+                IntList measurementRows = patientObservations.measurementRows(patientOrdinal);
+                for (int i = 0; i < measurementRows.size(); i++) {
+                    patientMeasurements.add(measurementObservations.get(measurementRows.get(i)));
+                }
+                IntList categoryRows = patientObservations.categoryRows(patientOrdinal);
+                for (int i = 0; i < categoryRows.size(); i++) {
+                    patientCategories.add(categoryObservations.get(categoryRows.get(i)));
+                }
+            } finally {
+                unlockIfPaged(pagedLock);
+            }
+            return new PatientRecord(patients.get(patientOrdinal), patientMeasurements, patientCategories);
+        } finally {
+            metrics.recordOperation(PatientRecordSystemMetrics.Operation.GET_PATIENT_RECORD, start);
+        }
+    }
+
+    private void readPagedObservations(PagedObservations paged, int patientOrdinal, List<MeasurementObservation> measurements, List<CategoryObservation> categories) {
+        Patient patient = patients.get(patientOrdinal);
+        try {
+            paged.readPatient(patientOrdinal, new PagedObservations.RecordVisitor() {
+                @Override
+                public void measurement(int patientOrdinal, int typeOrdinal, double value, long recordedAt) {
+                    measurements.add(new MeasurementObservation(patient, measurementObservationTypes.get(typeOrdinal), value, recordedAt));
+                }
+
+                @Override
+                public void category(int patientOrdinal, int typeOrdinal, int categoryOrdinal) {
+                    CategoryObservationType type = categoryObservationTypes.get(typeOrdinal);
+                    categories.add(new CategoryObservation(patient, type, type.getCategory(categoryOrdinal)));
+                }
+            });
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Returns the patient record as the menu displays it, or null if the patient does not
+    // exist. Recently viewed records are kept until an observation is added for the patient
+    // or data is loaded, so viewing one again costs a cache lookup.
+    public String getRenderedPatientRecord(String patientId) {
+        int patientOrdinal = patients.ordinalOf(patientId);
+        if (patientOrdinal < 0) {
+            return null;
+        }
+        return recordCache.get(patientOrdinal, ordinal -> renderPatientRecord(getPatientRecord(patientId)));
+    }
+
+    private static String renderPatientRecord(PatientRecord record) {
+        StringBuilder text = new StringBuilder();
+        Patient patient = record.getPatient();
+        text.append("Patient Record:\n");
+        text.append("ID: ").append(patient.getId()).append('\n');
+        text.append("Name: ").append(patient.getName()).append('\n');
+        text.append("Measurement Observations:\n");
+        for (MeasurementObservation observation : record.getMeasurementObservations()) {
+            text.append("Type: ").append(observation.getObservationType().getName()).append(", Value: ").append(observation.getValue()).append('\n');
+        }
+        text.append("Category Observations:\n");
+        for (CategoryObservation observation : record.getCategoryObservations()) {
+            text.append("Type: ").append(observation.getObservationType().getName()).append(", Category: ").append(observation.getCategory()).append('\n');
+        }
+        return text.toString();
+    }
+
+    // The cache of getRenderedPatientRecord, for its size bound and hit, miss and eviction counts
+    public PatientRecordCache getRecordCache() {
+        return recordCache;
+    }
+
+    // Returns the measurements of one type for a patient recorded at from (inclusive) to to
+    // (exclusive), oldest first, or null if the patient or type does not exist.
+    // Costs O(log n) in the number of measurements of that type for the patient, or with
+    // paged observations reading the patient's pages; see measurementSeriesOf.
+    public List<MeasurementObservation> getMeasurementObservations(String patientId, String observationTypeCode, long from, long to) {
+        int patientOrdinal = patients.ordinalOf(patientId);
+        int typeOrdinal = measurementObservationTypes.ordinalOf(observationTypeCode);
+        if (patientOrdinal < 0 || typeOrdinal < 0) {
+            return null;
+        }
+        MeasurementSeries series = measurementSeriesOf(patientOrdinal, typeOrdinal);
+        if (series == null) {
+            return new ArrayList<>();
+        }
+        return series.range(patients.get(patientOrdinal), measurementObservationTypes.get(typeOrdinal), from, to);
+    }
+
+    // Returns the most recently recorded measurement of one type for a patient, or null if
+    // there is none
+    public MeasurementObservation getLatestMeasurementObservation(String patientId, String observationTypeCode) {
+        int patientOrdinal = patients.ordinalOf(patientId);
+        int typeOrdinal = measurementObservationTypes.ordinalOf(observationTypeCode);
+        if (patientOrdinal < 0 || typeOrdinal < 0) {
+            return null;
+        }
+        MeasurementSeries series = measurementSeriesOf(patientOrdinal, typeOrdinal);
+        return series == null ? null : series.latest(patients.get(patientOrdinal), measurementObservationTypes.get(typeOrdinal));
+    }
+
+    // The series of a patient and type, or null if there are no measurements. With paged
+    // observations the series is built from the patient's pages and the rows added since on
+    // every call. That reads only the few pages holding the patient, usually from the page
+    // cache. Keeping the series instead would hold every paged measurement in memory again,
+    // which is what paging avoids.
+    private MeasurementSeries measurementSeriesOf(int patientOrdinal, int typeOrdinal) {
+        Lock pagedLock = lockIfPaged();
+        try {
+            MeasurementSeries series = measurementSeries.get(patientOrdinal, typeOrdinal);
+            PagedObservations paged = pagedObservations;
+            if (paged == null) {
+                return series;
+            }
+            List<MeasurementObservation> measurements = new ArrayList<>();
+            readPagedObservations(paged, patientOrdinal, measurements, new ArrayList<>());
+            MeasurementObservationType type = measurementObservationTypes.get(typeOrdinal);
+            measurements.removeIf(observation -> observation.getObservationType() != type);
+            if (series != null) {
+                measurements.addAll(series.range(patients.get(patientOrdinal), type, Long.MIN_VALUE, Long.MAX_VALUE));
+            }
+            if (measurements.isEmpty()) {
+                return null;
+            }
+            long[] times = new long[measurements.size()];
+            double[] values = new double[measurements.size()];
+            for (int i = 0; i < times.length; i++) {
+                times[i] = measurements.get(i).getRecordedAt();
+                values[i] = measurements.get(i).getValue();
+            }
+            return new MeasurementSeries(times, values);
+        } finally {
+            unlockIfPaged(pagedLock);
+        }
+    }
+
+    // Returns count, min, max, mean, standard deviation and approximate quantiles of all
+    // measurements of a type, or null if the type does not exist. The statistics are kept up
+    // to date by every add and load, so this costs the same however much data there is.
+    public MeasurementStatistics getMeasurementStatistics(String observationTypeCode) {
+        int typeOrdinal = measurementObservationTypes.ordinalOf(observationTypeCode);
+        return typeOrdinal < 0 ? null : measurementStatistics.get(typeOrdinal);
+    }
+
+    // Returns how many patients have at least one observation of the category, or -1 if the
+    // type or category does not exist. Unlisted categories of loaded rows exist too. Costs the
+    // same however much data there is.
+    public int countPatientsWithCategory(String observationTypeCode, String category) {
+        int typeOrdinal = categoryObservationTypes.ordinalOf(observationTypeCode);
+        if (typeOrdinal < 0) {
+            return -1;
+        }
+        int categoryOrdinal = categoryObservationTypes.get(typeOrdinal).getKnownCategoryOrdinal(category);
+        if (categoryOrdinal < 0) {
+            return -1;
+        }
+        PatientBitmap members = categoryIndex.get(typeOrdinal, categoryOrdinal);
+        return members == null ? 0 : members.size();
+    }
+
+    // Returns the patients with at least one observation of the category in patient order,
+    // or null if the type or category does not exist. Patients are read from the index as the
+    // stream is consumed.
+    public Stream<Patient> getPatientsWithCategory(String observationTypeCode, String category) {
+        int typeOrdinal = categoryObservationTypes.ordinalOf(observationTypeCode);
+        if (typeOrdinal < 0) {
+            return null;
+        }
+        int categoryOrdinal = categoryObservationTypes.get(typeOrdinal).getKnownCategoryOrdinal(category);
+        if (categoryOrdinal < 0) {
+            return null;
+        }
+        PatientBitmap members = categoryIndex.get(typeOrdinal, categoryOrdinal);
+        return members == null ? Stream.empty() : members.stream().mapToObj(patients::get);
+    }
+
+    // Returns the patients matching every condition of the query, in patient order
+    public List<Patient> findPatients(PatientQuery query) throws Exception {
+        return findPatients(query, ForkJoinPool.commonPool());
+    }
+
+    // Runs the query on the given pool. The measurement store is scanned once for all
+    // measurement conditions, in row ranges that run in parallel and mark matching patients in
+    // one bitset per condition. Paged observations are scanned the same way in ranges of
+    // pages. The bitsets of all conditions and the category index sets of the category
+    // conditions are then intersected.
+    public List<Patient> findPatients(PatientQuery query, ForkJoinPool pool) throws Exception {
+        long start = System.nanoTime();
+        try {
+            BitSet matches;
+            Lock pagedLock = lockIfPaged();
+            try {
+                matches = findPatientOrdinals(query, pool);
+            } finally {
+                unlockIfPaged(pagedLock);
+            }
+            List<Patient> result = new ArrayList<>(matches.cardinality());
+            for (int ordinal = matches.nextSetBit(0); ordinal >= 0; ordinal = matches.nextSetBit(ordinal + 1)) {
+                result.add(patients.get(ordinal));
+            }
+            return result;
+        } finally {
+            metrics.recordOperation(PatientRecordSystemMetrics.Operation.FIND_PATIENTS, start);
+        }
+    }
+
+    private BitSet findPatientOrdinals(PatientQuery query, ForkJoinPool pool) throws Exception {
+        List<PatientQuery.MeasurementCondition> measurementConditions = query.getMeasurementConditions();
+        List<PatientQuery.CategoryCondition> categoryConditions = query.getCategoryConditions();
+        // Resolve codes and categories once; a condition nothing can meet empties the result
+        int[] measurementTypes = new int[measurementConditions.size()];
+        double[] mins = new double[measurementTypes.length];
+        double[] maxs = new double[measurementTypes.length];
+        for (int c = 0; c < measurementTypes.length; c++) {
+            PatientQuery.MeasurementCondition condition = measurementConditions.get(c);
+            measurementTypes[c] = measurementObservationTypes.ordinalOf(condition.code);
+            mins[c] = condition.min;
+            maxs[c] = condition.max;
+            if (measurementTypes[c] < 0 || !(condition.min <= condition.max)) {
+                return new BitSet();
+            }
+        }
+        int[] categoryTypes = new int[categoryConditions.size()];
+        int[] categoryOrdinals = new int[categoryTypes.length];
+        for (int c = 0; c < categoryTypes.length; c++) {
+            PatientQuery.CategoryCondition condition = categoryConditions.get(c);
+            categoryTypes[c] = categoryObservationTypes.ordinalOf(condition.code);
+            if (categoryTypes[c] < 0) {
+                return new BitSet();
+            }
+            // Loaded rows may have categories the type does not allow, and those match too
+            categoryOrdinals[c] = categoryObservationTypes.get(categoryTypes[c]).getKnownCategoryOrdinal(condition.category);
+            if (categoryOrdinals[c] < 0) {
+                return new BitSet();
+            }
+        }
+
+        // Read the row count before the patient count, so every scanned row refers to a
+        // patient below it
+        int measurementRows = measurementObservations.size();
+        int patientCount = patients.size();
+        long[] result = new long[(patientCount + 63) >>> 6];
+        Arrays.fill(result, -1L);
+        if (patientCount % 64 != 0) {
+            result[result.length - 1] = (1L << patientCount) - 1;
+        }
+        if (measurementTypes.length > 0) {
+            long[][] matches = scanInParallel(pool, measurementRows, ObservationStore.CHUNK_SIZE, measurementTypes.length, result.length,
+                    (from, to, rangeMatches) -> measurementObservations.scan(from, to, measurementTypes, mins, maxs, rangeMatches));
+            PagedObservations paged = pagedObservations;
+            if (paged != null) {
+                // Pages are scanned in parallel ranges of pages the same way
+                long[][] pagedMatches = scanInParallel(pool, paged.getPageCount(), 1, measurementTypes.length, result.length,
+                        (from, to, rangeMatches) -> paged.scan(from, to, new PagedObservations.RecordVisitor() {
+                            @Override
+                            public void measurement(int patientOrdinal, int typeOrdinal, double value, long recordedAt) {
+                                for (int c = 0; c < measurementTypes.length; c++) {
+                                    if (typeOrdinal == measurementTypes[c] && value >= mins[c] && value <= maxs[c] && patientOrdinal < patientCount) {
+                                        rangeMatches[c][patientOrdinal >>> 6] |= 1L << patientOrdinal;
+                                    }
+                                }
+                            }
+
+                            @Override
+                            public void category(int patientOrdinal, int typeOrdinal, int categoryOrdinal) {
+                            }
+                        }));
+                for (int c = 0; c < matches.length; c++) {
+                    for (int w = 0; w < result.length; w++) {
+                        matches[c][w] |= pagedMatches[c][w];
+                    }
+                }
+            }
+            intersect(result, matches);
+        }
+        // Category conditions are answered by the category index without a scan
+        for (int c = 0; c < categoryTypes.length; c++) {
+            PatientBitmap members = categoryIndex.get(categoryTypes[c], categoryOrdinals[c]);
+            if (members == null) {
+                return new BitSet();
+            }
+            members.retainIn(result);
+        }
+        return BitSet.valueOf(result);
+    }
+
+    private interface RangeScan {
+        void scan(int from, int to, long[][] matches) throws IOException;
+    }
+
+    // Scans rows 0 to rows - 1 in parallel ranges of at least minRangeRows rows, each into its
+    // own bitsets, and ORs the bitsets of each condition together
+    private static long[][] scanInParallel(ForkJoinPool pool, int rows, int minRangeRows, int conditions, int words, RangeScan scan) throws Exception {
+        int ranges = Math.max(1, Math.min(pool.getParallelism() * 4, rows / minRangeRows));
+        List<Callable<long[][]>> tasks = new ArrayList<>();
+        for (int i = 0; i < ranges; i++) {
+            int from = (int) ((long) rows * i / ranges);
+            int to = (int) ((long) rows * (i + 1) / ranges);
+            tasks.add(() -> {
+                long[][] matches = new long[conditions][words];
+                scan.scan(from, to, matches);
+                return matches;
+            });
+        }
+        long[][] combined = null;
+        for (Future<long[][]> future : pool.invokeAll(tasks)) {
+            long[][] matches = getResult(future);
+            if (combined == null) {
+                combined = matches;
+            } else {
+                for (int c = 0; c < conditions; c++) {
+                    for (int w = 0; w < words; w++) {
+                        combined[c][w] |= matches[c][w];
+                    }
+                }
+            }
+        }
+        return combined;
+    }
+
+    private static void intersect(long[] result, long[][] matches) {
+        for (long[] condition : matches) {
+            for (int w = 0; w < result.length; w++) {
+                result[w] &= condition[w];
+            }
+        }
+    }
+
+    // Helper methods to find objects
+    private Patient findPatientById(String id) {
+        return patients.get(id);
+    }
+
+    private MeasurementObservationType findMeasurementObservationTypeByCode(String code) {
+        return measurementObservationTypes.get(code);
+    }
+
+    private CategoryObservationType findCategoryObservationTypeByCode(String code) {
+        return categoryObservationTypes.get(code);
+    }
+
+    // Method to save data to files. In journal mode every change is already durable, so this
+    // only compacts the journal once it has grown large.
+    public void saveData() throws Exception {
+        saveData(SnapshotFormat.TEXT);
+    }
+
+    public void saveData(SnapshotFormat format) throws Exception {
+        long start = System.nanoTime();
+        try {
+            if (format == SnapshotFormat.BINARY) {
+                checkNotPaged();
+                saveBinarySnapshot();
+            } else if (format == SnapshotFormat.PAGED) {
+                savePagedSnapshot();
+            } else {
+                checkNotPaged();
+                if (journal != null) {
+                    journal.sync();
+                    if (journal.size() > JOURNAL_COMPACTION_SIZE) {
+                        compactJournal();
+                    }
+                    return;
+                }
+                writeSnapshot(false);
+            }
+        } catch (Exception e) {
+            metrics.recordError(PatientRecordSystemMetrics.ErrorType.SAVE_FAILED);
+            throw e;
+        } finally {
+            metrics.recordOperation(PatientRecordSystemMetrics.Operation.SAVE_DATA, start);
+        }
+    }
+
+    // Writes everything to PRS-Snapshot.bin. Patients and types are written once, in ordinal
+    // order, and act as the string table that observation rows refer to by varint ordinal.
+    // Written from a snapshot, so every row refers to a patient and type in the file.
+    private void saveBinarySnapshot() throws Exception {
+        long start = System.nanoTime();
+        long rows = 0;
+        PatientRecordSnapshot snapshot = snapshot();
+        MeasurementObservationStore measurementObservations = snapshot.measurementObservations;
+        CategoryObservationStore categoryObservations = snapshot.categoryObservations;
+        Path temp = dataFile("PRS-Snapshot.bin.tmp");
+        try (BinarySnapshotWriter writer = new BinarySnapshotWriter(temp)) {
+            writer.writeVarint(snapshot.measurementObservationTypes.size());
+            for (MeasurementObservationType type : snapshot.getMeasurementObservationTypes()) {
+                writer.writeString(type.getCode());
+                writer.writeString(type.getName());
+                writer.writeString(type.getUnit());
+            }
+            writer.writeVarint(snapshot.categoryObservationTypes.size());
+            for (CategoryObservationType type : snapshot.getCategoryObservationTypes()) {
+                writer.writeString(type.getCode());
+                writer.writeString(type.getName());
+                writer.writeVarint(type.getCategories().size());
+                for (String category : type.getCategories()) {
+                    writer.writeString(category);
+                }
+                writer.writeVarint(type.getUnlistedCategories().size());
+                for (String category : type.getUnlistedCategories()) {
+                    writer.writeString(category);
+                }
+            }
+            writer.writeVarint(snapshot.patients.size());
+            for (Patient patient : snapshot.getPatients()) {
+                writer.writeString(patient.getId());
+                writer.writeString(patient.getName());
+            }
+            int measurementRows = measurementObservations.size();
+            writer.writeVarint(measurementRows);
+            long previousRecordedAt = 0;
+            for (int row = 0; row < measurementRows; row++) {
+                writer.writeVarint(measurementObservations.patientOrdinal(row));
+                writer.writeVarint(measurementObservations.typeOrdinal(row));
+                writer.writeDouble(measurementObservations.value(row));
+                // Rows are mostly in time order, so the change from the previous row is small
+                long recordedAt = measurementObservations.recordedAt(row);
+                writer.writeSignedVarlong(recordedAt - previousRecordedAt);
+                previousRecordedAt = recordedAt;
+            }
+            int categoryRows = categoryObservations.size();
+            writer.writeVarint(categoryRows);
+            for (int row = 0; row < categoryRows; row++) {
+                writer.writeVarint(categoryObservations.patientOrdinal(row));
+                writer.writeVarint(categoryObservations.typeOrdinal(row));
+                writer.writeVarint(categoryObservations.categoryOrdinal(row));
+            }
+            rows = (long) measurementRows + categoryRows;
+        }
+        Files.move(temp, dataFile("PRS-Snapshot.bin"), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        recordWrite("PRS-Snapshot.bin", rows, start);
+    }
+
+    // The text and binary formats are written from memory, which holds only the observations
+    // added since the paged file was loaded
+    private void checkNotPaged() throws Exception {
+        if (pagedObservations != null) {
+            throw new Exception("Observations are paged; save them with SnapshotFormat.PAGED");
+        }
+    }
+
+    // Writes everything to PRS-Paged.bin, with the observations sorted by patient. With paged
+    // observations the rows on disk are merged with those added since, and the new file then
+    // replaces both. Rows added while the file is written are not in it and stay in memory.
+    private void savePagedSnapshot() throws Exception {
+        long start = System.nanoTime();
+        long records;
+        PagedObservations previous = pagedObservations;
+        int measurementRows = measurementObservations.size();
+        int categoryRows = categoryObservations.size();
+        int patientCount = patients.size();
+        PagedRowWriter rows = new PagedRowWriter(
+                rowsByPatient(measurementObservations, measurementRows, patientCount),
+                rowsByPatient(categoryObservations, categoryRows, patientCount));
+        Path temp = dataFile("PRS-Paged.bin.tmp");
+        try (PagedObservations.Writer writer = new PagedObservations.Writer(temp, PagedObservations.DEFAULT_PAGE_SIZE)) {
+            rows.writer = writer;
+            if (previous != null) {
+                // For each patient the rows on disk go before the rows in memory
+                previous.scan(new PagedObservations.RecordVisitor() {
+                    @Override
+                    public void measurement(int patientOrdinal, int typeOrdinal, double value, long recordedAt) throws IOException {
+                        rows.writeMemoryRowsBelow(patientOrdinal);
+                        writer.addMeasurement(patientOrdinal, typeOrdinal, value, recordedAt);
+                    }
+
+                    @Override
+                    public void category(int patientOrdinal, int typeOrdinal, int categoryOrdinal) throws IOException {
+                        rows.writeMemoryRowsBelow(patientOrdinal);
+                        writer.addCategory(patientOrdinal, typeOrdinal, categoryOrdinal);
+                    }
+                });
+            }
+            rows.writeMemoryRowsBelow(Integer.MAX_VALUE);
+            writePagedMetadata(writer, patientCount);
+            records = writer.getRecordCount();
+        }
+        Files.move(temp, dataFile("PRS-Paged.bin"), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        recordWrite("PRS-Paged.bin", records, start);
+
+        if (previous != null) {
+            replacePagedObservations(previous, measurementRows, categoryRows);
+        }
+    }
+
+    // Writes the types and the first patientCount patients as the metadata of a paged file
+    private void writePagedMetadata(PagedObservations.Writer writer, int patientCount) throws IOException {
+        DataOutputStream out = writer.startMetadata();
+        List<MeasurementObservationType> measurementTypes = new ArrayList<>(measurementObservationTypes.values());
+        out.writeInt(measurementTypes.size());
+        for (MeasurementObservationType type : measurementTypes) {
+            out.writeUTF(type.getCode());
+            out.writeUTF(type.getName());
+            out.writeUTF(type.getUnit());
+        }
+        List<CategoryObservationType> categoryTypes = new ArrayList<>(categoryObservationTypes.values());
+        out.writeInt(categoryTypes.size());
+        for (CategoryObservationType type : categoryTypes) {
+            out.writeUTF(type.getCode());
+            out.writeUTF(type.getName());
+            out.writeInt(type.getCategories().size());
+            for (String category : type.getCategories()) {
+                out.writeUTF(category);
+            }
+            out.writeInt(type.getUnlistedCategories().size());
+            for (String category : type.getUnlistedCategories()) {
+                out.writeUTF(category);
+            }
+        }
+        out.writeInt(patientCount);
+        for (int ordinal = 0; ordinal < patientCount; ordinal++) {
+            Patient patient = patients.get(ordinal);
+            out.writeUTF(patient.getId());
+            out.writeUTF(patient.getName());
+        }
+    }
+
+    // Switches to the new paged file and drops the rows in memory that it holds. Adds wait
+    // meanwhile, and the rows added since the file was started are appended again.
+    private void replacePagedObservations(PagedObservations previous, int measurementRows, int categoryRows) throws Exception {
+        Lock lock = pagedSaveLock.writeLock();
+        lock.lock();
+        try {
+            // The rows in memory are now on disk; statistics and the category index still hold
+            pagedObservations = PagedObservations.open(dataFile("PRS-Paged.bin"), pageCacheSize, new PagedObservations.MetadataVisitor() {
+                @Override
+                public void measurementObservationType(String code, String name, String unit) {
+                }
+
+                @Override
+                public void categoryObservationType(String code, String name, List<String> categories, List<String> unlistedCategories) {
+                }
+
+                @Override
+                public void patient(String id, String name) {
+                }
+            });
+            previous.close();
+            // Snapshots keep the cleared chunks
+            MeasurementObservationStore measurements = measurementObservations.snapshot(measurementObservations.size(), patients, measurementObservationTypes);
+            CategoryObservationStore categories = categoryObservations.snapshot(categoryObservations.size(), patients, categoryObservationTypes);
+            measurementObservations.clear();
+            categoryObservations.clear();
+            patientObservations.clearMeasurements();
+            patientObservations.clearCategories();
+            measurementSeries.clear();
+            // Statistics and the category index already count these rows
+            for (int row = measurementRows; row < measurements.size(); row++) {
+                int patientOrdinal = measurements.patientOrdinal(row);
+                int typeOrdinal = measurements.typeOrdinal(row);
+                double value = measurements.value(row);
+                long recordedAt = measurements.recordedAt(row);
+                patientObservations.addMeasurement(patientOrdinal, measurementObservations.add(patientOrdinal, typeOrdinal, value, recordedAt));
+                measurementSeries.add(patientOrdinal, typeOrdinal, recordedAt, value);
+            }
+            for (int row = categoryRows; row < categories.size(); row++) {
+                int patientOrdinal = categories.patientOrdinal(row);
+                patientObservations.addCategory(patientOrdinal, categoryObservations.add(patientOrdinal, categories.typeOrdinal(row), categories.categoryOrdinal(row)));
+            }
+            recordCache.invalidateAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Rows of a store ordered by patient ordinal, and by row within a patient
+    private static int[] rowsByPatient(ObservationStore<?> store, int rows, int patientCount) {
+        int[] next = new int[patientCount + 1];
+        for (int row = 0; row < rows; row++) {
+            next[store.patientOrdinal(row) + 1]++;
+        }
+        for (int patient = 0; patient < patientCount; patient++) {
+            next[patient + 1] += next[patient];
+        }
+        int[] order = new int[rows];
+        for (int row = 0; row < rows; row++) {
+            order[next[store.patientOrdinal(row)]++] = row;
+        }
+        return order;
+    }
+
+    // Writes the rows in memory to a paged file in patient order, interleaved with the rows of
+    // an older paged file
+    private class PagedRowWriter {
+        final int[] measurementOrder;
+        final int[] categoryOrder;
+        int measurementPosition;
+        int categoryPosition;
+        PagedObservations.Writer writer;
+
+        PagedRowWriter(int[] measurementOrder, int[] categoryOrder) {
+            this.measurementOrder = measurementOrder;
+            this.categoryOrder = categoryOrder;
+        }
+
+        void writeMemoryRowsBelow(int patientOrdinal) throws IOException {
+            while (true) {
+                int measurementPatient = measurementPosition < measurementOrder.length
+                        ? measurementObservations.patientOrdinal(measurementOrder[measurementPosition]) : Integer.MAX_VALUE;
+                int categoryPatient = categoryPosition < categoryOrder.length
+                        ? categoryObservations.patientOrdinal(categoryOrder[categoryPosition]) : Integer.MAX_VALUE;
+                int patient = Math.min(measurementPatient, categoryPatient);
+                if (patient >= patientOrdinal) {
+                    return;
+                }
+                if (measurementPatient == patient) {
+                    int row = measurementOrder[measurementPosition++];
+                    writer.addMeasurement(patient, measurementObservations.typeOrdinal(row), measurementObservations.value(row), measurementObservations.recordedAt(row));
+                } else {
+                    int row = categoryOrder[categoryPosition++];
+                    writer.addCategory(patient, categoryObservations.typeOrdinal(row), categoryObservations.categoryOrdinal(row));
+                }
+            }
+        }
+    }
+
+    // Each file is written to a temporary file and renamed over the old one, so a crash never
+    // leaves a truncated file. Types and patients are renamed before the observations that
+    // refer to them.
+    // All files are written from one snapshot, so adds made meanwhile never leave an
+    // observation that refers to a patient missing from PRS-Patients.txt. With changedOnly,
+    // files whose table has not grown since it was last written or loaded are left alone.
+    private void writeSnapshot(boolean changedOnly) throws Exception {
+        checkpointLock.lock();
+        try {
+            PatientRecordSnapshot snapshot = snapshot();
+            long[] rows = {snapshot.measurementObservationTypes.size(), snapshot.categoryObservationTypes.size(),
+                    snapshot.patients.size(), snapshot.measurementObservations.size(), snapshot.categoryObservations.size()};
+            FileContents[] contents = {
+                    writer -> saveMeasurementObservationTypes(snapshot, writer),
+                    writer -> saveCategoryObservationTypes(snapshot, writer),
+                    writer -> savePatients(snapshot, writer),
+                    writer -> saveMeasurementObservations(snapshot, writer),
+                    writer -> saveCategoryObservations(snapshot, writer)};
+            for (int table = 0; table < DATA_FILES.length; table++) {
+                if (!changedOnly || rows[table] != checkpointedRows[table]) {
+                    writeAtomically(DATA_FILES[table], contents[table]);
+                    checkpointedRows[table] = rows[table];
+                }
+            }
+        } finally {
+            checkpointLock.unlock();
+        }
+    }
+
+    // Starts a checkpoint on a background thread and returns at once. The checkpoint writes
+    // the PRS-*.txt files of the tables that changed since they were last written or loaded,
+    // each to a temporary file renamed over the old one, from a snapshot taken when it starts,
+    // so adds continue meanwhile. The future completes once the files are in place, or
+    // exceptionally if writing failed. In journal mode every add is already durable, so a
+    // checkpoint only syncs the journal; compaction stays with saveData.
+    public CompletableFuture<Void> saveDataAsync() {
+        while (true) {
+            CompletableFuture<Void> queued = queuedCheckpoint.get();
+            if (queued != null) {
+                return queued;
+            }
+            CompletableFuture<Void> checkpoint = new CompletableFuture<>();
+            if (queuedCheckpoint.compareAndSet(null, checkpoint)) {
+                latestCheckpoint = checkpoint;
+                checkpointer.execute(() -> runCheckpoint(checkpoint));
+                return checkpoint;
+            }
+        }
+    }
+
+    private void runCheckpoint(CompletableFuture<Void> checkpoint) {
+        // Requests from now on need a new checkpoint, as this one may miss their adds
+        queuedCheckpoint.compareAndSet(checkpoint, null);
+        long start = System.nanoTime();
+        try {
+            checkNotPaged();
+            WriteAheadLog log = journal;
+            if (log != null) {
+                log.sync();
+            } else {
+                writeSnapshot(true);
+            }
+            checkpoint.complete(null);
+        } catch (Throwable e) {
+            metrics.recordError(PatientRecordSystemMetrics.ErrorType.SAVE_FAILED);
+            checkpoint.completeExceptionally(e);
+        } finally {
+            metrics.recordOperation(PatientRecordSystemMetrics.Operation.CHECKPOINT, start);
+        }
+    }
+
+    // Checkpoints run in the order requested, so once the latest is done all are. A load waits
+    // for them, as the data they save was added before the load was asked for.
+    private void awaitCheckpoints() {
+        latestCheckpoint.exceptionally(e -> null).join();
+    }
+
+    // Records the row counts of the tables as those of the text files just loaded
+    private void markCheckpointed() {
+        checkpointedRows[0] = measurementObservationTypes.size();
+        checkpointedRows[1] = categoryObservationTypes.size();
+        checkpointedRows[2] = patients.size();
+        checkpointedRows[3] = measurementObservations.size();
+        checkpointedRows[4] = categoryObservations.size();
+    }
+
+    // Writes the rows of one file and returns how many it wrote
+    private interface FileContents {
+        long write(PrintWriter writer) throws Exception;
+    }
+
+    private void writeAtomically(String name, FileContents contents) throws Exception {
+        long start = System.nanoTime();
+        long rows;
+        Path temp = dataFile(name + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(temp.toFile());
+             PrintWriter writer = new PrintWriter(new BufferedWriter(new OutputStreamWriter(out)))) {
+            rows = contents.write(writer);
+            writer.flush();
+            if (writer.checkError()) {
+                throw new IOException("Error writing " + temp);
+            }
+            out.getFD().sync();
+        }
+        Files.move(temp, dataFile(name), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        recordWrite(name, rows, start);
+    }
+
+    // Records the size of a data file just read or written and the rows in it
+    private void recordRead(String name, long rows, long startNanos) throws IOException {
+        metrics.recordRead(name, Files.size(dataFile(name)), rows, System.nanoTime() - startNanos);
+    }
+
+    private void recordWrite(String name, long rows, long startNanos) throws IOException {
+        metrics.recordWrite(name, Files.size(dataFile(name)), rows, System.nanoTime() - startNanos);
+    }
+
+    // The metrics of this system, for reading and for registering with JMX
+    public PatientRecordSystemMetrics getMetrics() {
+        return metrics;
+    }
+
+    public long getGeneration() {
+        return generation;
+    }
+
+    private static long newGeneration() {
+        long id;
+        do {
+            id = ThreadLocalRandom.current().nextLong();
+        } while (id == 0);
+        return id;
+    }
+
+    // Removes every type, patient and observation, e.g. to rebuild a replica from scratch.
+    // The files are left alone until the next save. Not safe to call while other threads
+    // are adding.
+    public void clearData() throws Exception {
+        if (journal != null) {
+            throw new Exception("Disable the journal before clearing the data");
+        }
+        awaitCheckpoints();
+        checkpointLock.lock();
+        try {
+            closePagedObservations();
+            Arrays.fill(checkpointedRows, -1);
+            measurementObservationTypes.clear();
+            categoryObservationTypes.clear();
+            patients.clear();
+            measurementObservations.clear();
+            categoryObservations.clear();
+            indexMeasurementObservations();
+            indexCategoryObservations();
+            generation = newGeneration();
+        } finally {
+            checkpointLock.unlock();
+        }
+    }
+
+    private long saveMeasurementObservationTypes(PatientRecordSnapshot snapshot, PrintWriter writer) {
+        long rows = 0;
+        for (MeasurementObservationType type : snapshot.getMeasurementObservationTypes()) {
+            writer.println(type.getCode() + ";" + type.getName() + ";" + type.getUnit());
+            rows++;
+        }
+        return rows;
+    }
+
+    private long saveCategoryObservationTypes(PatientRecordSnapshot snapshot, PrintWriter writer) {
+        long rows = 0;
+        for (CategoryObservationType type : snapshot.getCategoryObservationTypes()) {
+            writer.print(type.getCode() + ";" + type.getName() + ";");
+            for (String category : type.getCategories()) {
+                writer.print(category + ",");
+            }
+            writer.println();
+            rows++;
+        }
+        return rows;
+    }
+
+    private long savePatients(PatientRecordSnapshot snapshot, PrintWriter writer) {
+        long rows = 0;
+        for (Patient patient : snapshot.getPatients()) {
+            writer.println(patient.getId() + ";" + patient.getName());
+            rows++;
+        }
+        return rows;
+    }
+
+    private long saveMeasurementObservations(PatientRecordSnapshot snapshot, PrintWriter writer) {
+        long rows = 0;
+        MeasurementObservationStore observations = snapshot.measurementObservations;
+        for (int row = 0; row < observations.size(); row++) {
+            writer.println(snapshot.patients.get(observations.patientOrdinal(row)).getId() + ";"
+                    + snapshot.measurementObservationTypes.get(observations.typeOrdinal(row)).getCode() + ";"
+                    + observations.value(row) + ";"
+                    + observations.recordedAt(row));
+            rows++;
+        }
+        return rows;
+    }
+
+    private long saveCategoryObservations(PatientRecordSnapshot snapshot, PrintWriter writer) {
+        long rows = 0;
+        CategoryObservationStore observations = snapshot.categoryObservations;
+        for (int row = 0; row < observations.size(); row++) {
+            writer.println(snapshot.patients.get(observations.patientOrdinal(row)).getId() + ";"
+                    + snapshot.categoryObservationTypes.get(observations.typeOrdinal(row)).getCode() + ";"
+                    + observations.category(row));
+            rows++;
+        }
+        return rows;
+    }
+
+    // Journal mode: every add is appended to PRS-Journal.log and synced before the add
+    // returns, and loadData replays the journal on top of the PRS-*.txt snapshot.
+    // Enable it before calling loadData.
+    public void enableJournal() throws Exception {
+        if (pagedObservations != null) {
+            throw new Exception("Journal mode needs a text or binary snapshot");
+        }
+        if (journal == null) {
+            if (!Files.exists(dataFile("PRS-Patients.txt")) && !Files.exists(dataFile("PRS-MeasurementObservations.txt"))) {
+                // Start with an empty snapshot so loadData finds the files it replays onto
+                writeSnapshot(false);
+            }
+            journal = new WriteAheadLog(dataFile("PRS-Journal.log"));
+        }
+    }
+
+    public void disableJournal() throws Exception {
+        if (journal != null) {
+            journal.close();
+            journal = null;
+        }
+    }
+
+    // Folds the journal into the PRS-*.txt snapshot. Only the records of keys and rows that
+    // existed before the snapshot was written are dropped; adds journaled meanwhile stay in the
+    // journal, and replay skips those the snapshot holds as well.
+    public void compactJournal() throws Exception {
+        // Tables only grow, so the snapshot holds at least every key and row that exists now
+        int[] written = {measurementObservationTypes.size(), categoryObservationTypes.size(), patients.size(),
+                measurementObservations.size(), categoryObservations.size()};
+        writeSnapshot(false);
+        WriteAheadLog log = journal;
+        if (log != null) {
+            log.compact(record -> !inSnapshot(record, written));
+        }
+    }
+
+    // Whether a journal record's key or row is among the first written[table] of its table,
+    // with the tables in the order writeSnapshot writes them
+    private boolean inSnapshot(DataInputStream record, int[] written) throws IOException {
+        byte type = record.readByte();
+        switch (type) {
+            case JOURNAL_MEASUREMENT_OBSERVATION_TYPE:
+                return isWritten(measurementObservationTypes.ordinalOf(record.readUTF()), written[0]);
+            case JOURNAL_CATEGORY_OBSERVATION_TYPE:
+                return isWritten(categoryObservationTypes.ordinalOf(record.readUTF()), written[1]);
+            case JOURNAL_PATIENT:
+                return isWritten(patients.ordinalOf(record.readUTF()), written[2]);
+            case JOURNAL_MEASUREMENT_OBSERVATION:
+            case JOURNAL_TIMED_MEASUREMENT_OBSERVATION:
+                return record.readInt() < written[3];
+            case JOURNAL_CATEGORY_OBSERVATION:
+                return record.readInt() < written[4];
+            default:
+                throw new IOException("Unknown journal record type " + type);
+        }
+    }
+
+    private static boolean isWritten(int ordinal, int written) {
+        return ordinal >= 0 && ordinal < written;
+    }
+
+    // Builds the payload of one journal record
+    private static class JournalRecord {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+
+        JournalRecord(byte type) throws IOException {
+            out.writeByte(type);
+        }
+    }
+
+    private static byte[] measurementObservationRecord(int row, String patientId, String code, double value, long recordedAt) {
+        try {
+            JournalRecord record = new JournalRecord(JOURNAL_TIMED_MEASUREMENT_OBSERVATION);
+            record.out.writeInt(row);
+            record.out.writeUTF(patientId);
+            record.out.writeUTF(code);
+            record.out.writeDouble(value);
+            record.out.writeLong(recordedAt);
+            return record.bytes.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static byte[] categoryObservationRecord(int row, String patientId, String code, String category) {
+        try {
+            JournalRecord record = new JournalRecord(JOURNAL_CATEGORY_OBSERVATION);
+            record.out.writeInt(row);
+            record.out.writeUTF(patientId);
+            record.out.writeUTF(code);
+            record.out.writeUTF(category);
+            return record.bytes.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Applies the journal after a snapshot load. Types and patients already in the snapshot
+    // are skipped by key, and observations by their row number, so records that a compaction
+    // interrupted by a crash already wrote to the snapshot are not applied twice.
+    private void replayJournal() throws Exception {
+        journal.replay(in -> {
+            byte type = in.readByte();
+            if (type == JOURNAL_MEASUREMENT_OBSERVATION_TYPE) {
+                String code = in.readUTF();
+                measurementObservationTypes.add(code, new MeasurementObservationType(code, in.readUTF(), in.readUTF()));
+            } else if (type == JOURNAL_CATEGORY_OBSERVATION_TYPE) {
+                String code = in.readUTF();
+                String name = in.readUTF();
+                List<String> categories = new ArrayList<>();
+                for (int i = in.readInt(); i > 0; i--) {
+                    categories.add(in.readUTF());
+                }
+                categoryObservationTypes.add(code, new CategoryObservationType(code, name, categories));
+            } else if (type == JOURNAL_PATIENT) {
+                String id = in.readUTF();
+                patients.add(id, new Patient(id, in.readUTF()));
+            } else if (type == JOURNAL_MEASUREMENT_OBSERVATION || type == JOURNAL_TIMED_MEASUREMENT_OBSERVATION) {
+                int row = in.readInt();
+                int patientOrdinal = patients.ordinalOf(in.readUTF());
+                int typeOrdinal = measurementObservationTypes.ordinalOf(in.readUTF());
+                double value = in.readDouble();
+                long recordedAt = type == JOURNAL_TIMED_MEASUREMENT_OBSERVATION ? in.readLong() : 0;
+                if (row >= measurementObservations.size() && patientOrdinal >= 0 && typeOrdinal >= 0) {
+                    appendMeasurementObservation(patientOrdinal, typeOrdinal, value, recordedAt);
+                }
+            } else if (type == JOURNAL_CATEGORY_OBSERVATION) {
+                int row = in.readInt();
+                int patientOrdinal = patients.ordinalOf(in.readUTF());
+                int typeOrdinal = categoryObservationTypes.ordinalOf(in.readUTF());
+                String category = in.readUTF();
+                if (row >= categoryObservations.size() && patientOrdinal >= 0 && typeOrdinal >= 0) {
+                    // Kept even if the type does not allow the category, like rows of the data files
+                    appendCategoryObservation(patientOrdinal, typeOrdinal,
+                            categoryObservationTypes.get(typeOrdinal).getLoadedCategoryOrdinal(category));
+                }
+            } else {
+                throw new IOException("Unknown journal record type " + type);
+            }
+        });
+    }
+
+    // Method to load data from files. Replaces all data, so it must not run concurrently
+    // with adds or reads.
+    public void loadData() throws Exception {
+        loadData(LoadMode.BUFFERED);
+    }
+
+    public void loadData(LoadMode mode) throws Exception {
+        long start = System.nanoTime();
+        awaitCheckpoints();
+        checkpointLock.lock();
+        try {
+            closePagedObservations();
+            Arrays.fill(checkpointedRows, -1);
+            if (mode == LoadMode.PARALLEL) {
+                loadDataInParallel();
+            } else {
+                loadMeasurementObservationTypes(mode);
+                loadCategoryObservationTypes(mode);
+                loadPatients(mode);
+                loadMeasurementObservations(mode);
+                loadCategoryObservations(mode);
+            }
+            markCheckpointed();
+            if (journal != null) {
+                replayJournal();
+            }
+            generation = newGeneration();
+        } catch (Exception e) {
+            metrics.recordError(PatientRecordSystemMetrics.ErrorType.LOAD_FAILED);
+            throw e;
+        } finally {
+            checkpointLock.unlock();
+            metrics.recordOperation(PatientRecordSystemMetrics.Operation.LOAD_DATA, start);
+        }
+    }
+
+    // Loads the type and patient files concurrently, then parses both observation files as
+    // line-aligned byte ranges on the common ForkJoinPool. Each range is parsed into its own
+    // store and the stores are appended in file order, so the result matches a sequential load.
+    private void loadDataInParallel() throws Exception {
+        invokeAll(Arrays.asList(
+                () -> { loadMeasurementObservationTypes(LoadMode.BUFFERED); return null; },
+                () -> { loadCategoryObservationTypes(LoadMode.BUFFERED); return null; },
+                () -> { loadPatients(LoadMode.BUFFERED); return null; }));
+
+        long start = System.nanoTime();
+        List<Callable<MeasurementObservationStore>> measurementTasks = new ArrayList<>();
+        for (long[] range : RecordFileReader.splitAtLines(dataFile("PRS-MeasurementObservations.txt"), parallelChunkCount())) {
+            measurementTasks.add(() -> {
+                MeasurementObservationStore rows = new MeasurementObservationStore(patients, measurementObservationTypes);
+                try (RecordFileReader reader = new MappedRecordFileReader(dataFile("PRS-MeasurementObservations.txt"), range[0], range[1])) {
+                    readMeasurementObservations(reader, rows, Integer.MAX_VALUE);
+                }
+                return rows;
+            });
+        }
+        List<Callable<CategoryObservationStore>> categoryTasks = new ArrayList<>();
+        for (long[] range : RecordFileReader.splitAtLines(dataFile("PRS-CategoryObservations.txt"), parallelChunkCount())) {
+            categoryTasks.add(() -> {
+                CategoryObservationStore rows = new CategoryObservationStore(patients, categoryObservationTypes);
+                try (RecordFileReader reader = new MappedRecordFileReader(dataFile("PRS-CategoryObservations.txt"), range[0], range[1])) {
+                    readCategoryObservations(reader, rows, Integer.MAX_VALUE);
+                }
+                return rows;
+            });
+        }
+        List<Future<MeasurementObservationStore>> measurementChunks = ForkJoinPool.commonPool().invokeAll(measurementTasks);
+        List<Future<CategoryObservationStore>> categoryChunks = ForkJoinPool.commonPool().invokeAll(categoryTasks);
+
+        // The parsed columns are copied over whole runs at a time
+        measurementObservations.clear();
+        for (Future<MeasurementObservationStore> chunk : measurementChunks) {
+            measurementObservations.addAll(getResult(chunk));
+        }
+        indexMeasurementObservations();
+        categoryObservations.clear();
+        for (Future<CategoryObservationStore> chunk : categoryChunks) {
+            categoryObservations.addAll(getResult(chunk));
+        }
+        indexCategoryObservations();
+        // Both files are parsed at the same time, so each is charged the time of both
+        recordRead("PRS-MeasurementObservations.txt", measurementObservations.size(), start);
+        recordRead("PRS-CategoryObservations.txt", categoryObservations.size(), start);
+    }
+
+    private static int parallelChunkCount() {
+        return ForkJoinPool.getCommonPoolParallelism() * 4;
+    }
+
+    private static void invokeAll(List<Callable<Void>> tasks) throws Exception {
+        for (Future<Void> future : ForkJoinPool.commonPool().invokeAll(tasks)) {
+            getResult(future);
+        }
+    }
+
+    // Rethrows the exception of a failed load task as if the load had run on this thread
+    private static <T> T getResult(Future<T> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    public void loadData(SnapshotFormat format) throws Exception {
+        if (format == SnapshotFormat.TEXT) {
+            loadData();
+            return;
+        }
+        long start = System.nanoTime();
+        awaitCheckpoints();
+        checkpointLock.lock();
+        try {
+            // The text files no longer match what is in memory
+            Arrays.fill(checkpointedRows, -1);
+            if (format == SnapshotFormat.BINARY) {
+                loadBinarySnapshot();
+                if (journal != null) {
+                    replayJournal();
+                }
+            } else {
+                loadPagedSnapshot();
+            }
+            generation = newGeneration();
+        } catch (Exception e) {
+            metrics.recordError(PatientRecordSystemMetrics.ErrorType.LOAD_FAILED);
+            throw e;
+        } finally {
+            checkpointLock.unlock();
+            metrics.recordOperation(PatientRecordSystemMetrics.Operation.LOAD_DATA, start);
+        }
+    }
+
+    private void loadBinarySnapshot() throws Exception {
+        long start = System.nanoTime();
+        closePagedObservations();
+        measurementObservationTypes.clear();
+        categoryObservationTypes.clear();
+        patients.clear();
+        measurementObservations.clear();
+        categoryObservations.clear();
+        try (BinarySnapshotReader reader = new BinarySnapshotReader(dataFile("PRS-Snapshot.bin"))) {
+            for (int i = reader.readVarint(); i > 0; i--) {
+                String code = reader.readString();
+                measurementObservationTypes.add(code, new MeasurementObservationType(code, reader.readString(), reader.readString()));
+            }
+            for (int i = reader.readVarint(); i > 0; i--) {
+                String code = reader.readString();
+                String name = reader.readString();
+                List<String> categories = new ArrayList<>();
+                for (int j = reader.readVarint(); j > 0; j--) {
+                    categories.add(reader.readString());
+                }
+                CategoryObservationType type = new CategoryObservationType(code, name, categories);
+                // Version 2 snapshots have no unlisted categories
+                if (reader.getVersion() >= 3) {
+                    for (int j = reader.readVarint(); j > 0; j--) {
+                        type.getLoadedCategoryOrdinal(reader.readString());
+                    }
+                }
+                categoryObservationTypes.add(code, type);
+            }
+            for (int i = reader.readVarint(); i > 0; i--) {
+                String id = reader.readString();
+                patients.add(id, new Patient(id, reader.readString()));
+            }
+            long recordedAt = 0;
+            for (int i = reader.readVarint(); i > 0; i--) {
+                int patientOrdinal = checkOrdinal(reader.readVarint(), patients.size());
+                int typeOrdinal = checkOrdinal(reader.readVarint(), measurementObservationTypes.size());
+                double value = reader.readDouble();
+                // Version 1 snapshots have no timestamps
+                if (reader.getVersion() >= 2) {
+                    recordedAt += reader.readSignedVarlong();
+                }
+                measurementObservations.add(patientOrdinal, typeOrdinal, value, recordedAt);
+            }
+            for (int i = reader.readVarint(); i > 0; i--) {
+                int patientOrdinal = checkOrdinal(reader.readVarint(), patients.size());
+                int typeOrdinal = checkOrdinal(reader.readVarint(), categoryObservationTypes.size());
+                int categoryOrdinal = checkOrdinal(reader.readVarint(), categoryObservationTypes.get(typeOrdinal).getCategoryCount());
+                categoryObservations.add(patientOrdinal, typeOrdinal, categoryOrdinal);
+            }
+            reader.finish();
+        } finally {
+            indexMeasurementObservations();
+            indexCategoryObservations();
+        }
+        recordRead("PRS-Snapshot.bin", measurementObservations.size() + categoryObservations.size(), start);
+    }
+
+    // Keeps types and patients in memory but leaves the observations in PRS-Paged.bin. A
+    // patient's observations are read from disk when they are asked for, and the pages read
+    // recently are kept in a page cache of setPageCacheSize pages. One scan of the file
+    // fills the statistics and the category index; queries scan the file again.
+    // getMeasurementObservations() and getCategoryObservations() only return the rows added
+    // since the load.
+    private void loadPagedSnapshot() throws Exception {
+        if (journal != null) {
+            throw new Exception("Journal mode needs a text or binary snapshot");
+        }
+        long start = System.nanoTime();
+        closePagedObservations();
+        measurementObservationTypes.clear();
+        categoryObservationTypes.clear();
+        patients.clear();
+        measurementObservations.clear();
+        categoryObservations.clear();
+        long[] records = new long[1];
+        PagedObservations paged = PagedObservations.open(dataFile("PRS-Paged.bin"), pageCacheSize, new PagedObservations.MetadataVisitor() {
+            @Override
+            public void measurementObservationType(String code, String name, String unit) throws Exception {
+                measurementObservationTypes.add(code, new MeasurementObservationType(code, name, unit));
+            }
+
+            @Override
+            public void categoryObservationType(String code, String name, List<String> categories, List<String> unlistedCategories) throws Exception {
+                CategoryObservationType type = new CategoryObservationType(code, name, categories);
+                for (String category : unlistedCategories) {
+                    type.getLoadedCategoryOrdinal(category);
+                }
+                categoryObservationTypes.add(code, type);
+            }
+
+            @Override
+            public void patient(String id, String name) throws Exception {
+                patients.add(id, new Patient(id, name));
+            }
+        });
+        try {
+            indexMeasurementObservations();
+            indexCategoryObservations();
+            paged.scan(new PagedObservations.RecordVisitor() {
+                @Override
+                public void measurement(int patientOrdinal, int typeOrdinal, double value, long recordedAt) throws IOException {
+                    records[0]++;
+                    checkOrdinal(patientOrdinal, patients.size());
+                    measurementStatistics.add(checkOrdinal(typeOrdinal, measurementObservationTypes.size()), value);
+                }
+
+                @Override
+                public void category(int patientOrdinal, int typeOrdinal, int categoryOrdinal) throws IOException {
+                    records[0]++;
+                    checkOrdinal(patientOrdinal, patients.size());
+                    checkOrdinal(typeOrdinal, categoryObservationTypes.size());
+                    checkOrdinal(categoryOrdinal, categoryObservationTypes.get(typeOrdinal).getCategoryCount());
+                    categoryIndex.add(typeOrdinal, categoryOrdinal, patientOrdinal);
+                }
+            });
+        } catch (Exception e) {
+            paged.close();
+            throw e;
+        }
+        pagedObservations = paged;
+        recordRead("PRS-Paged.bin", records[0], start);
+    }
+
+    private void closePagedObservations() throws IOException {
+        PagedObservations paged = pagedObservations;
+        if (paged != null) {
+            pagedObservations = null;
+            paged.close();
+        }
+    }
+
+    // Number of pages of PRS-Paged.bin kept in memory after loadData(SnapshotFormat.PAGED)
+    public void setPageCacheSize(int pages) {
+        if (pages < 0) {
+            throw new IllegalArgumentException("Page cache size must not be negative: " + pages);
+        }
+        pageCacheSize = pages;
+        PagedObservations paged = pagedObservations;
+        if (paged != null) {
+            paged.getPageCache().setMaximumPages(pages);
+        }
+    }
+
+    // The page cache for its hit, miss and eviction counts, or null if observations are not paged
+    public PageCache getPageCache() {
+        PagedObservations paged = pagedObservations;
+        return paged == null ? null : paged.getPageCache();
+    }
+
+    private static int checkOrdinal(int ordinal, int size) throws IOException {
+        if (ordinal < 0 || ordinal >= size) {
+            throw new IOException("Snapshot refers to a missing patient, type or category");
+        }
+        return ordinal;
+    }
+
+    // Converters between the PRS-*.txt files and PRS-Snapshot.bin in a data directory
+    public static void convertTextToBinary(Path dataDirectory) throws Exception {
+        PatientRecordSystem prs = new PatientRecordSystem(dataDirectory);
+        prs.loadData(SnapshotFormat.TEXT);
+        prs.saveData(SnapshotFormat.BINARY);
+    }
+
+    public static void convertBinaryToText(Path dataDirectory) throws Exception {
+        PatientRecordSystem prs = new PatientRecordSystem(dataDirectory);
+        prs.loadData(SnapshotFormat.BINARY);
+        prs.saveData(SnapshotFormat.TEXT);
+    }
+
+    // Writes PRS-Paged.bin from the PRS-*.txt files without loading the observations, so data
+    // larger than the heap can be paged. The file is the same as saveData(SnapshotFormat.PAGED)
+    // writes after a text load.
+    public static void convertTextToPaged(Path dataDirectory) throws Exception {
+        convertTextToPaged(dataDirectory, PAGED_IMPORT_RUN_ROWS);
+    }
+
+    static void convertTextToPaged(Path dataDirectory, int runRows) throws Exception {
+        new PatientRecordSystem(dataDirectory).importPagedSnapshot(runRows);
+    }
+
+    // An external merge sort by patient: types and patients are loaded, the observation files
+    // are read runRows rows at a time, and each run is sorted by patient into a temporary
+    // file. Runs are merged MAX_MERGED_RUNS at a time until few enough are left to merge into
+    // the pages. Measurement runs come before category runs and ties go to the earlier run, so
+    // each patient's measurements and then categories keep file order.
+    private void importPagedSnapshot(int runRows) throws Exception {
+        long start = System.nanoTime();
+        loadMeasurementObservationTypes(LoadMode.BUFFERED);
+        loadCategoryObservationTypes(LoadMode.BUFFERED);
+        loadPatients(LoadMode.BUFFERED);
+        // Every run created, so all are deleted however the import ends
+        List<PagedImportRun> created = new ArrayList<>();
+        List<PagedImportRun> runs = new ArrayList<>();
+        Path temp = dataFile("PRS-Paged.bin.tmp");
+        long records;
+        try {
+            try (RecordFileReader reader = RecordFileReader.open(dataFile("PRS-MeasurementObservations.txt"), LoadMode.BUFFERED)) {
+                while (true) {
+                    measurementObservations.clear();
+                    readMeasurementObservations(reader, measurementObservations, runRows);
+                    if (measurementObservations.isEmpty()) {
+                        break;
+                    }
+                    PagedImportRun run = createRun(created);
+                    runs.add(run);
+                    MeasurementObservationStore rows = measurementObservations;
+                    for (int row : rowsByPatient(rows, rows.size(), patients.size())) {
+                        run.measurement(rows.patientOrdinal(row), rows.typeOrdinal(row), rows.value(row), rows.recordedAt(row));
+                    }
+                    run.finish();
+                }
+            }
+            try (RecordFileReader reader = RecordFileReader.open(dataFile("PRS-CategoryObservations.txt"), LoadMode.BUFFERED)) {
+                while (true) {
+                    categoryObservations.clear();
+                    readCategoryObservations(reader, categoryObservations, runRows);
+                    if (categoryObservations.isEmpty()) {
+                        break;
+                    }
+                    PagedImportRun run = createRun(created);
+                    runs.add(run);
+                    CategoryObservationStore rows = categoryObservations;
+                    for (int row : rowsByPatient(rows, rows.size(), patients.size())) {
+                        run.category(rows.patientOrdinal(row), rows.typeOrdinal(row), rows.categoryOrdinal(row));
+                    }
+                    run.finish();
+                }
+            }
+            measurementObservations.clear();
+            categoryObservations.clear();
+
+            while (runs.size() > MAX_MERGED_RUNS) {
+                List<PagedImportRun> merged = new ArrayList<>();
+                for (int first = 0; first < runs.size(); first += MAX_MERGED_RUNS) {
+                    List<PagedImportRun> group = runs.subList(first, Math.min(runs.size(), first + MAX_MERGED_RUNS));
+                    PagedImportRun run = createRun(created);
+                    merged.add(run);
+                    mergeRuns(group, run);
+                    run.finish();
+                    for (PagedImportRun done : group) {
+                        done.close();
+                        Files.delete(done.file);
+                    }
+                }
+                runs = merged;
+            }
+            try (PagedObservations.Writer writer = new PagedObservations.Writer(temp, PagedObservations.DEFAULT_PAGE_SIZE)) {
+                mergeRuns(runs, new PagedObservations.RecordVisitor() {
+                    @Override
+                    public void measurement(int patientOrdinal, int typeOrdinal, double value, long recordedAt) throws IOException {
+                        writer.addMeasurement(patientOrdinal, typeOrdinal, value, recordedAt);
+                    }
+
+                    @Override
+                    public void category(int patientOrdinal, int typeOrdinal, int categoryOrdinal) throws IOException {
+                        writer.addCategory(patientOrdinal, typeOrdinal, categoryOrdinal);
+                    }
+                });
+                writePagedMetadata(writer, patients.size());
+                records = writer.getRecordCount();
+            }
+        } finally {
+            for (PagedImportRun run : created) {
+                run.close();
+                Files.deleteIfExists(run.file);
+            }
+        }
+        Files.move(temp, dataFile("PRS-Paged.bin"), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        recordWrite("PRS-Paged.bin", records, start);
+    }
+
+    private PagedImportRun createRun(List<PagedImportRun> created) throws IOException {
+        PagedImportRun run = new PagedImportRun(dataFile("PRS-Paged.run" + created.size() + ".tmp"));
+        created.add(run);
+        return run;
+    }
+
+    // Visits the rows of the runs in patient order, the rows of earlier runs first
+    private static void mergeRuns(List<PagedImportRun> runs, PagedObservations.RecordVisitor out) throws IOException {
+        PriorityQueue<PagedImportRun> next = new PriorityQueue<>((a, b) -> a.patientOrdinal != b.patientOrdinal
+                ? Integer.compare(a.patientOrdinal, b.patientOrdinal) : Integer.compare(a.order, b.order));
+        for (int i = 0; i < runs.size(); i++) {
+            PagedImportRun run = runs.get(i);
+            run.order = i;
+            run.rewind();
+            if (run.next()) {
+                next.add(run);
+            }
+        }
+        while (!next.isEmpty()) {
+            PagedImportRun run = next.poll();
+            run.copyTo(out);
+            if (run.next()) {
+                next.add(run);
+            }
+        }
+    }
+
+    // A temporary file of observation rows sorted by patient. Rows are written through the
+    // visitor methods, then read back one at a time while importPagedSnapshot merges the runs.
+    private static class PagedImportRun implements PagedObservations.RecordVisitor, Closeable {
+        private static final byte MEASUREMENT = 0;
+        private static final byte CATEGORY = 1;
+
+        final Path file;
+        private DataOutputStream out;
+        private DataInputStream in;
+        private long rows;
+        // Position of the run in the current merge; ties go to the lower one
+        int order;
+        // The row last read by next()
+        int patientOrdinal;
+        private byte kind;
+        private int typeOrdinal;
+        private double value;
+        private long recordedAt;
+        private int categoryOrdinal;
+
+        PagedImportRun(Path file) throws IOException {
+            this.file = file;
+            out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 1 << 16));
+        }
+
+        @Override
+        public void measurement(int patientOrdinal, int typeOrdinal, double value, long recordedAt) throws IOException {
+            out.writeByte(MEASUREMENT);
+            out.writeInt(patientOrdinal);
+            out.writeInt(typeOrdinal);
+            out.writeDouble(value);
+            out.writeLong(recordedAt);
+            rows++;
+        }
+
+        @Override
+        public void category(int patientOrdinal, int typeOrdinal, int categoryOrdinal) throws IOException {
+            out.writeByte(CATEGORY);
+            out.writeInt(patientOrdinal);
+            out.writeInt(typeOrdinal);
+            out.writeInt(categoryOrdinal);
+            rows++;
+        }
+
+        // Ends writing, so only the runs being merged hold open files
+        void finish() throws IOException {
+            out.close();
+            out = null;
+        }
+
+        // next() then reads the rows from the first
+        void rewind() throws IOException {
+            in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16));
+        }
+
+        // Reads the next row, or returns false at the end of the run
+        boolean next() throws IOException {
+            if (rows == 0) {
+                return false;
+            }
+            rows--;
+            kind = in.readByte();
+            patientOrdinal = in.readInt();
+            typeOrdinal = in.readInt();
+            if (kind == MEASUREMENT) {
+                value = in.readDouble();
+                recordedAt = in.readLong();
+            } else {
+                categoryOrdinal = in.readInt();
+            }
+            return true;
+        }
+
+        void copyTo(PagedObservations.RecordVisitor visitor) throws IOException {
+            if (kind == MEASUREMENT) {
+                visitor.measurement(patientOrdinal, typeOrdinal, value, recordedAt);
+            } else {
+                visitor.category(patientOrdinal, typeOrdinal, categoryOrdinal);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (out != null) {
+                out.close();
+                out = null;
+            }
+            if (in != null) {
+                in.close();
+                in = null;
+            }
+        }
+    }
+
+    private Path dataFile(String name) {
+        return dataDirectory.resolve(name);
+    }
+
+    private void loadMeasurementObservationTypes(LoadMode mode) throws Exception {
+        long start = System.nanoTime();
+        measurementObservationTypes.clear();
+        try (RecordFileReader reader = RecordFileReader.open(dataFile("PRS-MeasurementObservationTypes.txt"), mode)) {
+            while (reader.nextLine()) {
+                if (reader.fieldCount() == 3) {
+                    String code = reader.field(0);
+                    measurementObservationTypes.add(code, new MeasurementObservationType(code, reader.field(1), reader.field(2)));
+                }
+            }
+        }
+        recordRead("PRS-MeasurementObservationTypes.txt", measurementObservationTypes.size(), start);
+    }
+
+    private void loadCategoryObservationTypes(LoadMode mode) throws Exception {
+        long start = System.nanoTime();
+        categoryObservationTypes.clear();
+        try (RecordFileReader reader = RecordFileReader.open(dataFile("PRS-CategoryObservationTypes.txt"), mode)) {
+            while (reader.nextLine()) {
+                if (reader.fieldCount() >= 2) {
+                    String code = reader.field(0);
+                    String name = reader.field(1);
+                    List<String> categories = new ArrayList<>();
+                    if (reader.fieldCount() > 2 && !reader.field(2).isEmpty()) {
+                        categories.addAll(Arrays.asList(reader.field(2).split(",")));
+                    }
+                    categoryObservationTypes.add(code, new CategoryObservationType(code, name, categories));
+                }
+            }
+        }
+        recordRead("PRS-CategoryObservationTypes.txt", categoryObservationTypes.size(), start);
+    }
+
+    private void loadPatients(LoadMode mode) throws Exception {
+        long start = System.nanoTime();
+        patients.clear();
+        try (RecordFileReader reader = RecordFileReader.open(dataFile("PRS-Patients.txt"), mode)) {
+            while (reader.nextLine()) {
+                if (reader.fieldCount() == 2) {
+                    String id = reader.field(0);
+                    patients.add(id, new Patient(id, reader.field(1)));
+                }
+            }
+        }
+        recordRead("PRS-Patients.txt", patients.size(), start);
+    }
+
+    private void loadMeasurementObservations(LoadMode mode) throws Exception {
+        long start = System.nanoTime();
+        measurementObservations.clear();
+        try (RecordFileReader reader = RecordFileReader.open(dataFile("PRS-MeasurementObservations.txt"), mode)) {
+            readMeasurementObservations(reader, measurementObservations, Integer.MAX_VALUE);
+        } finally {
+            indexMeasurementObservations();
+        }
+        recordRead("PRS-MeasurementObservations.txt", measurementObservations.size(), start);
+    }
+
+    private void loadCategoryObservations(LoadMode mode) throws Exception {
+        long start = System.nanoTime();
+        categoryObservations.clear();
+        try (RecordFileReader reader = RecordFileReader.open(dataFile("PRS-CategoryObservations.txt"), mode)) {
+            readCategoryObservations(reader, categoryObservations, Integer.MAX_VALUE);
+        } finally {
+            indexCategoryObservations();
+        }
+        recordRead("PRS-CategoryObservations.txt", categoryObservations.size(), start);
+    }
+
+    // Rebuilds the per-patient rows and the time series from the store after a bulk load
+    private void indexMeasurementObservations() {
+        patientObservations.clearMeasurements();
+        for (int row = 0; row < measurementObservations.size(); row++) {
+            patientObservations.addMeasurement(measurementObservations.patientOrdinal(row), row);
+        }
+        measurementSeries.load(measurementObservations, patients.size(), measurementObservationTypes.size());
+        measurementStatistics.load(measurementObservations, measurementObservationTypes.size());
+        recordCache.invalidateAll();
+    }
+
+    private void indexCategoryObservations() {
+        patientObservations.clearCategories();
+        for (int row = 0; row < categoryObservations.size(); row++) {
+            patientObservations.addCategory(categoryObservations.patientOrdinal(row), row);
+        }
+        categoryIndex.load(categoryObservations);
+        recordCache.invalidateAll();
+    }
+
+    // Parses observation lines into a store until it holds maxRows rows, skipping rows with
+    // unknown patients or types. Only reads the patient and type indexes, so several readers
+    // may run at once.
+    private void readMeasurementObservations(RecordFileReader reader, MeasurementObservationStore target, int maxRows) throws IOException {
+        while (target.size() < maxRows && reader.nextLine()) {
+            // Files saved before timestamps were kept have no fourth column
+            if (reader.fieldCount() == 3 || reader.fieldCount() == 4) {
+                int patientOrdinal = patients.ordinalOf(reader.field(0));
+                int typeOrdinal = measurementObservationTypes.ordinalOf(reader.field(1));
+                double value = reader.doubleField(2);
+                long recordedAt = reader.fieldCount() == 4 ? reader.longField(3) : 0;
+                if (patientOrdinal >= 0 && typeOrdinal >= 0) {
+                    target.add(patientOrdinal, typeOrdinal, value, recordedAt);
+                }
+            }
+        }
+    }
+
+    private void readCategoryObservations(RecordFileReader reader, CategoryObservationStore target, int maxRows) throws IOException {
+        while (target.size() < maxRows && reader.nextLine()) {
+            if (reader.fieldCount() == 3) {
+                int patientOrdinal = patients.ordinalOf(reader.field(0));
+                int typeOrdinal = categoryObservationTypes.ordinalOf(reader.field(1));
+                if (patientOrdinal >= 0 && typeOrdinal >= 0) {
+                    // Rows whose category the type does not allow are kept; see CategoryObservationType
+                    target.add(patientOrdinal, typeOrdinal, categoryObservationTypes.get(typeOrdinal).getLoadedCategoryOrdinal(reader.field(2)));
+                }
+            }
+        }
+    }
+
+    // Returns a read-only view of all data at the time of the call: every observation added
+    // before it, and every patient and type they refer to. Taking one copies nothing and
+    // reading one never locks, so long exports and reports can run while adds continue; see
+    // PatientRecordSnapshot. Must not run concurrently with loadData.
+    public PatientRecordSnapshot snapshot() throws Exception {
+        if (pagedObservations != null) {
+            throw new Exception("Observations are paged; snapshots need them in memory");
+        }
+        // Observation rows first: every row refers to a patient and type added before it, so
+        // the index snapshots taken after them hold everything the rows refer to
+        int measurementRows = measurementObservations.size();
+        int categoryRows = categoryObservations.size();
+        PrimaryKeyIndex<Patient> patientSnapshot = patients.snapshot();
+        PrimaryKeyIndex<MeasurementObservationType> measurementTypeSnapshot = measurementObservationTypes.snapshot();
+        PrimaryKeyIndex<CategoryObservationType> categoryTypeSnapshot = categoryObservationTypes.snapshot();
+        return new PatientRecordSnapshot(measurementTypeSnapshot, categoryTypeSnapshot, patientSnapshot,
+                measurementObservations.snapshot(measurementRows, patientSnapshot, measurementTypeSnapshot),
+                categoryObservations.snapshot(categoryRows, patientSnapshot, categoryTypeSnapshot));
+    }
+
+    // Other getter methods for inspection
+    public List<MeasurementObservationType> getMeasurementObservationTypes() {
+        return measurementObservationTypes.values();
+    }
+
+    public List<CategoryObservationType> getCategoryObservationTypes() {
+        return categoryObservationTypes.values();
+    }
+
+    public List<Patient> getPatients() {
+        return patients.values();
+    }
+
+    // Indexed lookups by primary key; return null when not found
+    public Patient getPatient(String id) {
+        return findPatientById(id);
+    }
+
+    public MeasurementObservationType getMeasurementObservationType(String code) {
+        return findMeasurementObservationTypeByCode(code);
+    }
+
+    public CategoryObservationType getCategoryObservationType(String code) {
+        return findCategoryObservationTypeByCode(code);
     }
 
+    // Live views that include rows added while they are being read; snapshot() gives views
+    // that do not change
     public List<MeasurementObservation> getMeasurementObservations() {
         return measurementObservations;
     }
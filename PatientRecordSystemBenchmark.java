@@ -0,0 +1,364 @@
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class PatientRecordSystemBenchmark {
+    // Usage: PatientRecordSystemBenchmark [observations]
+    //        PatientRecordSystemBenchmark query [observations]
+    //        PatientRecordSystemBenchmark paged [observations]
+    //        PatientRecordSystemBenchmark sharded [observations]
+    //        PatientRecordSystemBenchmark writers [observations]
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("query")) {
+            benchmarkQuery(args.length > 1 ? Integer.parseInt(args[1]) : 50_000_000);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("paged")) {
+            benchmarkPaged(args.length > 1 ? Integer.parseInt(args[1]) : 5_000_000);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("sharded")) {
+            benchmarkSharded(args.length > 1 ? Integer.parseInt(args[1]) : 5_000_000);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("writers")) {
+            benchmarkWriters(args.length > 1 ? Integer.parseInt(args[1]) : 4_000_000);
+            return;
+        }
+        int observations = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        Path dataDirectory = Files.createTempDirectory("prs-benchmark");
+        try {
+            createDataFiles(dataDirectory, observations);
+            benchmarkLoad(dataDirectory);
+            benchmarkIngestion(observations);
+        } finally {
+            deleteDirectory(dataDirectory);
+        }
+    }
+
+    // Writes PRS-*.txt files with the given number of measurement observations for a
+    // twentieth as many patients, and a tenth as many category observations
+    public static void createDataFiles(Path dataDirectory, int observations) throws Exception {
+        new PatientRecordSystemDataGenerator(dataDirectory, Math.max(1, observations / 20), observations).generate();
+    }
+
+    public static void benchmarkLoad(Path dataDirectory) throws Exception {
+        System.out.println("BENCHMARK: loadData by load mode");
+        for (LoadMode mode : LoadMode.values()) {
+            PatientRecordSystem prs = new PatientRecordSystem(dataDirectory);
+            prs.loadData(mode);
+            long best = Long.MAX_VALUE;
+            for (int run = 0; run < 3; run++) {
+                long start = System.nanoTime();
+                prs.loadData(mode);
+                best = Math.min(best, System.nanoTime() - start);
+            }
+            int rows = prs.getMeasurementObservations().size() + prs.getCategoryObservations().size();
+            System.out.printf("%-10s %8d ms %12.0f rows/s (%d observations)%n",
+                    mode, best / 1_000_000, rows / (best / 1e9), rows);
+        }
+    }
+
+    // Compares one add call per observation with addObservations on the same rows
+    public static void benchmarkIngestion(int observations) throws Exception {
+        System.out.println("BENCHMARK: ingestion of measurement observations");
+        int patientCount = Math.max(1, observations / 20);
+        String[] patientIds = new String[patientCount];
+        for (int i = 0; i < patientCount; i++) {
+            patientIds[i] = "P" + i;
+        }
+        String[] typeCodes = {"T100", "T101", "T102", "T103", "T104"};
+        Random random = new Random(42);
+        ObservationBatch batch = new ObservationBatch(observations);
+        for (int i = 0; i < observations; i++) {
+            // Lab feeds list the readings of one patient together
+            batch.addMeasurement(patientIds[i / 20 % patientCount], typeCodes[random.nextInt(typeCodes.length)], random.nextInt(1000) / 10.0);
+        }
+        benchmarkIngestion("memory", batch, patientIds, typeCodes, false);
+
+        // In journal mode a single add waits for its own sync, a batch for one sync in total
+        ObservationBatch journalBatch = new ObservationBatch();
+        for (int i = 0; i < Math.min(observations, 10_000); i++) {
+            journalBatch.addMeasurement(batch.getPatientId(i), batch.getObservationTypeCode(i), batch.getValue(i), batch.getRecordedAt(i));
+        }
+        benchmarkIngestion("journal", journalBatch, patientIds, typeCodes, true);
+    }
+
+    private static void benchmarkIngestion(String label, ObservationBatch batch, String[] patientIds, String[] typeCodes, boolean journal) throws Exception {
+        int rows = batch.size();
+        long singleBest = Long.MAX_VALUE;
+        long batchBest = Long.MAX_VALUE;
+        for (int run = 0; run < 3; run++) {
+            Path dataDirectory = Files.createTempDirectory("prs-benchmark");
+            try {
+                PatientRecordSystem prs = createIngestionTarget(dataDirectory, patientIds, typeCodes, journal);
+                long start = System.nanoTime();
+                for (int i = 0; i < rows; i++) {
+                    prs.addMeasurementObservation(batch.getPatientId(i), batch.getObservationTypeCode(i), batch.getValue(i));
+                }
+                singleBest = Math.min(singleBest, System.nanoTime() - start);
+                prs.disableJournal();
+            } finally {
+                deleteDirectory(dataDirectory);
+            }
+
+            dataDirectory = Files.createTempDirectory("prs-benchmark");
+            try {
+                PatientRecordSystem prs = createIngestionTarget(dataDirectory, patientIds, typeCodes, journal);
+                long start = System.nanoTime();
+                BatchResult result = prs.addObservations(batch);
+                batchBest = Math.min(batchBest, System.nanoTime() - start);
+                prs.disableJournal();
+                if (result.hasErrors()) {
+                    throw new IllegalStateException("Batch rejected rows: " + result.getErrors().get(0));
+                }
+            } finally {
+                deleteDirectory(dataDirectory);
+            }
+        }
+        System.out.printf("%-8s single %8d ms %12.0f rows/s (%d observations)%n", label, singleBest / 1_000_000, rows / (singleBest / 1e9), rows);
+        System.out.printf("%-8s batch  %8d ms %12.0f rows/s (%d observations)%n", label, batchBest / 1_000_000, rows / (batchBest / 1e9), rows);
+    }
+
+    // Runs the same query on pools of 1, 2, 4, ... threads up to the number of processors.
+    // 50M rows need a heap of about 3 GB (-Xmx3g).
+    public static void benchmarkQuery(int observations) throws Exception {
+        System.out.println("BENCHMARK: findPatients by thread count");
+        int patientCount = Math.max(1, observations / 50);
+        String[] patientIds = new String[patientCount];
+        for (int i = 0; i < patientCount; i++) {
+            patientIds[i] = "P" + i;
+        }
+        String[] typeCodes = {"T100", "T101", "T102", "T103", "T104"};
+        List<String> categories = Arrays.asList("Group A", "Group B1", "Group B2", "Group O");
+        Path dataDirectory = Files.createTempDirectory("prs-benchmark");
+        try {
+            PatientRecordSystem prs = createIngestionTarget(dataDirectory, patientIds, typeCodes, false);
+            prs.addCategoryObservationType("T200", "blood type", categories);
+            Random random = new Random(42);
+            ObservationBatch batch = new ObservationBatch(1 << 16);
+            for (int i = 0; i < observations; i++) {
+                String patientId = patientIds[random.nextInt(patientCount)];
+                if (i % 10 == 0) {
+                    batch.addCategory(patientId, "T200", categories.get(random.nextInt(categories.size())));
+                } else {
+                    batch.addMeasurement(patientId, typeCodes[random.nextInt(typeCodes.length)], random.nextInt(2000) / 10.0, i);
+                }
+                if (batch.size() == 1 << 16 || i == observations - 1) {
+                    prs.addObservations(batch);
+                    batch.clear();
+                }
+            }
+
+            PatientQuery query = new PatientQuery()
+                    .measurementAbove("T100", 190)
+                    .measurementBetween("T102", 20, 25)
+                    .category("T200", "Group O");
+            int processors = Runtime.getRuntime().availableProcessors();
+            for (int threads = 1; ; threads = Math.min(threads * 2, processors)) {
+                ForkJoinPool pool = new ForkJoinPool(threads);
+                try {
+                    int matches = prs.findPatients(query, pool).size();
+                    long best = Long.MAX_VALUE;
+                    for (int run = 0; run < 5; run++) {
+                        long start = System.nanoTime();
+                        prs.findPatients(query, pool);
+                        best = Math.min(best, System.nanoTime() - start);
+                    }
+                    System.out.printf("%2d threads %8d ms %12.0f rows/s (%d observations, %d matching patients)%n",
+                            threads, best / 1_000_000, observations / (best / 1e9), observations, matches);
+                } finally {
+                    pool.shutdown();
+                }
+                if (threads == processors) {
+                    break;
+                }
+            }
+        } finally {
+            deleteDirectory(dataDirectory);
+        }
+    }
+
+    // Compares the heap held and the cost of random patient records with all observations in
+    // memory and with observations paged from disk. The paged file is written by
+    // convertTextToPaged, which never holds all observations.
+    public static void benchmarkPaged(int observations) throws Exception {
+        System.out.println("BENCHMARK: resident and paged observations");
+        Path dataDirectory = Files.createTempDirectory("prs-benchmark");
+        try {
+            createDataFiles(dataDirectory, observations);
+            long convertStart = System.nanoTime();
+            PatientRecordSystem.convertTextToPaged(dataDirectory);
+            System.out.printf("convertTextToPaged %d ms%n", (System.nanoTime() - convertStart) / 1_000_000);
+            PatientRecordSystem prs;
+            int patientCount = Math.max(1, observations / 20);
+            for (SnapshotFormat format : new SnapshotFormat[] {SnapshotFormat.TEXT, SnapshotFormat.PAGED}) {
+                long before = usedHeap();
+                prs = new PatientRecordSystem(dataDirectory);
+                prs.loadData(format);
+                long heap = usedHeap() - before;
+                // Three quarters of the views go to a small set of active patients
+                Random random = new Random(42);
+                int views = 100_000;
+                long start = System.nanoTime();
+                for (int i = 0; i < views; i++) {
+                    int patient = random.nextInt(4) == 0 ? random.nextInt(patientCount) : random.nextInt(Math.min(patientCount, 500));
+                    prs.getPatientRecord("P" + patient);
+                }
+                long elapsed = System.nanoTime() - start;
+                PageCache pageCache = prs.getPageCache();
+                System.out.printf("%-6s heap %6d MB %8.1f us/record%s%n", format, heap >> 20, elapsed / 1e3 / views,
+                        pageCache == null ? "" : String.format(" (%d pages on disk, page cache hits %d misses %d)",
+                                Files.size(dataDirectory.resolve("PRS-Paged.bin")) / PagedObservations.DEFAULT_PAGE_SIZE,
+                                pageCache.getHitCount(), pageCache.getMissCount()));
+                prs = null;
+            }
+        } finally {
+            deleteDirectory(dataDirectory);
+        }
+    }
+
+    // Adds the same batch to 1, 2, 4 and 8 shards. Shards only scale with free processors, so
+    // the speedup is bounded by the number of processors.
+    public static void benchmarkSharded(int observations) throws Exception {
+        System.out.println("BENCHMARK: addObservations by shard count (" + Runtime.getRuntime().availableProcessors() + " processors)");
+        int patientCount = Math.max(1, observations / 20);
+        String[] patientIds = new String[patientCount];
+        for (int i = 0; i < patientCount; i++) {
+            patientIds[i] = "P" + i;
+        }
+        String[] typeCodes = {"T100", "T101", "T102", "T103", "T104"};
+        Random random = new Random(42);
+        ObservationBatch batch = new ObservationBatch(observations);
+        for (int i = 0; i < observations; i++) {
+            batch.addMeasurement(patientIds[random.nextInt(patientCount)], typeCodes[random.nextInt(typeCodes.length)], random.nextInt(1000) / 10.0);
+        }
+        double singleShardRate = 0;
+        for (int shardCount = 1; shardCount <= 8; shardCount *= 2) {
+            long best = Long.MAX_VALUE;
+            int largestShard = 0;
+            for (int run = 0; run < 3; run++) {
+                Path dataDirectory = Files.createTempDirectory("prs-benchmark");
+                try {
+                    ShardedPatientRecordSystem prs = new ShardedPatientRecordSystem(dataDirectory, shardCount);
+                    for (String code : typeCodes) {
+                        prs.addMeasurementObservationType(code, "Measurement " + code, "unit");
+                    }
+                    for (String id : patientIds) {
+                        prs.addPatient(id, "Patient " + id);
+                    }
+                    long start = System.nanoTime();
+                    BatchResult result = prs.addObservations(batch);
+                    best = Math.min(best, System.nanoTime() - start);
+                    if (result.hasErrors()) {
+                        throw new IllegalStateException("Batch rejected rows: " + result.getErrors().get(0));
+                    }
+                    for (int i = 0; i < shardCount; i++) {
+                        largestShard = Math.max(largestShard, prs.getShard(i).getMeasurementObservations().size());
+                    }
+                } finally {
+                    deleteDirectory(dataDirectory);
+                }
+            }
+            double rate = observations / (best / 1e9);
+            if (shardCount == 1) {
+                singleShardRate = rate;
+            }
+            System.out.printf("%d shards %8d ms %12.0f rows/s speedup %4.2f (largest shard %.1f%% of rows)%n",
+                    shardCount, best / 1_000_000, rate, rate / singleShardRate, 100.0 * largestShard / observations);
+        }
+    }
+
+    // Single adds from 1, 2, 4 and 8 threads, each adding its share of the rows for patients
+    // of its own
+    public static void benchmarkWriters(int observations) throws Exception {
+        System.out.println("BENCHMARK: addMeasurementObservation by writer threads (" + Runtime.getRuntime().availableProcessors() + " processors)");
+        int patientCount = Math.max(8, observations / 20);
+        String[] patientIds = new String[patientCount];
+        for (int i = 0; i < patientCount; i++) {
+            patientIds[i] = "P" + i;
+        }
+        String[] typeCodes = {"T100", "T101", "T102", "T103", "T104"};
+        double singleWriterRate = 0;
+        for (int writers = 1; writers <= 8; writers *= 2) {
+            long best = Long.MAX_VALUE;
+            for (int run = 0; run < 3; run++) {
+                Path dataDirectory = Files.createTempDirectory("prs-benchmark");
+                ExecutorService executor = Executors.newFixedThreadPool(writers);
+                try {
+                    PatientRecordSystem prs = createIngestionTarget(dataDirectory, patientIds, typeCodes, false);
+                    int perWriter = observations / writers;
+                    int writerCount = writers;
+                    CountDownLatch ready = new CountDownLatch(writers);
+                    CountDownLatch go = new CountDownLatch(1);
+                    List<Future<?>> futures = new ArrayList<>();
+                    for (int w = 0; w < writers; w++) {
+                        int writer = w;
+                        futures.add(executor.submit(() -> {
+                            Random random = new Random(writer);
+                            ready.countDown();
+                            go.await();
+                            for (int i = 0; i < perWriter; i++) {
+                                String patientId = patientIds[(i / 20 * writerCount + writer) % patientCount];
+                                prs.addMeasurementObservation(patientId, typeCodes[random.nextInt(typeCodes.length)], random.nextInt(1000) / 10.0);
+                            }
+                            return null;
+                        }));
+                    }
+                    ready.await();
+                    long start = System.nanoTime();
+                    go.countDown();
+                    for (Future<?> future : futures) {
+                        future.get();
+                    }
+                    best = Math.min(best, System.nanoTime() - start);
+                } finally {
+                    executor.shutdown();
+                    deleteDirectory(dataDirectory);
+                }
+            }
+            int rows = observations / writers * writers;
+            double rate = rows / (best / 1e9);
+            if (writers == 1) {
+                singleWriterRate = rate;
+            }
+            System.out.printf("%d writers %8d ms %12.0f rows/s speedup %4.2f%n", writers, best / 1_000_000, rate, rate / singleWriterRate);
+        }
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static PatientRecordSystem createIngestionTarget(Path dataDirectory, String[] patientIds, String[] typeCodes, boolean journal) throws Exception {
+        PatientRecordSystem prs = new PatientRecordSystem(dataDirectory);
+        for (String code : typeCodes) {
+            prs.addMeasurementObservationType(code, "Measurement " + code, "unit");
+        }
+        for (String id : patientIds) {
+            prs.addPatient(id, "Patient " + id);
+        }
+        if (journal) {
+            prs.enableJournal();
+        }
+        return prs;
+    }
+
+    public static void deleteDirectory(Path directory) throws Exception {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                if (Files.isDirectory(file)) {
+                    deleteDirectory(file);
+                } else {
+                    Files.delete(file);
+                }
+            }
+        }
+        Files.delete(directory);
+    }
+}
@@ -0,0 +1,354 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+// Writes a synthetic data set of production size in the PRS-*.txt format, for sizing hardware
+// and for PatientRecordSystemLoadDriver. Patients are picked from a Zipf distribution, so a few
+// patients have most observations as in real records, and every measurement type draws its
+// values from its own distribution. The same options and seed always give the same files.
+//
+// Usage: PatientRecordSystemDataGenerator [--dir generated-data] [--patients 100000]
+//            [--measurement-types 10] [--category-types 3] [--observations 10000000]
+//            [--category-ratio 0.1] [--zipf 0.9] [--seed 42] [--format text|binary|paged]
+// The text files are written as they are generated, so any size fits in memory. The binary
+// and paged formats are saved by loading the text files into a PatientRecordSystem first.
+public class PatientRecordSystemDataGenerator {
+    // Observation timestamps are spread over the year before this
+    private static final long END_MILLIS = 1_735_689_600_000L;
+    private static final long SPAN_MILLIS = 365L * 24 * 60 * 60 * 1000;
+
+    // Value distribution of one measurement type
+    private static final class MeasurementProfile {
+        final String name;
+        final String unit;
+        final double mean;
+        final double standardDeviation;
+        // Log-normal values are always positive and skewed to the right, like lab results
+        final boolean logNormal;
+
+        MeasurementProfile(String name, String unit, double mean, double standardDeviation, boolean logNormal) {
+            this.name = name;
+            this.unit = unit;
+            this.mean = mean;
+            this.standardDeviation = standardDeviation;
+            this.logNormal = logNormal;
+        }
+
+        double sample(Random random) {
+            double value;
+            if (logNormal) {
+                // mean and standardDeviation are those of the value's logarithm
+                value = Math.exp(mean + random.nextGaussian() * standardDeviation);
+            } else {
+                value = Math.max(0, mean + random.nextGaussian() * standardDeviation);
+            }
+            return Math.round(value * 10) / 10.0;
+        }
+    }
+
+    // Categories of one category type, with how often each is observed
+    private static final class CategoryProfile {
+        final String name;
+        final List<String> categories;
+        final double[] cumulativeWeights;
+
+        CategoryProfile(String name, String[] categories, double[] weights) {
+            this.name = name;
+            this.categories = Arrays.asList(categories);
+            cumulativeWeights = new double[weights.length];
+            double total = 0;
+            for (int i = 0; i < weights.length; i++) {
+                total += weights[i];
+                cumulativeWeights[i] = total;
+            }
+            for (int i = 0; i < weights.length; i++) {
+                cumulativeWeights[i] /= total;
+            }
+        }
+
+        String sample(Random random) {
+            double u = random.nextDouble();
+            for (int i = 0; i < cumulativeWeights.length - 1; i++) {
+                if (u < cumulativeWeights[i]) {
+                    return categories.get(i);
+                }
+            }
+            return categories.get(categories.size() - 1);
+        }
+    }
+
+    private static final MeasurementProfile[] MEASUREMENT_PROFILES = {
+            new MeasurementProfile("heart rate", "bpm", 75, 12, false),
+            new MeasurementProfile("systolic blood pressure", "mmHg", 122, 16, false),
+            new MeasurementProfile("diastolic blood pressure", "mmHg", 79, 10, false),
+            new MeasurementProfile("body temperature", "C", 36.8, 0.4, false),
+            new MeasurementProfile("body weight", "kg", 76, 16, false),
+            new MeasurementProfile("blood glucose", "mmol/L", Math.log(5.4), 0.25, true),
+            new MeasurementProfile("total cholesterol", "mmol/L", Math.log(5.0), 0.2, true),
+            new MeasurementProfile("C-reactive protein", "mg/L", Math.log(3), 1.0, true),
+            new MeasurementProfile("respiratory rate", "breaths/min", 16, 3, false),
+            new MeasurementProfile("oxygen saturation", "%", 97, 1.5, false),
+    };
+
+    private static final CategoryProfile[] CATEGORY_PROFILES = {
+            new CategoryProfile("blood type", new String[]{"O+", "A+", "B+", "AB+", "O-", "A-", "B-", "AB-"},
+                    new double[]{38, 34, 9, 3, 7, 6, 2, 1}),
+            new CategoryProfile("smoking status", new String[]{"never", "former", "current"},
+                    new double[]{60, 25, 15}),
+            new CategoryProfile("mobility", new String[]{"independent", "assisted", "bedridden"},
+                    new double[]{80, 15, 5}),
+            new CategoryProfile("diet", new String[]{"regular", "diabetic", "low sodium", "vegetarian"},
+                    new double[]{70, 12, 10, 8}),
+    };
+
+    private static final String[] FIRST_NAMES = {"Alex", "Sam", "Maria", "John", "Wei", "Fatima", "Olga", "Carlos",
+            "Aisha", "Kenji", "Emma", "Noah", "Priya", "Lucas", "Zoe", "Omar"};
+    private static final String[] LAST_NAMES = {"Smith", "Garcia", "Chen", "Khan", "Ivanova", "Silva", "Nguyen",
+            "Muller", "Okafor", "Tanaka", "Brown", "Rossi", "Patel", "Novak", "Cohen", "Jensen"};
+
+    private Path dataDirectory = Paths.get("generated-data");
+    private int patients = 100_000;
+    private int measurementTypes = 10;
+    private int categoryTypes = 3;
+    private long observations = 10_000_000;
+    private double categoryRatio = 0.1;
+    private double zipfExponent = 0.9;
+    private long seed = 42;
+    private SnapshotFormat format = SnapshotFormat.TEXT;
+
+    public PatientRecordSystemDataGenerator() {
+    }
+
+    // The other options keep their defaults, for benchmarks that need files of a given size
+    public PatientRecordSystemDataGenerator(Path dataDirectory, int patients, long observations) {
+        this.dataDirectory = dataDirectory;
+        this.patients = patients;
+        this.observations = observations;
+    }
+
+    public static void main(String[] args) throws Exception {
+        PatientRecordSystemDataGenerator generator = new PatientRecordSystemDataGenerator();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--dir":
+                    generator.dataDirectory = Paths.get(args[i + 1]);
+                    break;
+                case "--patients":
+                    generator.patients = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--measurement-types":
+                    generator.measurementTypes = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--category-types":
+                    generator.categoryTypes = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--observations":
+                    generator.observations = Long.parseLong(args[i + 1]);
+                    break;
+                case "--category-ratio":
+                    generator.categoryRatio = Double.parseDouble(args[i + 1]);
+                    break;
+                case "--zipf":
+                    generator.zipfExponent = Double.parseDouble(args[i + 1]);
+                    break;
+                case "--seed":
+                    generator.seed = Long.parseLong(args[i + 1]);
+                    break;
+                case "--format":
+                    generator.format = SnapshotFormat.valueOf(args[i + 1].toUpperCase());
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        long start = System.nanoTime();
+        generator.generate();
+        System.out.printf("Generated %d patients and %d observations in %s in %.1f s%n", generator.patients,
+                generator.observations, generator.dataDirectory, (System.nanoTime() - start) / 1e9);
+    }
+
+    public void generate() throws Exception {
+        if (patients < 1 || measurementTypes < 1 || categoryTypes < 0 || observations < 0) {
+            throw new IllegalArgumentException("Need at least one patient and one measurement type");
+        }
+        if (categoryTypes > 0 && categoryRatio < 0) {
+            throw new IllegalArgumentException("Category ratio must not be negative: " + categoryRatio);
+        }
+        Files.createDirectories(dataDirectory);
+        Random random = new Random(seed);
+        writeTypes();
+        writePatients(random);
+        writeObservations(random);
+        if (format != SnapshotFormat.TEXT) {
+            PatientRecordSystem prs = new PatientRecordSystem(dataDirectory);
+            prs.loadData(LoadMode.PARALLEL);
+            prs.saveData(format);
+        }
+    }
+
+    private void writeTypes() throws IOException {
+        try (PrintWriter writer = openFile("PRS-MeasurementObservationTypes.txt")) {
+            for (int i = 0; i < measurementTypes; i++) {
+                MeasurementProfile profile = measurementProfile(i);
+                writer.println(measurementCode(i) + ";" + profile.name + (i < MEASUREMENT_PROFILES.length ? "" : " " + i) + ";" + profile.unit);
+            }
+        }
+        try (PrintWriter writer = openFile("PRS-CategoryObservationTypes.txt")) {
+            for (int i = 0; i < categoryTypes; i++) {
+                CategoryProfile profile = CATEGORY_PROFILES[i % CATEGORY_PROFILES.length];
+                writer.print(categoryCode(i) + ";" + profile.name + (i < CATEGORY_PROFILES.length ? "" : " " + i) + ";");
+                for (String category : profile.categories) {
+                    writer.print(category + ",");
+                }
+                writer.println();
+            }
+        }
+    }
+
+    private void writePatients(Random random) throws IOException {
+        try (PrintWriter writer = openFile("PRS-Patients.txt")) {
+            for (int i = 0; i < patients; i++) {
+                writer.println(patientId(i) + ";" + FIRST_NAMES[random.nextInt(FIRST_NAMES.length)] + " "
+                        + LAST_NAMES[random.nextInt(LAST_NAMES.length)]);
+            }
+        }
+    }
+
+    private void writeObservations(Random random) throws IOException {
+        ZipfDistribution patientRanks = new ZipfDistribution(patients, zipfExponent);
+        // Some measurement types, like heart rate, are taken far more often than others
+        ZipfDistribution measurementRanks = new ZipfDistribution(measurementTypes, 0.8);
+        PatientPermutation permutation = new PatientPermutation(patients);
+        try (PrintWriter measurements = openFile("PRS-MeasurementObservations.txt");
+             PrintWriter categories = openFile("PRS-CategoryObservations.txt")) {
+            StringBuilder line = new StringBuilder();
+            for (long i = 0; i < observations; i++) {
+                String patientId = patientId(permutation.map(patientRanks.sample(random)));
+                int type = measurementRanks.sample(random);
+                // Timestamps grow with the row, as they do when observations are added live
+                long recordedAt = END_MILLIS - SPAN_MILLIS + (long) ((double) i / Math.max(1, observations) * SPAN_MILLIS);
+                line.setLength(0);
+                line.append(patientId).append(';').append(measurementCode(type)).append(';')
+                        .append(measurementProfile(type).sample(random)).append(';').append(recordedAt);
+                measurements.println(line);
+                if (categoryTypes > 0 && random.nextDouble() < categoryRatio) {
+                    int categoryType = random.nextInt(categoryTypes);
+                    categories.println(patientId + ";" + categoryCode(categoryType) + ";"
+                            + CATEGORY_PROFILES[categoryType % CATEGORY_PROFILES.length].sample(random));
+                }
+            }
+        }
+    }
+
+    private PrintWriter openFile(String name) throws IOException {
+        return new PrintWriter(new BufferedWriter(new OutputStreamWriter(
+                Files.newOutputStream(dataDirectory.resolve(name)), StandardCharsets.UTF_8), 1 << 16));
+    }
+
+    private static MeasurementProfile measurementProfile(int type) {
+        return MEASUREMENT_PROFILES[type % MEASUREMENT_PROFILES.length];
+    }
+
+    static String measurementCode(int type) {
+        return "M" + type;
+    }
+
+    static String categoryCode(int type) {
+        return "C" + type;
+    }
+
+    static String patientId(int ordinal) {
+        return "P" + ordinal;
+    }
+}
+
+// Zipf distribution over the ranks 0 to n - 1: rank k is drawn with probability proportional
+// to 1 / (k + 1)^exponent. Sampled by rejection-inversion (Hormann and Derflinger, 1996), so it
+// takes constant time and memory however large n is.
+class ZipfDistribution {
+    private final int n;
+    private final double exponent;
+    private final double hIntegralX1;
+    private final double hIntegralN;
+    private final double s;
+
+    public ZipfDistribution(int n, double exponent) {
+        if (n < 1) {
+            throw new IllegalArgumentException("Zipf distribution needs at least one rank: " + n);
+        }
+        if (exponent < 0) {
+            throw new IllegalArgumentException("Zipf exponent must not be negative: " + exponent);
+        }
+        this.n = n;
+        this.exponent = exponent;
+        hIntegralX1 = hIntegral(1.5) - 1;
+        hIntegralN = hIntegral(n + 0.5);
+        s = 2 - hIntegralInverse(hIntegral(2.5) - h(2));
+    }
+
+    public int sample(Random random) {
+        while (true) {
+            double u = hIntegralN + random.nextDouble() * (hIntegralX1 - hIntegralN);
+            double x = hIntegralInverse(u);
+            int k = (int) (x + 0.5);
+            if (k < 1) {
+                k = 1;
+            } else if (k > n) {
+                k = n;
+            }
+            if (k - x <= s || u >= hIntegral(k + 0.5) - h(k)) {
+                return k - 1;
+            }
+        }
+    }
+
+    // h(x) = 1 / x^exponent and its integral, shifted so it is continuous at exponent 1
+    private double h(double x) {
+        return Math.exp(-exponent * Math.log(x));
+    }
+
+    private double hIntegral(double x) {
+        double logX = Math.log(x);
+        return expm1Ratio((1 - exponent) * logX) * logX;
+    }
+
+    private double hIntegralInverse(double x) {
+        double t = Math.max(-1, x * (1 - exponent));
+        return Math.exp(log1pRatio(t) * x);
+    }
+
+    // log(1 + x) / x and (e^x - 1) / x, by their Taylor series near 0
+    private static double log1pRatio(double x) {
+        return Math.abs(x) > 1e-8 ? Math.log1p(x) / x : 1 - x * (0.5 - x * (1.0 / 3 - 0.25 * x));
+    }
+
+    private static double expm1Ratio(double x) {
+        return Math.abs(x) > 1e-8 ? Math.expm1(x) / x : 1 + x * 0.5 * (1 + x / 3 * (1 + 0.25 * x));
+    }
+}
+
+// Maps Zipf ranks to patient ordinals, so the busiest patients are spread over the whole id
+// range instead of being the first ones added. Multiplying by a number coprime to n is a
+// permutation of 0 to n - 1.
+class PatientPermutation {
+    private final long n;
+    private final long multiplier;
+
+    public PatientPermutation(int n) {
+        this.n = n;
+        long candidate = 0x9E3779B1L % n;
+        while (n > 1 && gcd(Math.max(1, candidate), n) != 1) {
+            candidate++;
+        }
+        multiplier = Math.max(1, candidate);
+    }
+
+    public int map(int rank) {
+        return (int) (rank * multiplier % n);
+    }
+
+    private static long gcd(long a, long b) {
+        return b == 0 ? a : gcd(b, a % b);
+    }
+}
@@ -0,0 +1,276 @@
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+
+// Replays a mixed read and write workload against a PatientRecordSystem at a target rate and
+// reports the throughput and latency percentiles of every operation, for sizing hardware with
+// data from PatientRecordSystemDataGenerator.
+//
+// The load is open: operation i is due at start + i / rate whether or not earlier operations
+// have finished, and its latency is measured from when it was due. A stalled system therefore
+// shows up as high latency for every operation that had to wait, as users would see it,
+// instead of lowering the rate (coordinated omission).
+//
+// Usage: PatientRecordSystemLoadDriver [--dir generated-data] [--format text|binary|paged]
+//            [--rate 10000] [--duration 30] [--warmup 5] [--threads 8] [--zipf 0.9] [--seed 7]
+//            [--mix record=50,rendered=20,find=2,measurement=25,category=3]
+// --rate is in operations per second and --duration and --warmup are in seconds.
+public class PatientRecordSystemLoadDriver {
+    enum OperationType {
+        RECORD("getPatientRecord"),
+        RENDERED("getRenderedPatientRecord"),
+        FIND("findPatients"),
+        MEASUREMENT("addMeasurementObservation"),
+        CATEGORY("addCategoryObservation");
+
+        final String label;
+
+        OperationType(String label) {
+            this.label = label;
+        }
+    }
+
+    private Path dataDirectory = Paths.get("generated-data");
+    private SnapshotFormat format = SnapshotFormat.TEXT;
+    private double rate = 10_000;
+    private long durationSeconds = 30;
+    private long warmupSeconds = 5;
+    private int threads = 8;
+    private double zipfExponent = 0.9;
+    private long seed = 7;
+    private final EnumMap<OperationType, Integer> mix = new EnumMap<>(OperationType.class);
+
+    private PatientRecordSystem prs;
+    private List<Patient> patients;
+    private List<MeasurementObservationType> measurementTypes;
+    private List<CategoryObservationType> categoryTypes;
+    private ZipfDistribution patientRanks;
+    private PatientPermutation permutation;
+    // The operation type of each of the 100 slots of the mix
+    private final OperationType[] schedule = new OperationType[100];
+
+    private final EnumMap<OperationType, LatencyHistogram> latencies = new EnumMap<>(OperationType.class);
+    private final EnumMap<OperationType, LongAdder> errors = new EnumMap<>(OperationType.class);
+    // Operations that were due before the end but never started, because the system could not
+    // keep up with the rate
+    private long notStarted;
+    // Written by every read, so the JIT has to compute the results
+    private volatile long sink;
+
+    public PatientRecordSystemLoadDriver() {
+        mix.put(OperationType.RECORD, 50);
+        mix.put(OperationType.RENDERED, 20);
+        mix.put(OperationType.FIND, 2);
+        mix.put(OperationType.MEASUREMENT, 25);
+        mix.put(OperationType.CATEGORY, 3);
+    }
+
+    public static void main(String[] args) throws Exception {
+        PatientRecordSystemLoadDriver driver = new PatientRecordSystemLoadDriver();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--dir":
+                    driver.dataDirectory = Paths.get(args[i + 1]);
+                    break;
+                case "--format":
+                    driver.format = SnapshotFormat.valueOf(args[i + 1].toUpperCase());
+                    break;
+                case "--rate":
+                    driver.rate = Double.parseDouble(args[i + 1]);
+                    break;
+                case "--duration":
+                    driver.durationSeconds = Long.parseLong(args[i + 1]);
+                    break;
+                case "--warmup":
+                    driver.warmupSeconds = Long.parseLong(args[i + 1]);
+                    break;
+                case "--threads":
+                    driver.threads = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--zipf":
+                    driver.zipfExponent = Double.parseDouble(args[i + 1]);
+                    break;
+                case "--seed":
+                    driver.seed = Long.parseLong(args[i + 1]);
+                    break;
+                case "--mix":
+                    driver.parseMix(args[i + 1]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        driver.load();
+        driver.run();
+        System.out.print(driver.report());
+    }
+
+    // Weights of the operations as name=weight pairs; operations left out are not run
+    private void parseMix(String value) {
+        mix.clear();
+        for (String entry : value.split(",")) {
+            String[] parts = entry.split("=");
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("Mix entries are name=weight: " + entry);
+            }
+            mix.put(OperationType.valueOf(parts[0].trim().toUpperCase()), Integer.parseInt(parts[1].trim()));
+        }
+    }
+
+    public void load() throws Exception {
+        prs = new PatientRecordSystem(dataDirectory);
+        long start = System.nanoTime();
+        if (format == SnapshotFormat.TEXT) {
+            prs.loadData(LoadMode.PARALLEL);
+        } else {
+            prs.loadData(format);
+        }
+        patients = prs.getPatients();
+        measurementTypes = prs.getMeasurementObservationTypes();
+        categoryTypes = prs.getCategoryObservationTypes();
+        if (patients.isEmpty() || measurementTypes.isEmpty()) {
+            throw new IllegalStateException("No patients or measurement types in " + dataDirectory);
+        }
+        System.out.printf("Loaded %d patients from %s in %.1f s%n", patients.size(), dataDirectory, (System.nanoTime() - start) / 1e9);
+    }
+
+    public void run() throws Exception {
+        buildSchedule();
+        patientRanks = new ZipfDistribution(patients.size(), zipfExponent);
+        permutation = new PatientPermutation(patients.size());
+        for (OperationType type : OperationType.values()) {
+            latencies.put(type, new LatencyHistogram());
+            errors.put(type, new LongAdder());
+        }
+        long intervalNanos = (long) (1e9 / rate);
+        long start = System.nanoTime() + 10_000_000;
+        long measureFrom = start + warmupSeconds * 1_000_000_000L;
+        long end = measureFrom + durationSeconds * 1_000_000_000L;
+        AtomicLong nextOperation = new AtomicLong();
+        LongAdder started = new LongAdder();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            long workerSeed = seed + t;
+            workers.add(executor.submit(() -> {
+                Random random = new Random(workerSeed);
+                while (true) {
+                    long operation = nextOperation.getAndIncrement();
+                    long due = start + operation * intervalNanos;
+                    if (due >= end) {
+                        return null;
+                    }
+                    if (System.nanoTime() >= end) {
+                        // Overloaded: the operations still due are reported as not started
+                        // rather than run past the end of the test
+                        return null;
+                    }
+                    started.increment();
+                    long wait = due - System.nanoTime();
+                    if (wait > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+                    OperationType type = schedule[(int) (operation % schedule.length)];
+                    try {
+                        sink = execute(type, random);
+                    } catch (Exception e) {
+                        errors.get(type).increment();
+                    }
+                    if (due >= measureFrom) {
+                        latencies.get(type).record(System.nanoTime() - due);
+                    }
+                }
+            }));
+        }
+        for (Future<?> worker : workers) {
+            worker.get();
+        }
+        executor.shutdown();
+        notStarted = (end - start + intervalNanos - 1) / intervalNanos - started.sum();
+    }
+
+    // Spreads the weights of the mix over the 100 slots, interleaved rather than in runs, so
+    // any stretch of operations has about the mix's proportions
+    private void buildSchedule() {
+        int total = mix.values().stream().mapToInt(Integer::intValue).sum();
+        if (total <= 0) {
+            throw new IllegalArgumentException("The operation mix is empty");
+        }
+        if (categoryTypes.isEmpty() && mix.getOrDefault(OperationType.CATEGORY, 0) > 0) {
+            throw new IllegalArgumentException("The data has no category types for the category operation");
+        }
+        double[] credit = new double[OperationType.values().length];
+        for (int slot = 0; slot < schedule.length; slot++) {
+            OperationType best = null;
+            for (OperationType type : mix.keySet()) {
+                credit[type.ordinal()] += (double) mix.get(type) / total;
+                if (best == null || credit[type.ordinal()] > credit[best.ordinal()]) {
+                    best = type;
+                }
+            }
+            credit[best.ordinal()] -= 1;
+            schedule[slot] = best;
+        }
+    }
+
+    private long execute(OperationType type, Random random) throws Exception {
+        switch (type) {
+            case RECORD:
+                return prs.getPatientRecord(nextPatient(random)).getMeasurementObservations().size();
+            case RENDERED:
+                return prs.getRenderedPatientRecord(nextPatient(random)).length();
+            case FIND: {
+                // The top percent of one type's values, as when looking for abnormal results
+                MeasurementObservationType measurementType = measurementTypes.get(random.nextInt(measurementTypes.size()));
+                MeasurementStatistics statistics = prs.getMeasurementStatistics(measurementType.getCode());
+                double threshold = statistics.getCount() == 0 ? 0 : statistics.getQuantile(0.99);
+                return prs.findPatients(new PatientQuery().measurementAbove(measurementType.getCode(), threshold)).size();
+            }
+            case MEASUREMENT: {
+                MeasurementObservationType measurementType = measurementTypes.get(random.nextInt(measurementTypes.size()));
+                MeasurementStatistics statistics = prs.getMeasurementStatistics(measurementType.getCode());
+                double value = statistics.getCount() < 2 ? random.nextInt(1000) / 10.0
+                        : Math.round((statistics.getMean() + random.nextGaussian() * statistics.getStandardDeviation()) * 10) / 10.0;
+                prs.addMeasurementObservation(nextPatient(random), measurementType.getCode(), value, System.currentTimeMillis());
+                return 1;
+            }
+            case CATEGORY: {
+                CategoryObservationType categoryType = categoryTypes.get(random.nextInt(categoryTypes.size()));
+                List<String> categories = categoryType.getCategories();
+                prs.addCategoryObservation(nextPatient(random), categoryType.getCode(), categories.get(random.nextInt(categories.size())));
+                return 1;
+            }
+            default:
+                throw new IllegalStateException("Unknown operation " + type);
+        }
+    }
+
+    private String nextPatient(Random random) {
+        return patients.get(permutation.map(patientRanks.sample(random))).getId();
+    }
+
+    public String report() {
+        StringBuilder text = new StringBuilder();
+        text.append(String.format("Target rate %.0f ops/s for %d s after %d s warmup, %d threads%n", rate, durationSeconds, warmupSeconds, threads));
+        text.append(String.format("%-28s %10s %10s %10s %10s %10s %10s %10s %10s %8s%n", "Operation (latency in us)",
+                "count", "ops/s", "mean", "p50", "p90", "p99", "p99.9", "max", "errors"));
+        long total = 0;
+        for (OperationType type : mix.keySet()) {
+            LatencyHistogram histogram = latencies.get(type);
+            total += histogram.getCount();
+            text.append(String.format("%-28s %10d %10.0f %10.1f", type.label, histogram.getCount(),
+                    histogram.getCount() / (double) durationSeconds, histogram.getMean() / 1e3));
+            for (double percentile : new double[]{0.5, 0.9, 0.99, 0.999}) {
+                text.append(String.format(" %10.1f", histogram.getPercentile(percentile) / 1e3));
+            }
+            text.append(String.format(" %10.1f %8d%n", histogram.getMax() / 1e3, errors.get(type).sum()));
+        }
+        text.append(String.format("%-28s %10d %10.0f%n", "total", total, total / (double) durationSeconds));
+        if (notStarted > 0) {
+            text.append(String.format("%d operations were not started: the system did not keep up with the rate%n", notStarted));
+        }
+        return text.toString();
+    }
+}
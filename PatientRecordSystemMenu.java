@@ -1,17 +1,28 @@
 import java.util.*;
+import java.util.concurrent.*;
 
 public class PatientRecordSystemMenu {
     private PatientRecordSystem prs;
     private Scanner scanner;
+    // The latest background save, awaited before exiting. Its outcome is printed by the menu
+    // thread before the next prompt, so it never lands in the middle of one.
+    private CompletableFuture<Void> lastSave = CompletableFuture.completedFuture(null);
+    private boolean saveReported = true;
 
     public PatientRecordSystemMenu() {
         prs = new PatientRecordSystem();
         scanner = new Scanner(System.in);
+        try {
+            prs.getMetrics().registerMBean("menu");
+        } catch (Exception e) {
+            System.out.println("Metrics are not available over JMX: " + e.getMessage());
+        }
     }
 
     public void run() {
         String option;
         do {
+            reportSave();
             displayMenu();
             option = scanner.nextLine().trim().toUpperCase();
             switch (option) {
@@ -45,8 +56,15 @@ public class PatientRecordSystemMenu {
                 case "D":
                     displayAllData();
                     break;
+                case "M":
+                    System.out.print(prs.getMetrics().dump());
+                    break;
                 case "X":
                     System.out.println("Exiting...");
+                    if (!lastSave.isDone()) {
+                        System.out.println("Waiting for the background save to finish...");
+                    }
+                    awaitSave();
                     break;
                 default:
                     System.out.println("Invalid option. Please try again.");
@@ -68,8 +86,9 @@ public class PatientRecordSystemMenu {
         System.out.println("8. Save data");
         System.out.println("9. Load data");
         System.out.println("D. Display all data for inspection");
+        System.out.println("M. Display metrics");
         System.out.println("X. Exit");
-        System.out.print("Please enter an option (1-9 or D or X): ");
+        System.out.print("Please enter an option (1-9, D, M or X): ");
     }
 
     private void addMeasurementObservationType() {
@@ -149,9 +168,7 @@ public class PatientRecordSystemMenu {
         System.out.print("Enter observation type code: ");
         String code = scanner.nextLine();
         // Display observation type details
-        MeasurementObservationType measurementType = prs.getMeasurementObservationTypes().stream()
-                .filter(type -> type.getCode().equals(code))
-                .findFirst().orElse(null);
+        MeasurementObservationType measurementType = prs.getMeasurementObservationType(code);
         if (measurementType != null) {
             System.out.println("Measurement Observation Type:");
             System.out.println("Code: " + measurementType.getCode());
@@ -159,9 +176,7 @@ public class PatientRecordSystemMenu {
             System.out.println("Unit: " + measurementType.getUnit());
             return;
         }
-        CategoryObservationType categoryType = prs.getCategoryObservationTypes().stream()
-                .filter(type -> type.getCode().equals(code))
-                .findFirst().orElse(null);
+        CategoryObservationType categoryType = prs.getCategoryObservationType(code);
         if (categoryType != null) {
             System.out.println("Category Observation Type:");
             System.out.println("Code: " + categoryType.getCode());
@@ -176,40 +191,47 @@ public class PatientRecordSystemMenu {
         System.out.print("Enter patient ID: ");
         String patientId = scanner.nextLine();
         // Display patient record
-        Patient patient = prs.getPatients().stream()
-                .filter(p -> p.getId().equals(patientId))
-                .findFirst().orElse(null);
-        if (patient != null) {
-            System.out.println("Patient Record:");
-            System.out.println("ID: " + patient.getId());
-            System.out.println("Name: " + patient.getName());
-            System.out.println("Measurement Observations:");
-            prs.getMeasurementObservations().stream()
-                    .filter(observation -> observation.getPatient().getId().equals(patientId))
-                    .forEach(observation -> {
-                        System.out.println("Type: " + observation.getObservationType().getName() + ", Value: " + observation.getValue());
-                    });
-            System.out.println("Category Observations:");
-            prs.getCategoryObservations().stream()
-                    .filter(observation -> observation.getPatient().getId().equals(patientId))
-                    .forEach(observation -> {
-                        System.out.println("Type: " + observation.getObservationType().getName() + ", Category: " + observation.getCategory());
-                    });
+        String record = prs.getRenderedPatientRecord(patientId);
+        if (record != null) {
+            System.out.print(record);
             return;
         }
         System.out.println("Patient not found.");
     }
 
+    // Saves in the background, so the menu can be used while the files are written
     private void saveData() {
+        System.out.println("Saving data in the background.");
+        lastSave = prs.saveDataAsync();
+        saveReported = false;
+    }
+
+    // Prints the outcome of the latest save once it has finished
+    private void reportSave() {
+        if (saveReported || !lastSave.isDone()) {
+            return;
+        }
+        saveReported = true;
         try {
-            prs.saveData();
+            lastSave.join();
             System.out.println("Data saved successfully.");
-        } catch (Exception e) {
-            System.out.println("Error saving data: " + e.getMessage());
+        } catch (CompletionException e) {
+            System.out.println("Error saving data: " + e.getCause().getMessage());
+        }
+    }
+
+    private void awaitSave() {
+        try {
+            lastSave.join();
+        } catch (CompletionException e) {
+            // Reported below
         }
+        reportSave();
     }
 
     private void loadData() {
+        // Loading waits for the save anyway; its outcome goes before the load's
+        awaitSave();
         try {
             prs.loadData();
             System.out.println("Data loaded successfully.");
@@ -0,0 +1,325 @@
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import javax.management.*;
+
+// Operation counts, error counts, latency histograms and data file I/O of one
+// PatientRecordSystem. Recording an operation or error only increments counters, so it
+// allocates nothing. The values can be read as text with dump() and over JMX once
+// registerMBean has been called; attribute names are listed in getMBeanInfo.
+class PatientRecordSystemMetrics implements DynamicMBean {
+    enum Operation {
+        ADD_MEASUREMENT_OBSERVATION_TYPE,
+        ADD_CATEGORY_OBSERVATION_TYPE,
+        ADD_PATIENT,
+        ADD_MEASUREMENT_OBSERVATION,
+        ADD_CATEGORY_OBSERVATION,
+        ADD_OBSERVATIONS,
+        GET_PATIENT_RECORD,
+        FIND_PATIENTS,
+        SAVE_DATA,
+        CHECKPOINT,
+        LOAD_DATA
+    }
+
+    enum ErrorType {
+        INVALID_PATIENT_OR_TYPE,
+        INVALID_CATEGORY,
+        DUPLICATE_KEY,
+        SAVE_FAILED,
+        LOAD_FAILED
+    }
+
+    // Bytes, rows and time spent reading or writing one data file
+    static final class FileStatistics {
+        final LongAdder operations = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+        final LongAdder rows = new LongAdder();
+        final LongAdder nanos = new LongAdder();
+
+        double rowsPerSecond() {
+            long elapsed = nanos.sum();
+            return elapsed == 0 ? 0 : rows.sum() / (elapsed / 1e9);
+        }
+    }
+
+    private static final double[] PERCENTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final LatencyHistogram[] latencies;
+    private final LongAdder[] errors;
+    private final ConcurrentMap<String, FileStatistics> reads = new ConcurrentSkipListMap<>();
+    private final ConcurrentMap<String, FileStatistics> writes = new ConcurrentSkipListMap<>();
+    private ObjectName registeredName;
+
+    public PatientRecordSystemMetrics() {
+        latencies = new LatencyHistogram[Operation.values().length];
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = new LatencyHistogram();
+        }
+        errors = new LongAdder[ErrorType.values().length];
+        for (int i = 0; i < errors.length; i++) {
+            errors[i] = new LongAdder();
+        }
+    }
+
+    // Records one operation that started at startNanos (System.nanoTime)
+    public void recordOperation(Operation operation, long startNanos) {
+        latencies[operation.ordinal()].record(System.nanoTime() - startNanos);
+    }
+
+    public void recordError(ErrorType error) {
+        errors[error.ordinal()].increment();
+    }
+
+    public void recordRead(String file, long bytes, long rows, long nanos) {
+        record(reads, file, bytes, rows, nanos);
+    }
+
+    public void recordWrite(String file, long bytes, long rows, long nanos) {
+        record(writes, file, bytes, rows, nanos);
+    }
+
+    private static void record(ConcurrentMap<String, FileStatistics> files, String file, long bytes, long rows, long nanos) {
+        FileStatistics statistics = files.computeIfAbsent(file, name -> new FileStatistics());
+        statistics.operations.increment();
+        statistics.bytes.add(bytes);
+        statistics.rows.add(rows);
+        statistics.nanos.add(nanos);
+    }
+
+    // Getters
+    public LatencyHistogram getLatency(Operation operation) {
+        return latencies[operation.ordinal()];
+    }
+
+    public long getErrorCount(ErrorType error) {
+        return errors[error.ordinal()].sum();
+    }
+
+    public FileStatistics getReadStatistics(String file) {
+        return reads.get(file);
+    }
+
+    public FileStatistics getWriteStatistics(String file) {
+        return writes.get(file);
+    }
+
+    // Every value as text, one line per operation, error and file
+    public String dump() {
+        StringBuilder text = new StringBuilder();
+        text.append(String.format("%-42s %10s %10s %10s %10s %10s %10s %10s%n", "Operation (latency in us)", "count", "mean", "p50", "p90", "p99", "p99.9", "max"));
+        for (Operation operation : Operation.values()) {
+            LatencyHistogram histogram = latencies[operation.ordinal()];
+            text.append(String.format("%-42s %10d %10.1f", attributeName(operation.name()), histogram.getCount(), histogram.getMean() / 1e3));
+            for (double percentile : PERCENTILES) {
+                text.append(String.format(" %10.1f", histogram.getPercentile(percentile) / 1e3));
+            }
+            text.append(String.format(" %10.1f%n", histogram.getMax() / 1e3));
+        }
+        text.append(String.format("%-42s %10s%n", "Errors", "count"));
+        for (ErrorType error : ErrorType.values()) {
+            text.append(String.format("%-42s %10d%n", attributeName(error.name()), getErrorCount(error)));
+        }
+        text.append(String.format("%-42s %10s %14s %14s %14s%n", "Data files", "count", "bytes", "rows", "rows/s"));
+        appendFiles(text, "read ", reads);
+        appendFiles(text, "write ", writes);
+        return text.toString();
+    }
+
+    private static void appendFiles(StringBuilder text, String prefix, Map<String, FileStatistics> files) {
+        for (Map.Entry<String, FileStatistics> entry : files.entrySet()) {
+            FileStatistics statistics = entry.getValue();
+            text.append(String.format("%-42s %10d %14d %14d %14.0f%n", prefix + entry.getKey(), statistics.operations.sum(),
+                    statistics.bytes.sum(), statistics.rows.sum(), statistics.rowsPerSecond()));
+        }
+    }
+
+    // ADD_PATIENT becomes addPatient
+    private static String attributeName(String constant) {
+        StringBuilder name = new StringBuilder();
+        for (String word : constant.toLowerCase().split("_")) {
+            name.append(name.length() == 0 ? word : Character.toUpperCase(word.charAt(0)) + word.substring(1));
+        }
+        return name.toString();
+    }
+
+    // Registers the metrics with the platform MBean server as
+    // PatientRecordSystem:type=Metrics,name=<name>
+    public synchronized void registerMBean(String name) throws JMException {
+        unregisterMBean();
+        ObjectName objectName = new ObjectName("PatientRecordSystem:type=Metrics,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        registeredName = objectName;
+    }
+
+    public synchronized void unregisterMBean() throws JMException {
+        if (registeredName != null) {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredName);
+            registeredName = null;
+        }
+    }
+
+    // JMX attributes: <operation>Count, <operation>MeanMicros, <operation>P50Micros, P90,
+    // P99, P999 and MaxMicros, <error>Errors, and per data file
+    // read.<file>.Bytes, Rows and RowsPerSecond (and the same for write.<file>)
+    private Map<String, Object> attributes() {
+        Map<String, Object> values = new LinkedHashMap<>();
+        for (Operation operation : Operation.values()) {
+            String name = attributeName(operation.name());
+            LatencyHistogram histogram = latencies[operation.ordinal()];
+            values.put(name + "Count", histogram.getCount());
+            values.put(name + "MeanMicros", histogram.getMean() / 1e3);
+            values.put(name + "P50Micros", histogram.getPercentile(0.5) / 1e3);
+            values.put(name + "P90Micros", histogram.getPercentile(0.9) / 1e3);
+            values.put(name + "P99Micros", histogram.getPercentile(0.99) / 1e3);
+            values.put(name + "P999Micros", histogram.getPercentile(0.999) / 1e3);
+            values.put(name + "MaxMicros", histogram.getMax() / 1e3);
+        }
+        for (ErrorType error : ErrorType.values()) {
+            values.put(attributeName(error.name()) + "Errors", getErrorCount(error));
+        }
+        putFiles(values, "read.", reads);
+        putFiles(values, "write.", writes);
+        return values;
+    }
+
+    private static void putFiles(Map<String, Object> values, String prefix, Map<String, FileStatistics> files) {
+        for (Map.Entry<String, FileStatistics> entry : files.entrySet()) {
+            values.put(prefix + entry.getKey() + ".Bytes", entry.getValue().bytes.sum());
+            values.put(prefix + entry.getKey() + ".Rows", entry.getValue().rows.sum());
+            values.put(prefix + entry.getKey() + ".RowsPerSecond", entry.getValue().rowsPerSecond());
+        }
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Object value = attributes().get(attribute);
+        if (value == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return value;
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] names) {
+        Map<String, Object> values = attributes();
+        AttributeList list = new AttributeList();
+        for (String name : names) {
+            if (values.containsKey(name)) {
+                list.add(new Attribute(name, values.get(name)));
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    // Lists the attributes as they are now; file attributes appear once a file was read or written
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> infos = new ArrayList<>();
+        for (Map.Entry<String, Object> entry : attributes().entrySet()) {
+            infos.add(new MBeanAttributeInfo(entry.getKey(), entry.getValue().getClass().getName(), entry.getKey(), true, false, false));
+        }
+        return new MBeanInfo(getClass().getName(), "Patient record system metrics",
+                infos.toArray(new MBeanAttributeInfo[0]), null, null, null);
+    }
+}
+
+// Latency histogram in the style of HdrHistogram: values below 256 ns have a bucket each,
+// and every power of two above is split into SUB_BUCKETS equal buckets, so any recorded
+// value is reported within 1/SUB_BUCKETS (under 1%) of its actual value. Values above 2^40 ns
+// (about 18 minutes) are counted in the last bucket. Recording only increments counters.
+class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int LINEAR_LIMIT = SUB_BUCKETS * 2;
+    private static final int MAX_EXPONENT = 40;
+    private static final int BUCKETS = LINEAR_LIMIT + (MAX_EXPONENT - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(bucketIndex(value));
+        count.increment();
+        sum.add(value);
+        max.accumulateAndGet(value, Math::max);
+    }
+
+    private static int bucketIndex(long value) {
+        if (value < LINEAR_LIMIT) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent >= MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) - SUB_BUCKETS;
+        return LINEAR_LIMIT + (exponent - SUB_BUCKET_BITS - 1) * SUB_BUCKETS + subBucket;
+    }
+
+    // Largest value that falls into the bucket
+    private static long highestValue(int index) {
+        if (index < LINEAR_LIMIT) {
+            return index;
+        }
+        int exponent = (index - LINEAR_LIMIT) / SUB_BUCKETS + SUB_BUCKET_BITS + 1;
+        long subBucket = (index - LINEAR_LIMIT) % SUB_BUCKETS + SUB_BUCKETS;
+        int shift = exponent - SUB_BUCKET_BITS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+    // Getters
+    public long getCount() {
+        return count.sum();
+    }
+
+    public double getMean() {
+        long n = count.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    // Value in nanoseconds that the given fraction of recorded values do not exceed
+    public long getPercentile(double percentile) {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(highestValue(i), max.get());
+            }
+        }
+        return max.get();
+    }
+}
@@ -0,0 +1,128 @@
+import java.nio.file.*;
+import java.util.*;
+
+// Checks that data survives saving and loading. The files include rows whose category is not
+// one of those their type allows, as files written before the categories of a type changed
+// may have. Such rows must load, be saved again unchanged and keep their category, while
+// adds of those categories are still refused.
+//
+// Usage: PatientRecordSystemRoundTripTest. Prints PASS or FAIL.
+public class PatientRecordSystemRoundTripTest {
+    private static final List<String> CATEGORY_OBSERVATIONS = Arrays.asList(
+            "P1;C1;A", "P1;C1;Retired", "P2;C1;Retired", "P2;C1;B", "P2;C2;Unlisted");
+    // The categories of P1 and P2 in a patient record
+    private static final List<String> P1_CATEGORIES = Arrays.asList("A", "Retired");
+    private static final List<String> P2_CATEGORIES = Arrays.asList("Retired", "B", "Unlisted");
+
+    private static int failures = 0;
+
+    public static void main(String[] args) throws Exception {
+        Path dataDirectory = Files.createTempDirectory("prs-round-trip");
+        try {
+            writeFiles(dataDirectory);
+            for (LoadMode mode : LoadMode.values()) {
+                PatientRecordSystem prs = new PatientRecordSystem(dataDirectory);
+                prs.loadData(mode);
+                checkData(prs, "load " + mode);
+            }
+
+            PatientRecordSystem prs = new PatientRecordSystem(dataDirectory);
+            prs.loadData();
+            prs.saveData();
+            check("text save: category observations are written unchanged",
+                    Files.readAllLines(dataDirectory.resolve("PRS-CategoryObservations.txt")).equals(CATEGORY_OBSERVATIONS));
+            prs = new PatientRecordSystem(dataDirectory);
+            prs.loadData();
+            checkData(prs, "text reload");
+
+            prs.saveData(SnapshotFormat.BINARY);
+            prs = new PatientRecordSystem(dataDirectory);
+            prs.loadData(SnapshotFormat.BINARY);
+            checkData(prs, "binary reload");
+
+            prs.saveData(SnapshotFormat.PAGED);
+            prs = new PatientRecordSystem(dataDirectory);
+            prs.loadData(SnapshotFormat.PAGED);
+            checkData(prs, "paged reload");
+            // A text load closes the paged file
+            prs.loadData();
+
+            PatientRecordSystem.convertTextToPaged(dataDirectory);
+            prs = new PatientRecordSystem(dataDirectory);
+            prs.loadData(SnapshotFormat.PAGED);
+            checkData(prs, "paged import");
+            prs.loadData();
+        } finally {
+            PatientRecordSystemBenchmark.deleteDirectory(dataDirectory);
+        }
+
+        if (failures == 0) {
+            System.out.println("PASS");
+        } else {
+            System.out.println("FAIL: " + failures + " check(s) failed");
+            System.exit(1);
+        }
+    }
+
+    private static void writeFiles(Path dataDirectory) throws Exception {
+        Files.write(dataDirectory.resolve("PRS-MeasurementObservationTypes.txt"), Arrays.asList("T1;Weight;kg"));
+        Files.write(dataDirectory.resolve("PRS-CategoryObservationTypes.txt"), Arrays.asList("C1;Status;A,B", "C2;Empty"));
+        Files.write(dataDirectory.resolve("PRS-Patients.txt"), Arrays.asList("P1;Ann", "P2;Bob"));
+        Files.write(dataDirectory.resolve("PRS-MeasurementObservations.txt"), Arrays.asList("P1;T1;70.5;1700000000000"));
+        Files.write(dataDirectory.resolve("PRS-CategoryObservations.txt"), CATEGORY_OBSERVATIONS);
+    }
+
+    private static void checkData(PatientRecordSystem prs, String label) throws Exception {
+        check(label + ": rows with categories that are not allowed are kept",
+                categories(prs, "P1").equals(P1_CATEGORIES) && categories(prs, "P2").equals(P2_CATEGORIES));
+        check(label + ": queries find patients by categories that are not allowed",
+                patientIds(prs, new PatientQuery().category("C1", "Retired")).equals(Arrays.asList("P1", "P2"))
+                        && patientIds(prs, new PatientQuery().category("C1", "A").category("C1", "Retired")).equals(Arrays.asList("P1"))
+                        && patientIds(prs, new PatientQuery().category("C1", "Unlisted")).isEmpty());
+        check(label + ": patients are counted by categories that are not allowed",
+                prs.countPatientsWithCategory("C1", "Retired") == 2 && prs.countPatientsWithCategory("C2", "Unlisted") == 1
+                        && prs.countPatientsWithCategory("C1", "Unlisted") == -1);
+        check(label + ": allowed categories are unchanged",
+                prs.getCategoryObservationType("C1").getCategories().equals(Arrays.asList("A", "B"))
+                        && prs.getCategoryObservationType("C2").getCategories().isEmpty());
+        boolean refused;
+        try {
+            prs.addCategoryObservation("P1", "C1", "Retired");
+            refused = false;
+        } catch (Exception e) {
+            refused = true;
+        }
+        check(label + ": adds of a category that is not allowed are refused", refused);
+        ObservationBatch batch = new ObservationBatch();
+        batch.addCategory("P1", "C1", null);
+        check(label + ": batch rows without a category are refused", prs.getCategoryObservationType("C1").getCategoryOrdinal(null) == -1
+                && prs.addObservations(batch).getErrors().size() == 1);
+    }
+
+    private static List<String> categories(PatientRecordSystem prs, String patientId) {
+        List<String> categories = new ArrayList<>();
+        for (CategoryObservation observation : prs.getPatientRecord(patientId).getCategoryObservations()) {
+            categories.add(observation.getCategory());
+        }
+        return categories;
+    }
+
+    private static List<String> patientIds(PatientRecordSystem prs, PatientQuery query) {
+        List<String> ids = new ArrayList<>();
+        try {
+            for (Patient patient : prs.findPatients(query)) {
+                ids.add(patient.getId());
+            }
+        } catch (Exception e) {
+            ids.add(e.toString());
+        }
+        return ids;
+    }
+
+    private static void check(String description, boolean passed) {
+        System.out.println((passed ? "ok     " : "FAILED ") + description);
+        if (!passed) {
+            failures++;
+        }
+    }
+}
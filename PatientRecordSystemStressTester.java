@@ -0,0 +1,405 @@
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+// Multi-threaded stress test: concurrent writers add patients, types and observations while
+// readers iterate the data, then every row is checked for loss and duplication.
+public class PatientRecordSystemStressTester {
+    private static int failures = 0;
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int observationsPerThread = args.length > 1 ? Integer.parseInt(args[1]) : 50_000;
+
+        testDuplicateKeys(threads);
+        testObservations(threads, observationsPerThread, false);
+        testObservations(threads, Math.max(1, observationsPerThread / 50), true);
+        for (SaveMode mode : SaveMode.values()) {
+            // Journaled adds are synced one by one and so are much slower
+            int perThread = mode == SaveMode.COMPACT_JOURNAL ? observationsPerThread / 50 : observationsPerThread / 2;
+            testAddsDuringSaves(threads, Math.max(1, perThread), mode);
+        }
+        testReadsDuringPagedSaves(threads, Math.max(1, observationsPerThread / 2));
+
+        if (failures == 0) {
+            System.out.println("PASS");
+        } else {
+            System.out.println("FAIL: " + failures + " check(s) failed");
+            System.exit(1);
+        }
+    }
+
+    // Every thread tries to add the same keys; each key must be added exactly once
+    private static void testDuplicateKeys(int threads) throws Exception {
+        PatientRecordSystem prs = new PatientRecordSystem();
+        int keys = 1000;
+        AtomicInteger patientsAdded = new AtomicInteger();
+        AtomicInteger typesAdded = new AtomicInteger();
+        runConcurrently(threads, thread -> {
+            for (int i = 0; i < keys; i++) {
+                try {
+                    prs.addPatient("P" + i, "Patient " + i + " from thread " + thread);
+                    patientsAdded.incrementAndGet();
+                } catch (Exception e) {
+                    // Duplicate from another thread
+                }
+                try {
+                    prs.addMeasurementObservationType("T" + i, "Type " + i, "unit");
+                    typesAdded.incrementAndGet();
+                } catch (Exception e) {
+                    // Duplicate from another thread
+                }
+            }
+        });
+        check("each patient ID added once", patientsAdded.get() == keys && prs.getPatients().size() == keys);
+        check("each type code added once", typesAdded.get() == keys && prs.getMeasurementObservationTypes().size() == keys);
+        Set<String> ids = new HashSet<>();
+        for (Patient patient : prs.getPatients()) {
+            ids.add(patient.getId());
+        }
+        check("patient list has no duplicates", ids.size() == keys);
+    }
+
+    // Each writer adds observations with values unique to it; readers iterate concurrently.
+    // Afterwards every value must appear exactly once, in the store and in the patient records.
+    private static void testObservations(int threads, int observationsPerThread, boolean journal) throws Exception {
+        Path dataDirectory = Files.createTempDirectory("prs-stress");
+        try {
+            PatientRecordSystem prs = new PatientRecordSystem(dataDirectory);
+            if (journal) {
+                prs.enableJournal();
+            }
+            prs.addMeasurementObservationType("T1", "Type 1", "unit");
+            prs.addCategoryObservationType("C1", "Category 1", Arrays.asList("A", "B", "C"));
+            int patientCount = 100;
+            for (int i = 0; i < patientCount; i++) {
+                prs.addPatient("P" + i, "Patient " + i);
+            }
+
+            AtomicBoolean writing = new AtomicBoolean(true);
+            AtomicInteger readerErrors = new AtomicInteger();
+            List<Thread> readers = new ArrayList<>();
+            for (int r = 0; r < 2; r++) {
+                Thread reader = new Thread(() -> {
+                    Random random = new Random();
+                    while (writing.get()) {
+                        try {
+                            List<MeasurementObservation> observations = prs.getMeasurementObservations();
+                            int size = observations.size();
+                            for (int i = 0; i < size; i += 97) {
+                                if (observations.get(i).getPatient() == null) {
+                                    readerErrors.incrementAndGet();
+                                }
+                            }
+                            PatientRecord record = prs.getPatientRecord("P" + random.nextInt(patientCount));
+                            for (MeasurementObservation observation : record.getMeasurementObservations()) {
+                                if (observation.getObservationType() == null) {
+                                    readerErrors.incrementAndGet();
+                                }
+                            }
+                        } catch (RuntimeException e) {
+                            readerErrors.incrementAndGet();
+                        }
+                    }
+                });
+                reader.start();
+                readers.add(reader);
+            }
+
+            runConcurrently(threads, thread -> addObservations(prs, thread, observationsPerThread, patientCount));
+            writing.set(false);
+            for (Thread reader : readers) {
+                reader.join();
+            }
+
+            String label = journal ? " (journal)" : "";
+            int expected = threads * observationsPerThread;
+            int expectedCategories = threads * ((observationsPerThread + 9) / 10);
+            check("readers saw only complete rows" + label, readerErrors.get() == 0);
+            checkObservations(prs, expected, expectedCategories, "store" + label);
+
+            if (journal) {
+                PatientRecordSystem reloaded = new PatientRecordSystem(dataDirectory);
+                reloaded.enableJournal();
+                reloaded.loadData();
+                checkObservations(reloaded, expected, expectedCategories, "journal replay");
+                reloaded.disableJournal();
+                prs.disableJournal();
+            }
+        } finally {
+            PatientRecordSystemBenchmark.deleteDirectory(dataDirectory);
+        }
+    }
+
+    private enum SaveMode {
+        COMPACT_JOURNAL("journal compaction"), TEXT("text save"), PAGED("paged save");
+
+        final String label;
+
+        SaveMode(String label) {
+            this.label = label;
+        }
+    }
+
+    // Writers add patients and observations while another thread keeps saving. Every add that
+    // returned must be in the system afterwards and survive a reload.
+    private static void testAddsDuringSaves(int threads, int observationsPerThread, SaveMode mode) throws Exception {
+        Path dataDirectory = Files.createTempDirectory("prs-stress");
+        try {
+            PatientRecordSystem prs = new PatientRecordSystem(dataDirectory);
+            if (mode == SaveMode.COMPACT_JOURNAL) {
+                prs.enableJournal();
+            }
+            prs.addMeasurementObservationType("T1", "Type 1", "unit");
+            prs.addCategoryObservationType("C1", "Category 1", Arrays.asList("A", "B", "C"));
+            int patientCount = 100;
+            for (int i = 0; i < patientCount; i++) {
+                prs.addPatient("P" + i, "Patient " + i);
+            }
+            if (mode == SaveMode.PAGED) {
+                prs.saveData(SnapshotFormat.PAGED);
+                prs = new PatientRecordSystem(dataDirectory);
+                prs.loadData(SnapshotFormat.PAGED);
+            }
+            PatientRecordSystem system = prs;
+
+            AtomicBoolean writing = new AtomicBoolean(true);
+            AtomicInteger saves = new AtomicInteger();
+            AtomicReference<Exception> saveError = new AtomicReference<>();
+            Thread saver = new Thread(() -> {
+                while (writing.get()) {
+                    try {
+                        save(system, mode);
+                        saves.incrementAndGet();
+                    } catch (Exception e) {
+                        saveError.compareAndSet(null, e);
+                        return;
+                    }
+                }
+            });
+            saver.start();
+            int patientsPerThread = observationsPerThread / 10;
+            runConcurrently(threads, thread -> {
+                for (int i = 0; i < patientsPerThread; i++) {
+                    system.addPatient("Q" + thread + "-" + i, "Added while saving");
+                }
+                addObservations(system, thread, observationsPerThread, patientCount);
+            });
+            writing.set(false);
+            saver.join();
+            check(mode.label + ": saves ran during adds without errors", saves.get() > 0 && saveError.get() == null);
+
+            int expected = threads * observationsPerThread;
+            int expectedCategories = threads * ((observationsPerThread + 9) / 10);
+            String label = mode.label + ": after " + saves.get() + " saves";
+            PatientRecordSystem reloaded = new PatientRecordSystem(dataDirectory);
+            if (mode == SaveMode.PAGED) {
+                // Paged observations are only listed through the patient records
+                checkRecords(system, expected, expectedCategories, label);
+                system.saveData(SnapshotFormat.PAGED);
+                reloaded.loadData(SnapshotFormat.PAGED);
+            } else {
+                checkObservations(system, expected, expectedCategories, label);
+                if (mode == SaveMode.TEXT) {
+                    // A checkpoint rewrites only tables whose row count changed since the last save
+                    system.saveDataAsync().get();
+                } else {
+                    reloaded.enableJournal();
+                }
+                reloaded.loadData();
+            }
+            check(mode.label + ": no lost patients", reloaded.getPatients().size() == patientCount + threads * patientsPerThread);
+            if (mode == SaveMode.PAGED) {
+                checkRecords(reloaded, expected, expectedCategories, mode.label + ": reload");
+            } else {
+                checkObservations(reloaded, expected, expectedCategories, mode.label + ": reload");
+            }
+            if (mode == SaveMode.COMPACT_JOURNAL) {
+                reloaded.disableJournal();
+                system.disableJournal();
+            }
+        } finally {
+            PatientRecordSystemBenchmark.deleteDirectory(dataDirectory);
+        }
+    }
+
+    // Writers add measurements and another thread keeps saving paged while readers look up
+    // records, series and queries. A paged save moves the rows in memory to a new file, and a
+    // reader must see each row once: the record of a patient holds at least the adds for it
+    // that had returned when the read started, at most those that had started when it ended,
+    // and no value twice.
+    private static void testReadsDuringPagedSaves(int threads, int observationsPerThread) throws Exception {
+        Path dataDirectory = Files.createTempDirectory("prs-stress");
+        try {
+            PatientRecordSystem prs = new PatientRecordSystem(dataDirectory);
+            prs.addMeasurementObservationType("T1", "Type 1", "unit");
+            int patientCount = 100;
+            for (int i = 0; i < patientCount; i++) {
+                prs.addPatient("P" + i, "Patient " + i);
+            }
+            prs.saveData(SnapshotFormat.PAGED);
+            PatientRecordSystem system = new PatientRecordSystem(dataDirectory);
+            system.loadData(SnapshotFormat.PAGED);
+
+            AtomicIntegerArray started = new AtomicIntegerArray(patientCount);
+            AtomicIntegerArray returned = new AtomicIntegerArray(patientCount);
+            AtomicBoolean writing = new AtomicBoolean(true);
+            AtomicInteger saves = new AtomicInteger();
+            AtomicInteger reads = new AtomicInteger();
+            AtomicInteger badReads = new AtomicInteger();
+            AtomicReference<Exception> error = new AtomicReference<>();
+            List<Thread> background = new ArrayList<>();
+            background.add(new Thread(() -> {
+                while (writing.get()) {
+                    try {
+                        system.saveData(SnapshotFormat.PAGED);
+                        saves.incrementAndGet();
+                    } catch (Exception e) {
+                        error.compareAndSet(null, e);
+                        return;
+                    }
+                }
+            }));
+            for (int r = 0; r < Math.max(2, threads / 2); r++) {
+                int reader = r;
+                background.add(new Thread(() -> {
+                    try {
+                        for (int i = reader; writing.get(); i++) {
+                            int patient = i % patientCount;
+                            String patientId = "P" + patient;
+                            int least = returned.get(patient);
+                            List<Double> values = new ArrayList<>();
+                            for (MeasurementObservation observation : system.getPatientRecord(patientId).getMeasurementObservations()) {
+                                values.add(observation.getValue());
+                            }
+                            int series = system.getMeasurementObservations(patientId, "T1", Long.MIN_VALUE, Long.MAX_VALUE).size();
+                            boolean found = least == 0 || system.findPatients(new PatientQuery().measurementAbove("T1", -1)).size() > patient;
+                            int most = started.get(patient);
+                            if (values.size() < least || values.size() > most || new HashSet<>(values).size() != values.size()
+                                    || series < least || series > most || !found) {
+                                badReads.incrementAndGet();
+                            }
+                            reads.incrementAndGet();
+                        }
+                    } catch (Exception e) {
+                        error.compareAndSet(null, e);
+                    }
+                }));
+            }
+            for (Thread thread : background) {
+                thread.start();
+            }
+            runConcurrently(threads, thread -> {
+                for (int i = 0; i < observationsPerThread; i++) {
+                    int patient = (thread * 31 + i) % patientCount;
+                    started.incrementAndGet(patient);
+                    system.addMeasurementObservation("P" + patient, "T1", (double) thread * observationsPerThread + i);
+                    returned.incrementAndGet(patient);
+                }
+            });
+            writing.set(false);
+            for (Thread thread : background) {
+                thread.join();
+            }
+            String label = "reads during paged saves: " + reads.get() + " reads, " + saves.get() + " saves";
+            check(label + ": no errors", error.get() == null);
+            check(label + ": every read saw each row once", saves.get() > 0 && reads.get() > 0 && badReads.get() == 0);
+        } finally {
+            PatientRecordSystemBenchmark.deleteDirectory(dataDirectory);
+        }
+    }
+
+    private static void save(PatientRecordSystem prs, SaveMode mode) throws Exception {
+        switch (mode) {
+            case COMPACT_JOURNAL:
+                prs.compactJournal();
+                break;
+            case TEXT:
+                prs.saveData();
+                break;
+            default:
+                prs.saveData(SnapshotFormat.PAGED);
+        }
+    }
+
+    // Adds observations with values unique to the thread, and a category every tenth row
+    private static void addObservations(PatientRecordSystem prs, int thread, int observationsPerThread, int patientCount) throws Exception {
+        for (int i = 0; i < observationsPerThread; i++) {
+            String patientId = "P" + ((thread * 31 + i) % patientCount);
+            prs.addMeasurementObservation(patientId, "T1", (double) thread * observationsPerThread + i);
+            if (i % 10 == 0) {
+                prs.addCategoryObservation(patientId, "C1", "ABC".substring(i % 3, i % 3 + 1));
+            }
+        }
+    }
+
+    private static void checkObservations(PatientRecordSystem prs, int expected, int expectedCategories, String label) {
+        BitSet seen = new BitSet(expected);
+        int duplicates = 0;
+        for (MeasurementObservation observation : prs.getMeasurementObservations()) {
+            int value = (int) observation.getValue();
+            if (seen.get(value)) {
+                duplicates++;
+            }
+            seen.set(value);
+        }
+        check(label + ": no lost measurement rows", seen.cardinality() == expected);
+        check(label + ": no duplicated measurement rows", duplicates == 0 && prs.getMeasurementObservations().size() == expected);
+        check(label + ": no lost or duplicated category rows", prs.getCategoryObservations().size() == expectedCategories);
+        checkRecords(prs, expected, expectedCategories, label);
+    }
+
+    private static void checkRecords(PatientRecordSystem prs, int expected, int expectedCategories, String label) {
+        BitSet seenInRecords = new BitSet(expected);
+        int inRecords = 0;
+        int categoriesInRecords = 0;
+        for (Patient patient : prs.getPatients()) {
+            PatientRecord record = prs.getPatientRecord(patient.getId());
+            for (MeasurementObservation observation : record.getMeasurementObservations()) {
+                if (observation.getPatient() != patient) {
+                    inRecords = -expected;
+                }
+                seenInRecords.set((int) observation.getValue());
+                inRecords++;
+            }
+            categoriesInRecords += record.getCategoryObservations().size();
+        }
+        check(label + ": patient records hold every row once", inRecords == expected && seenInRecords.cardinality() == expected);
+        check(label + ": patient records hold every category row once", categoriesInRecords == expectedCategories);
+    }
+
+    private interface Worker {
+        void run(int thread) throws Exception;
+    }
+
+    // Starts all workers together and waits for them; a worker exception fails the run
+    private static void runConcurrently(int threads, Worker worker) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            futures.add(executor.submit(() -> {
+                start.await();
+                worker.run(thread);
+                return null;
+            }));
+        }
+        start.countDown();
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static void check(String description, boolean passed) {
+        System.out.println((passed ? "ok     " : "FAILED ") + description);
+        if (!passed) {
+            failures++;
+        }
+    }
+}
@@ -0,0 +1,122 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+
+// Reads the ';'-delimited lines of a PRS-*.txt file one at a time.
+// Field counting follows String.split(";"): trailing empty fields are dropped.
+interface RecordFileReader extends Closeable {
+    boolean nextLine() throws IOException;
+
+    int fieldCount();
+
+    String field(int index);
+
+    double doubleField(int index);
+
+    long longField(int index);
+
+    static RecordFileReader open(Path file, LoadMode mode) throws IOException {
+        switch (mode) {
+            case SCANNER:
+                return new ScannerRecordFileReader(file);
+            case BUFFERED:
+            case PARALLEL:
+                return new BufferedRecordFileReader(file);
+            case MAPPED:
+                return new MappedRecordFileReader(file);
+            default:
+                throw new IllegalArgumentException("Unsupported load mode: " + mode);
+        }
+    }
+
+    // Splits a file into at most chunkCount byte ranges {start, end} that begin at line starts
+    static List<long[]> splitAtLines(Path file, int chunkCount) throws IOException {
+        List<long[]> ranges = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long start = 0;
+            for (int i = 1; i <= chunkCount && start < size; i++) {
+                long end = i == chunkCount ? size : Math.max(start, nextLineStart(channel, size * i / chunkCount));
+                if (end > start) {
+                    ranges.add(new long[] {start, end});
+                    start = end;
+                }
+            }
+        }
+        return ranges;
+    }
+
+    // Returns the first line start at or after offset
+    private static long nextLineStart(FileChannel channel, long offset) throws IOException {
+        if (offset == 0) {
+            return 0;
+        }
+        ByteBuffer bytes = ByteBuffer.allocate(4096);
+        long position = offset - 1;
+        boolean carriageReturn = false;
+        while (true) {
+            bytes.clear();
+            int read = channel.read(bytes, position);
+            if (read <= 0) {
+                return channel.size();
+            }
+            for (int i = 0; i < read; i++) {
+                byte b = bytes.get(i);
+                if (carriageReturn) {
+                    return b == '\n' ? position + i + 1 : position + i;
+                }
+                if (b == '\n') {
+                    return position + i + 1;
+                }
+                carriageReturn = b == '\r';
+            }
+            position += read;
+        }
+    }
+}
+
+// The original Scanner.nextLine() and String.split(";") reader
+class ScannerRecordFileReader implements RecordFileReader {
+    private final Scanner scanner;
+    private String[] parts;
+
+    public ScannerRecordFileReader(Path file) throws IOException {
+        scanner = new Scanner(file.toFile());
+    }
+
+    @Override
+    public boolean nextLine() {
+        if (!scanner.hasNextLine()) {
+            return false;
+        }
+        parts = scanner.nextLine().split(";");
+        return true;
+    }
+
+    @Override
+    public int fieldCount() {
+        return parts.length;
+    }
+
+    @Override
+    public String field(int index) {
+        return parts[index];
+    }
+
+    @Override
+    public double doubleField(int index) {
+        return Double.parseDouble(parts[index]);
+    }
+
+    @Override
+    public long longField(int index) {
+        return Long.parseLong(parts[index]);
+    }
+
+    @Override
+    public void close() {
+        scanner.close();
+    }
+}
@@ -0,0 +1,337 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+
+// Patients partitioned across several PatientRecordSystem shards, for data sets larger than
+// one system can hold. Each patient belongs to the shard that a consistent hash ring maps its
+// ID to, and every add, lookup and record of that patient goes to that shard alone. Observation
+// types are added to every shard. Queries over all patients run on every shard at once and
+// their results are merged.
+//
+// Shard i keeps its PRS-*.txt files in shard-i of the base directory. Adds to different
+// shards never share a lock, so ingestion spread over the shards scales with them.
+class ShardedPatientRecordSystem {
+    static final String MANIFEST_FILE = "PRS-Shards.txt";
+
+    private final Path baseDirectory;
+    private final PatientRecordSystem[] shards;
+    private final ConsistentHashRing ring;
+    // Runs the per-shard parts of fanned-out calls; threads end when idle
+    private final ExecutorService shardExecutor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "prs-shard-worker");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public ShardedPatientRecordSystem(Path baseDirectory, int shardCount) throws IOException {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("Need at least one shard: " + shardCount);
+        }
+        this.baseDirectory = baseDirectory;
+        shards = new PatientRecordSystem[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            Path shardDirectory = baseDirectory.resolve("shard-" + i);
+            Files.createDirectories(shardDirectory);
+            shards[i] = new PatientRecordSystem(shardDirectory);
+        }
+        ring = new ConsistentHashRing(shardCount, ConsistentHashRing.DEFAULT_VIRTUAL_NODES);
+    }
+
+    // The shard that holds a patient
+    public int shardOf(String patientId) {
+        return ring.nodeFor(patientId);
+    }
+
+    private PatientRecordSystem shardFor(String patientId) {
+        return shards[ring.nodeFor(patientId)];
+    }
+
+    // Types are added to every shard in order, so a duplicate code fails on the first shard
+    // before any shard changes
+    public void addMeasurementObservationType(String code, String name, String unit) throws Exception {
+        for (PatientRecordSystem shard : shards) {
+            shard.addMeasurementObservationType(code, name, unit);
+        }
+    }
+
+    public void addCategoryObservationType(String code, String name, List<String> categories) throws Exception {
+        for (PatientRecordSystem shard : shards) {
+            shard.addCategoryObservationType(code, name, categories);
+        }
+    }
+
+    public void addPatient(String id, String name) throws Exception {
+        shardFor(id).addPatient(id, name);
+    }
+
+    public void addMeasurementObservation(String patientId, String observationTypeCode, double value) throws Exception {
+        shardFor(patientId).addMeasurementObservation(patientId, observationTypeCode, value);
+    }
+
+    public void addMeasurementObservation(String patientId, String observationTypeCode, double value, long recordedAt) throws Exception {
+        shardFor(patientId).addMeasurementObservation(patientId, observationTypeCode, value, recordedAt);
+    }
+
+    public void addCategoryObservation(String patientId, String observationTypeCode, String category) throws Exception {
+        shardFor(patientId).addCategoryObservation(patientId, observationTypeCode, category);
+    }
+
+    // Splits the batch by shard and adds the parts on all shards at once. Row numbers in the
+    // result refer to the given batch.
+    public BatchResult addObservations(ObservationBatch batch) throws Exception {
+        ObservationBatch[] parts = new ObservationBatch[shards.length];
+        int[][] batchRows = new int[shards.length][];
+        int[] partSizes = new int[shards.length];
+        for (int i = 0; i < shards.length; i++) {
+            parts[i] = new ObservationBatch(batch.size() / shards.length + 16);
+            batchRows[i] = new int[16];
+        }
+        for (int row = 0; row < batch.size(); row++) {
+            int shard = ring.nodeFor(batch.getPatientId(row));
+            if (batch.isCategory(row)) {
+                parts[shard].addCategory(batch.getPatientId(row), batch.getObservationTypeCode(row), batch.getCategory(row));
+            } else {
+                parts[shard].addMeasurement(batch.getPatientId(row), batch.getObservationTypeCode(row), batch.getValue(row), batch.getRecordedAt(row));
+            }
+            if (partSizes[shard] == batchRows[shard].length) {
+                batchRows[shard] = Arrays.copyOf(batchRows[shard], partSizes[shard] * 2);
+            }
+            batchRows[shard][partSizes[shard]++] = row;
+        }
+        List<BatchResult> results = onAllShards((shard, index) -> shard.addObservations(parts[index]));
+        int added = 0;
+        List<BatchError> errors = new ArrayList<>();
+        for (int i = 0; i < shards.length; i++) {
+            added += results.get(i).getAddedCount();
+            for (BatchError error : results.get(i).getErrors()) {
+                errors.add(new BatchError(batchRows[i][error.getRow()], error.getMessage()));
+            }
+        }
+        errors.sort(Comparator.comparingInt(BatchError::getRow));
+        return new BatchResult(added, errors);
+    }
+
+    public Patient getPatient(String id) {
+        return shardFor(id).getPatient(id);
+    }
+
+    public PatientRecord getPatientRecord(String patientId) {
+        return shardFor(patientId).getPatientRecord(patientId);
+    }
+
+    public String getRenderedPatientRecord(String patientId) {
+        return shardFor(patientId).getRenderedPatientRecord(patientId);
+    }
+
+    public List<MeasurementObservation> getMeasurementObservations(String patientId, String observationTypeCode, long from, long to) {
+        return shardFor(patientId).getMeasurementObservations(patientId, observationTypeCode, from, to);
+    }
+
+    // Patients matching the query on any shard, grouped by shard
+    public List<Patient> findPatients(PatientQuery query) throws Exception {
+        List<Patient> matches = new ArrayList<>();
+        for (List<Patient> shardMatches : onAllShards((shard, index) -> shard.findPatients(query))) {
+            matches.addAll(shardMatches);
+        }
+        return matches;
+    }
+
+    // Returns -1 if the type or category does not exist, as PatientRecordSystem does
+    public int countPatientsWithCategory(String observationTypeCode, String category) {
+        int count = 0;
+        for (PatientRecordSystem shard : shards) {
+            int shardCount = shard.countPatientsWithCategory(observationTypeCode, category);
+            if (shardCount < 0) {
+                return -1;
+            }
+            count += shardCount;
+        }
+        return count;
+    }
+
+    public Stream<Patient> getPatientsWithCategory(String observationTypeCode, String category) {
+        Stream<Patient> members = Stream.empty();
+        for (PatientRecordSystem shard : shards) {
+            Stream<Patient> shardMembers = shard.getPatientsWithCategory(observationTypeCode, category);
+            if (shardMembers == null) {
+                return null;
+            }
+            members = Stream.concat(members, shardMembers);
+        }
+        return members;
+    }
+
+    // The statistics of every shard merged into one, or null if the type does not exist
+    public MeasurementStatistics getMeasurementStatistics(String observationTypeCode) {
+        MeasurementStatistics merged = new MeasurementStatistics();
+        for (PatientRecordSystem shard : shards) {
+            MeasurementStatistics statistics = shard.getMeasurementStatistics(observationTypeCode);
+            if (statistics == null) {
+                return null;
+            }
+            merged.merge(statistics);
+        }
+        return merged;
+    }
+
+    // Saves every shard at once. The shard count is saved with them, as loading the files
+    // into a different number of shards would look patients up on the wrong shard.
+    public void saveData() throws Exception {
+        writeManifest();
+        onAllShards((shard, index) -> {
+            shard.saveData();
+            return null;
+        });
+    }
+
+    public CompletableFuture<Void> saveDataAsync() throws IOException {
+        writeManifest();
+        CompletableFuture<?>[] checkpoints = new CompletableFuture<?>[shards.length];
+        for (int i = 0; i < shards.length; i++) {
+            checkpoints[i] = shards[i].saveDataAsync();
+        }
+        return CompletableFuture.allOf(checkpoints);
+    }
+
+    public void loadData() throws Exception {
+        Path manifest = baseDirectory.resolve(MANIFEST_FILE);
+        if (Files.exists(manifest)) {
+            int savedShards = Integer.parseInt(new String(Files.readAllBytes(manifest), StandardCharsets.UTF_8).trim());
+            if (savedShards != shards.length) {
+                throw new Exception("Data was saved with " + savedShards + " shards, not " + shards.length);
+            }
+        }
+        onAllShards((shard, index) -> {
+            shard.loadData();
+            return null;
+        });
+    }
+
+    private void writeManifest() throws IOException {
+        Path temp = baseDirectory.resolve(MANIFEST_FILE + ".tmp");
+        Files.write(temp, (shards.length + "\n").getBytes(StandardCharsets.UTF_8));
+        Files.move(temp, baseDirectory.resolve(MANIFEST_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private interface ShardTask<T> {
+        T run(PatientRecordSystem shard, int index) throws Exception;
+    }
+
+    // Runs the task on every shard at once and returns the results in shard order. Waits for
+    // every shard, then throws the first failure.
+    private <T> List<T> onAllShards(ShardTask<T> task) throws Exception {
+        List<Future<T>> futures = new ArrayList<>(shards.length);
+        for (int i = 0; i < shards.length; i++) {
+            int index = i;
+            futures.add(shardExecutor.submit(() -> task.run(shards[index], index)));
+        }
+        List<T> results = new ArrayList<>(shards.length);
+        Exception failure = null;
+        for (Future<T> future : futures) {
+            try {
+                results.add(future.get());
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return results;
+    }
+
+    // Getters
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    public PatientRecordSystem getShard(int index) {
+        return shards[index];
+    }
+
+    // Types are the same on every shard
+    public List<MeasurementObservationType> getMeasurementObservationTypes() {
+        return shards[0].getMeasurementObservationTypes();
+    }
+
+    public List<CategoryObservationType> getCategoryObservationTypes() {
+        return shards[0].getCategoryObservationTypes();
+    }
+
+    public MeasurementObservationType getMeasurementObservationType(String code) {
+        return shards[0].getMeasurementObservationType(code);
+    }
+
+    public CategoryObservationType getCategoryObservationType(String code) {
+        return shards[0].getCategoryObservationType(code);
+    }
+
+    // The patients of all shards, grouped by shard
+    public List<Patient> getPatients() {
+        List<Patient> patients = new ArrayList<>();
+        for (PatientRecordSystem shard : shards) {
+            patients.addAll(shard.getPatients());
+        }
+        return patients;
+    }
+}
+
+// Consistent hash ring: every node owns virtualNodes points on a ring of 64-bit hashes, and a
+// key belongs to the node owning the first point at or after the key's hash. Adding a node
+// to N moves only about 1/(N + 1) of the keys, and the many points per node keep the share
+// of each node within a few percent of 1/N.
+class ConsistentHashRing {
+    static final int DEFAULT_VIRTUAL_NODES = 160;
+
+    private final long[] points;
+    private final int[] owners;
+
+    public ConsistentHashRing(int nodes, int virtualNodes) {
+        if (nodes < 1 || virtualNodes < 1) {
+            throw new IllegalArgumentException("Need at least one node and one virtual node");
+        }
+        long[][] entries = new long[nodes * virtualNodes][];
+        for (int node = 0; node < nodes; node++) {
+            for (int v = 0; v < virtualNodes; v++) {
+                entries[node * virtualNodes + v] = new long[]{hash("node-" + node + "#" + v), node};
+            }
+        }
+        Arrays.sort(entries, Comparator.comparingLong(entry -> entry[0]));
+        points = new long[entries.length];
+        owners = new int[entries.length];
+        for (int i = 0; i < entries.length; i++) {
+            points[i] = entries[i][0];
+            owners[i] = (int) entries[i][1];
+        }
+    }
+
+    public int nodeFor(String key) {
+        int index = Arrays.binarySearch(points, hash(key));
+        if (index < 0) {
+            index = -index - 1;
+        }
+        // Past the last point the ring wraps around to the first
+        return owners[index == points.length ? 0 : index];
+    }
+
+    // FNV-1a over the characters, then the MurmurHash3 finalizer, since FNV alone leaves
+    // keys that differ only in their last characters, like P1 and P2, close together
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,7 @@
+// Format of the files saveData writes and loadData reads
+public enum SnapshotFormat {
+    TEXT,
+    BINARY,
+    // Observations sorted by patient in PRS-Paged.bin and read on demand; see PagedObservations
+    PAGED
+}
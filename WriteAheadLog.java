@@ -0,0 +1,210 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+// Append-only log of records, each framed as length, CRC32 and payload. Appends are buffered
+// in memory; sync() makes them durable with group commit: the first waiting thread writes and
+// forces everything appended so far while later threads wait for that single fsync.
+class WriteAheadLog implements Closeable {
+    interface RecordHandler {
+        void apply(DataInputStream record) throws Exception;
+    }
+
+    interface RecordFilter {
+        boolean keep(DataInputStream record) throws IOException;
+    }
+
+    private static final int HEADER_SIZE = 8;
+
+    private final Path file;
+    private FileChannel channel;
+    private ByteArrayOutputStream pending;
+    private long appendedSequence;
+    private long durableSequence;
+    private boolean flushing;
+    private long size;
+
+    // Opens or creates the log and cuts off a torn record left by a crash
+    public WriteAheadLog(Path file) throws IOException {
+        this.file = file;
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        pending = new ByteArrayOutputStream();
+        size = validLength();
+        if (size < channel.size()) {
+            channel.truncate(size);
+            channel.force(false);
+        }
+        channel.position(size);
+    }
+
+    private long validLength() throws IOException {
+        long position = 0;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (true) {
+            header.clear();
+            if (channel.read(header, position) < HEADER_SIZE) {
+                return position;
+            }
+            int length = header.getInt(0);
+            if (length < 0 || position + HEADER_SIZE + length > channel.size()) {
+                return position;
+            }
+            ByteBuffer payload = ByteBuffer.allocate(length);
+            channel.read(payload, position + HEADER_SIZE);
+            if (crc(payload.array()) != header.getInt(4)) {
+                return position;
+            }
+            position += HEADER_SIZE + length;
+        }
+    }
+
+    // Passes every durable record to the handler, in append order
+    public void replay(RecordHandler handler) throws Exception {
+        long position = 0;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (position < size) {
+            header.clear();
+            channel.read(header, position);
+            ByteBuffer payload = ByteBuffer.allocate(header.getInt(0));
+            channel.read(payload, position + HEADER_SIZE);
+            handler.apply(new DataInputStream(new ByteArrayInputStream(payload.array())));
+            position += HEADER_SIZE + payload.capacity();
+        }
+    }
+
+    // Buffers a record and returns its sequence number for sync()
+    public synchronized long append(byte[] payload) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(payload.length).putInt(crc(payload));
+        pending.write(header.array(), 0, HEADER_SIZE);
+        pending.write(payload, 0, payload.length);
+        return ++appendedSequence;
+    }
+
+    // Returns once the record with the given sequence number is on disk
+    public void sync(long sequence) throws IOException {
+        byte[] batch;
+        long batchSequence;
+        synchronized (this) {
+            while (durableSequence < sequence && flushing) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for the journal");
+                }
+            }
+            if (durableSequence >= sequence) {
+                return;
+            }
+            flushing = true;
+            batch = pending.toByteArray();
+            batchSequence = appendedSequence;
+            pending = new ByteArrayOutputStream();
+        }
+        boolean written = false;
+        try {
+            ByteBuffer bytes = ByteBuffer.wrap(batch);
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+            channel.force(false);
+            written = true;
+        } finally {
+            synchronized (this) {
+                if (written) {
+                    durableSequence = batchSequence;
+                    size += batch.length;
+                } else {
+                    // Put the batch back so the next sync retries it
+                    ByteArrayOutputStream retry = new ByteArrayOutputStream();
+                    retry.write(batch, 0, batch.length);
+                    retry.write(pending.toByteArray(), 0, pending.size());
+                    pending = retry;
+                }
+                flushing = false;
+                notifyAll();
+            }
+        }
+    }
+
+    public void sync() throws IOException {
+        long sequence;
+        synchronized (this) {
+            sequence = appendedSequence;
+        }
+        sync(sequence);
+    }
+
+    public synchronized long size() {
+        return size + pending.size();
+    }
+
+    // Drops the records the filter rejects, e.g. those covered by a snapshot. The kept records
+    // are written to a new file that is renamed over the log, so a crash leaves either log
+    // whole. Records appended meanwhile stay buffered and go to the new file; their syncs wait
+    // until it is in place.
+    public void compact(RecordFilter keep) throws Exception {
+        sync();
+        synchronized (this) {
+            while (flushing) {
+                wait();
+            }
+            flushing = true;
+        }
+        long compactedSize = 0;
+        boolean replaced = false;
+        try {
+            Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+            try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                long position = 0;
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                while (position < size) {
+                    header.clear();
+                    channel.read(header, position);
+                    ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + header.getInt(0));
+                    channel.read(record, position);
+                    position += record.capacity();
+                    byte[] payload = Arrays.copyOfRange(record.array(), HEADER_SIZE, record.capacity());
+                    if (keep.keep(new DataInputStream(new ByteArrayInputStream(payload)))) {
+                        record.flip();
+                        while (record.hasRemaining()) {
+                            out.write(record);
+                        }
+                    }
+                }
+                out.force(false);
+                compactedSize = out.size();
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            FileChannel compacted = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            compacted.position(compactedSize);
+            channel.close();
+            channel = compacted;
+            replaced = true;
+        } finally {
+            synchronized (this) {
+                if (replaced) {
+                    size = compactedSize;
+                }
+                flushing = false;
+                notifyAll();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        sync();
+        channel.close();
+    }
+
+    private static int crc(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+        return (int) crc.getValue();
+    }
+}
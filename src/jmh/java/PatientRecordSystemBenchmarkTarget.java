@@ -0,0 +1,71 @@
+import benchmarks.PatientRecordSystemBenchmarkSuite;
+import java.nio.file.*;
+import java.util.*;
+
+// The operations of benchmarks.PatientRecordSystemBenchmarkSuite on a PatientRecordSystem
+public class PatientRecordSystemBenchmarkTarget implements PatientRecordSystemBenchmarkSuite.Target {
+    private Path dataDirectory;
+    private PatientRecordSystem prs;
+    private String[] patientIds;
+    private String[] measurementTypeCodes;
+
+    @Override
+    public void generate(int rows) throws Exception {
+        dataDirectory = Files.createTempDirectory("prs-benchmark");
+        PatientRecordSystemBenchmark.createDataFiles(dataDirectory, rows);
+        reload();
+        patientIds = prs.getPatients().stream().map(Patient::getId).toArray(String[]::new);
+        measurementTypeCodes = prs.getMeasurementObservationTypes().stream().map(MeasurementObservationType::getCode).toArray(String[]::new);
+    }
+
+    @Override
+    public void reload() throws Exception {
+        // Let the previous system go before loading the next
+        prs = null;
+        prs = new PatientRecordSystem(dataDirectory);
+        prs.loadData(LoadMode.PARALLEL);
+    }
+
+    @Override
+    public void addPatient(String id) throws Exception {
+        prs.addPatient(id, "New patient");
+    }
+
+    // Recorded now, as live adds are; random times would make every add reorder its series
+    @Override
+    public void addMeasurementObservation(Random random) throws Exception {
+        prs.addMeasurementObservation(randomPatientId(random), measurementTypeCodes[random.nextInt(measurementTypeCodes.length)],
+                random.nextInt(2000) / 10.0);
+    }
+
+    @Override
+    public Object findPatientById(Random random) {
+        return prs.getPatient(randomPatientId(random));
+    }
+
+    @Override
+    public Object getPatientRecord(Random random) {
+        return prs.getPatientRecord(randomPatientId(random));
+    }
+
+    @Override
+    public void saveData() throws Exception {
+        prs.saveData();
+    }
+
+    @Override
+    public Object loadData() throws Exception {
+        PatientRecordSystem loaded = new PatientRecordSystem(dataDirectory);
+        loaded.loadData();
+        return loaded;
+    }
+
+    @Override
+    public void deleteFiles() throws Exception {
+        PatientRecordSystemBenchmark.deleteDirectory(dataDirectory);
+    }
+
+    private String randomPatientId(Random random) {
+        return patientIds[random.nextInt(patientIds.length)];
+    }
+}
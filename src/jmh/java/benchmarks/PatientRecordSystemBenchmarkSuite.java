@@ -0,0 +1,138 @@
+package benchmarks;
+
+import java.util.*;
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+// JMH benchmarks of the PatientRecordSystem hot paths at several data sizes. The data comes
+// from PatientRecordSystemDataGenerator: rows measurement observations for rows / 20 patients.
+// Every benchmark has a state of its own, so no benchmark measures data another one added:
+// lookups share a system that nothing adds to, adds start every iteration on a freshly loaded
+// system, and saveData and loadData work on the generated files only.
+//
+// JMH needs benchmarks in a named package, which cannot refer to the classes of the default
+// package, so the benchmarks reach the system through Target, implemented by
+// PatientRecordSystemBenchmarkTarget in the default package.
+//
+// Build and run with Maven:
+//   mvn -P jmh package
+//   java -jar target/benchmarks.jar -p rows=10000,1000000 -rf json -rff results.json
+// 10M rows need a heap of about 3 GB, which the forks are given.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class PatientRecordSystemBenchmarkSuite {
+    // One PatientRecordSystem over one set of generated files
+    public interface Target {
+        // Generates files with the given number of measurement rows and loads them
+        void generate(int rows) throws Exception;
+
+        // Replaces the system by one freshly loaded from the files
+        void reload() throws Exception;
+
+        void addPatient(String id) throws Exception;
+
+        void addMeasurementObservation(Random random) throws Exception;
+
+        Object findPatientById(Random random);
+
+        Object getPatientRecord(Random random);
+
+        void saveData() throws Exception;
+
+        // Loads the files into a new system and returns it
+        Object loadData() throws Exception;
+
+        void deleteFiles() throws Exception;
+    }
+
+    // Generated files of one size, loaded once per trial. Each benchmark uses a subclass, so
+    // it gets files and a system of its own.
+    @State(Scope.Benchmark)
+    public abstract static class DataState {
+        @Param({"10000", "1000000", "10000000"})
+        public int rows;
+
+        Target target;
+        final Random random = new Random(7);
+
+        @Setup(Level.Trial)
+        public void generate() throws Exception {
+            target = (Target) Class.forName("PatientRecordSystemBenchmarkTarget").getDeclaredConstructor().newInstance();
+            target.generate(rows);
+        }
+
+        @TearDown(Level.Trial)
+        public void deleteFiles() throws Exception {
+            target.deleteFiles();
+        }
+    }
+
+    // A system that only the lookups read
+    @State(Scope.Benchmark)
+    public static class LookupState extends DataState {
+    }
+
+    // The generated data loaded again before every iteration, so every iteration adds to a
+    // system of the same size
+    @State(Scope.Benchmark)
+    public static class AddState extends DataState {
+        long addedPatients;
+
+        @Setup(Level.Iteration)
+        public void reload() throws Exception {
+            target.reload();
+            addedPatients = 0;
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class SaveState extends DataState {
+    }
+
+    @State(Scope.Benchmark)
+    public static class LoadState extends DataState {
+    }
+
+    @Benchmark
+    public void addPatient(AddState state) throws Exception {
+        // Ids past the generated ones, so every add succeeds
+        state.target.addPatient("N" + state.addedPatients++);
+    }
+
+    @Benchmark
+    public void addMeasurementObservation(AddState state) throws Exception {
+        state.target.addMeasurementObservation(state.random);
+    }
+
+    @Benchmark
+    public Object findPatientById(LookupState state) {
+        return state.target.findPatientById(state.random);
+    }
+
+    @Benchmark
+    public Object getPatientRecord(LookupState state) {
+        return state.target.getPatientRecord(state.random);
+    }
+
+    // Rewrites the same files every time, as nothing is added to the system
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 3)
+    @Measurement(iterations = 5)
+    public void saveData(SaveState state) throws Exception {
+        state.target.saveData();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 3)
+    @Measurement(iterations = 5)
+    public Object loadData(LoadState state) throws Exception {
+        return state.target.loadData();
+    }
+}